@@ -3,6 +3,8 @@ package mydomain.model;
 import javax.jdo.annotations.*;
 
 @PersistenceCapable(detachable="true")
+@Version(strategy=VersionStrategy.VERSION_NUMBER, column="VERSION")
+@Query(name="Person.byName", value="SELECT FROM mydomain.model.Person WHERE this.name == :name", unmodifiable="true")
 public class Person
 {
     @PrimaryKey
@@ -25,4 +27,9 @@ public class Person
     {
         return name;
     }
+
+    public void setName(String name)
+    {
+        this.name = name;
+    }
 }
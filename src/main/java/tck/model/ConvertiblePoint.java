@@ -20,6 +20,7 @@ package tck.model;
 import tck.util.ConvertiblePointToStringConverter;
 
 import javax.jdo.annotations.Convert;
+import java.util.Objects;
 
 /** A simple point class with two fields. The whole class/type is declared convertible. */
 @Convert(value = ConvertiblePointToStringConverter.class)
@@ -39,6 +40,23 @@ public class ConvertiblePoint {
     this.y = y;
   }
 
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof ConvertiblePoint)) {
+      return false;
+    }
+    ConvertiblePoint other = (ConvertiblePoint) obj;
+    return x == other.x && Objects.equals(y, other.y);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * x + Objects.hashCode(y);
+  }
+
   public String toString() {
     String rc = null;
     try {
@@ -17,6 +17,8 @@
 
 package tck.model;
 
+import java.util.Objects;
+
 /**
  * A simple class with two fields
  *
@@ -38,6 +40,23 @@ public class Point {
     this.y = y;
   }
 
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof Point)) {
+      return false;
+    }
+    Point other = (Point) obj;
+    return x == other.x && Objects.equals(y, other.y);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * x + Objects.hashCode(y);
+  }
+
   public String toString() {
     String rc = null;
     try {
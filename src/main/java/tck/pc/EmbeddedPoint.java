@@ -0,0 +1,64 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tck.pc;
+
+import java.util.Objects;
+
+/**
+ * Embedded-only persistence-capable point. Its coordinates are mapped to two INTEGER columns of the
+ * owning table, see package.jdo, so JDOQL filters on them translate to SQL.
+ */
+public class EmbeddedPoint {
+  private int x;
+  private Integer y;
+
+  public EmbeddedPoint() {}
+
+  public EmbeddedPoint(int x, Integer y) {
+    this.x = x;
+    this.y = y;
+  }
+
+  public int getX() {
+    return x;
+  }
+
+  public Integer getY() {
+    return y;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof EmbeddedPoint)) {
+      return false;
+    }
+    EmbeddedPoint other = (EmbeddedPoint) obj;
+    return getX() == other.getX() && Objects.equals(getY(), other.getY());
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * getX() + Objects.hashCode(getY());
+  }
+
+  public String toString() {
+    return "EmbeddedPoint(x: " + x + ", y: " + y + ")";
+  }
+}
@@ -22,9 +22,22 @@ import tck.model.Point;
 public interface IPCRect {
   Point getUpperLeft();
 
+  /**
+   * Sets the upper left corner. An implementation keeps its field if the new Point is equal to the
+   * current one: assigning it would make the field dirty, so that it is converted and written again
+   * on commit. The field of a hollow instance is loaded (and converted) for the comparison.
+   *
+   * @param upperLeft the upper left corner
+   */
   void setUpperLeft(Point upperLeft);
 
   Point getLowerRight();
 
+  /**
+   * Sets the lower right corner, keeping the field if the new Point is equal, as {@link
+   * #setUpperLeft} does.
+   *
+   * @param lowerRight the lower right corner
+   */
   void setLowerRight(Point lowerRight);
 }
@@ -19,6 +19,7 @@ package tck.pc;
 import tck.model.Point;
 
 import java.util.Date;
+import java.util.Objects;
 
 /**
  * PersistenceCapable class to test JDO AttributeConverter interface. Its fields of type Point are
@@ -50,7 +51,9 @@ public class PCRect implements IPCRect {
   }
 
   public void setUpperLeft(Point upperLeft) {
-    this.upperLeft = upperLeft;
+    if (!Objects.equals(this.upperLeft, upperLeft)) {
+      this.upperLeft = upperLeft;
+    }
   }
 
   public Point getLowerRight() {
@@ -58,7 +61,9 @@ public class PCRect implements IPCRect {
   }
 
   public void setLowerRight(Point lowerRight) {
-    this.lowerRight = lowerRight;
+    if (!Objects.equals(this.lowerRight, lowerRight)) {
+      this.lowerRight = lowerRight;
+    }
   }
 
   public String toString() {
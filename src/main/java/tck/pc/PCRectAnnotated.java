@@ -22,13 +22,17 @@ import tck.util.PointToStringConverter;
 import javax.jdo.annotations.Column;
 import javax.jdo.annotations.Convert;
 import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Version;
+import javax.jdo.annotations.VersionStrategy;
 import java.util.Date;
+import java.util.Objects;
 
 /**
  * PersistenceCapable class to test JDO AttributeConverter interface. Its fields of type Point are
  * converted to strings in the datastore.
  */
 @PersistenceCapable(table = "PCRectConv")
+@Version(strategy = VersionStrategy.VERSION_NUMBER, column = "VERSION")
 public class PCRectAnnotated implements IPCRect {
   private static long counter = new Date().getTime();
 
@@ -62,7 +66,9 @@ public class PCRectAnnotated implements IPCRect {
   }
 
   public void setUpperLeft(Point upperLeft) {
-    this.upperLeft = upperLeft;
+    if (!Objects.equals(this.upperLeft, upperLeft)) {
+      this.upperLeft = upperLeft;
+    }
   }
 
   public Point getLowerRight() {
@@ -70,7 +76,9 @@ public class PCRectAnnotated implements IPCRect {
   }
 
   public void setLowerRight(Point lowerRight) {
-    this.lowerRight = lowerRight;
+    if (!Objects.equals(this.lowerRight, lowerRight)) {
+      this.lowerRight = lowerRight;
+    }
   }
 
   public String toString() {
@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tck.pc;
+
+import tck.model.Point;
+
+import java.util.Date;
+import java.util.Objects;
+
+/**
+ * PersistenceCapable rect storing its corners as embedded points, i.e. as separate indexed INTEGER
+ * columns instead of converted strings, see package.jdo. JDOQL range filters like
+ * this.upperLeft.x &lt; 5 are evaluated in the datastore.
+ */
+public class PCRectEmbedded implements IPCRect {
+  private static long counter = new Date().getTime();
+
+  private static synchronized long newId() {
+    return counter++;
+  }
+
+  private long id = newId();
+  private EmbeddedPoint upperLeft;
+  private EmbeddedPoint lowerRight;
+
+  public PCRectEmbedded() {}
+
+  public long getId() {
+    return id;
+  }
+
+  public void setId(long id) {
+    this.id = id;
+  }
+
+  public Point getUpperLeft() {
+    return toPoint(upperLeft);
+  }
+
+  public void setUpperLeft(Point upperLeft) {
+    EmbeddedPoint value = toEmbeddedPoint(upperLeft);
+    if (!Objects.equals(value, this.upperLeft)) {
+      this.upperLeft = value;
+    }
+  }
+
+  public Point getLowerRight() {
+    return toPoint(lowerRight);
+  }
+
+  public void setLowerRight(Point lowerRight) {
+    EmbeddedPoint value = toEmbeddedPoint(lowerRight);
+    if (!Objects.equals(value, this.lowerRight)) {
+      this.lowerRight = value;
+    }
+  }
+
+  private static Point toPoint(EmbeddedPoint point) {
+    return point == null ? null : new Point(point.getX(), point.getY());
+  }
+
+  private static EmbeddedPoint toEmbeddedPoint(Point point) {
+    return point == null ? null : new EmbeddedPoint(point.x, point.y);
+  }
+
+  public String toString() {
+    String rc = null;
+    Object obj = this;
+    try {
+      rc =
+          obj.getClass().getName()
+              + " ul: "
+              + getUpperLeft().name()
+              + " lr: "
+              + getLowerRight().name();
+    } catch (NullPointerException ex) {
+      rc = "NPE getting PCRectEmbedded's values";
+    }
+    return rc;
+  }
+}
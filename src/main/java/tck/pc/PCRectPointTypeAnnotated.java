@@ -21,6 +21,8 @@ import tck.model.Point;
 
 import javax.jdo.annotations.Column;
 import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Version;
+import javax.jdo.annotations.VersionStrategy;
 import java.util.Date;
 
 /**
@@ -29,6 +31,7 @@ import java.util.Date;
  * ConvertiblePoint.
  */
 @PersistenceCapable(table = "PCRectConv")
+@Version(strategy = VersionStrategy.VERSION_NUMBER, column = "VERSION")
 public class PCRectPointTypeAnnotated implements IPCRect {
   private static long counter = new Date().getTime();
 
@@ -60,7 +63,10 @@ public class PCRectPointTypeAnnotated implements IPCRect {
   }
 
   public void setUpperLeft(Point upperLeft) {
-    this.upperLeft = new ConvertiblePoint(upperLeft.getX(), upperLeft.getY());
+    ConvertiblePoint value = new ConvertiblePoint(upperLeft.getX(), upperLeft.getY());
+    if (!value.equals(this.upperLeft)) {
+      this.upperLeft = value;
+    }
   }
 
   public Point getLowerRight() {
@@ -68,7 +74,10 @@ public class PCRectPointTypeAnnotated implements IPCRect {
   }
 
   public void setLowerRight(Point lowerRight) {
-    this.lowerRight = new ConvertiblePoint(lowerRight.getX(), lowerRight.getY());
+    ConvertiblePoint value = new ConvertiblePoint(lowerRight.getX(), lowerRight.getY());
+    if (!value.equals(this.lowerRight)) {
+      this.lowerRight = value;
+    }
   }
 
   public String toString() {
@@ -0,0 +1,321 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tck.util;
+
+import javax.jdo.JDOFatalException;
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import javax.jdo.Query;
+import javax.jdo.Transaction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Asynchronous repository of a persistent class, e.g. Person or an IPCRect implementation. Every
+ * operation runs on a worker thread of a fixed-size pool in its own PersistenceManager and
+ * transaction and completes the returned CompletableFuture, so callers are never blocked by the
+ * datastore.
+ *
+ * <p>At most maxPending operations are submitted and not yet completed. Further operations are
+ * rejected at once with a future failing with a RejectedExecutionException, so a saturated
+ * repository pushes back on its callers instead of queueing without limit.
+ *
+ * <p>A cancelled future is not run if it has not started yet. A running operation is rolled back
+ * instead of committed when its future was cancelled meanwhile.
+ *
+ * <p>Results are made transient before the PersistenceManager is closed, so they can be used by
+ * any thread but are no longer managed.
+ *
+ * @param <T> the persistent class
+ */
+public class AsyncRepository<T> implements AutoCloseable {
+
+  public static final int NR_OF_LATENCY_BUCKETS = LatencyHistogram.NR_OF_BUCKETS;
+
+  private final PersistenceManagerFactory pmf;
+  private final Class<T> type;
+  private final ExecutorService workers;
+  private final int maxPending;
+  private final Semaphore pending;
+
+  private final LongAdder nrOfSubmitted = new LongAdder();
+  private final LongAdder nrOfCompleted = new LongAdder();
+  private final LongAdder nrOfFailed = new LongAdder();
+  private final LongAdder nrOfCancelled = new LongAdder();
+  private final LongAdder nrOfRejected = new LongAdder();
+  private final LatencyHistogram latencies = new LatencyHistogram();
+
+  /**
+   * Creates a repository and its worker threads.
+   *
+   * @param pmf the PersistenceManagerFactory
+   * @param type the persistent class
+   * @param nrOfThreads number of worker threads, i.e. of concurrently open PersistenceManagers
+   * @param maxPending maximum number of submitted and not yet completed operations
+   */
+  public AsyncRepository(
+      PersistenceManagerFactory pmf, Class<T> type, int nrOfThreads, int maxPending) {
+    if (nrOfThreads < 1 || maxPending < nrOfThreads) {
+      throw new IllegalArgumentException(
+          "Invalid repository settings: threads=" + nrOfThreads + ", maxPending=" + maxPending);
+    }
+    this.pmf = pmf;
+    this.type = type;
+    this.maxPending = maxPending;
+    this.pending = new Semaphore(maxPending);
+    String threadName = "AsyncRepository-" + type.getSimpleName() + "-";
+    AtomicInteger threadNo = new AtomicInteger();
+    this.workers =
+        Executors.newFixedThreadPool(
+            nrOfThreads,
+            r -> {
+              Thread thread = new Thread(r, threadName + threadNo.getAndIncrement());
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /**
+   * Persists a transient instance.
+   *
+   * @param object the instance
+   * @return a future with the object id of the committed instance
+   */
+  public CompletableFuture<Object> persistAsync(T object) {
+    return submit(
+        pm -> {
+          pm.makePersistent(object);
+          return pm.getObjectId(object);
+        });
+  }
+
+  /**
+   * Looks up an instance by its object id.
+   *
+   * @param oid the object id, as returned by {@link #persistAsync}
+   * @return a future with the transient instance, or null if there is none
+   */
+  public CompletableFuture<T> findByIdAsync(Object oid) {
+    return submit(
+        pm -> {
+          try {
+            T object = type.cast(pm.getObjectById(oid, true));
+            pm.makeTransient(object);
+            return object;
+          } catch (JDOObjectNotFoundException ex) {
+            return null;
+          }
+        });
+  }
+
+  /**
+   * Executes a JDOQL query of the persistent class.
+   *
+   * @param filter the filter
+   * @param params the values of the parameters of the filter
+   * @return a future with the transient results
+   */
+  public CompletableFuture<List<T>> queryAsync(String filter, Object... params) {
+    Object[] values = Arrays.copyOf(params, params.length);
+    return submit(
+        pm -> {
+          Query<T> query = pm.newQuery(type, filter);
+          List<T> result = new ArrayList<>(query.setParameters(values).executeList());
+          pm.makeTransientAll(result);
+          query.closeAll();
+          return result;
+        });
+  }
+
+  /**
+   * Runs a unit of work in a transaction of its own PersistenceManager on a worker thread.
+   *
+   * @param work the unit of work, its result must not be managed by the PersistenceManager
+   * @param <R> the result
+   * @return a future with the result of the committed unit of work, failing with a
+   *     RejectedExecutionException if too many operations are pending
+   */
+  public <R> CompletableFuture<R> submit(Function<PersistenceManager, R> work) {
+    CompletableFuture<R> future = new CompletableFuture<>();
+    if (!pending.tryAcquire()) {
+      nrOfRejected.increment();
+      future.completeExceptionally(
+          new RejectedExecutionException("Too many pending operations on " + type.getName()));
+      return future;
+    }
+    nrOfSubmitted.increment();
+    // Counted by the cancelling thread, the worker may not dequeue the operation before long
+    future.whenComplete(
+        (result, ex) -> {
+          if (future.isCancelled()) {
+            nrOfCancelled.increment();
+          }
+        });
+    long start = System.nanoTime();
+    try {
+      workers.execute(() -> run(work, future, start));
+    } catch (RejectedExecutionException ex) {
+      // Closed
+      pending.release();
+      future.completeExceptionally(ex);
+    }
+    return future;
+  }
+
+  private <R> void run(
+      Function<PersistenceManager, R> work, CompletableFuture<R> future, long start) {
+    R result = null;
+    boolean committed = false;
+    Throwable failure = null;
+    try {
+      if (!future.isDone()) {
+        PersistenceManager pm = pmf.getPersistenceManager();
+        Transaction tx = pm.currentTransaction();
+        try {
+          tx.begin();
+          result = work.apply(pm);
+          if (!future.isDone()) {
+            tx.commit();
+            committed = true;
+          }
+        } finally {
+          if (tx.isActive()) {
+            tx.rollback();
+          }
+          pm.close();
+        }
+      }
+    } catch (RuntimeException | Error ex) {
+      failure = ex;
+    }
+    // Released and counted before completing, so that callers see the operation as finished
+    pending.release();
+    if (failure != null) {
+      nrOfFailed.increment();
+      latencies.record(System.nanoTime() - start);
+      future.completeExceptionally(failure);
+    } else if (committed) {
+      nrOfCompleted.increment();
+      latencies.record(System.nanoTime() - start);
+      future.complete(result);
+    }
+  }
+
+  /**
+   * Stops accepting operations and waits for the submitted ones to complete.
+   *
+   * @throws JDOFatalException if interrupted
+   */
+  @Override
+  public void close() {
+    workers.shutdown();
+    try {
+      while (!workers.awaitTermination(1, TimeUnit.SECONDS)) {
+        // Wait for the operations running in the datastore
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new JDOFatalException("Interrupted while closing the repository", ex);
+    }
+  }
+
+  /**
+   * Method returning the number of accepted operations.
+   *
+   * @return number of submitted operations
+   */
+  public long getNrOfSubmitted() {
+    return nrOfSubmitted.sum();
+  }
+
+  /**
+   * Method returning the number of operations that completed normally.
+   *
+   * @return number of completed operations
+   */
+  public long getNrOfCompleted() {
+    return nrOfCompleted.sum();
+  }
+
+  /**
+   * Method returning the number of operations that completed with an exception.
+   *
+   * @return number of failed operations
+   */
+  public long getNrOfFailed() {
+    return nrOfFailed.sum();
+  }
+
+  /**
+   * Method returning the number of operations cancelled by their callers.
+   *
+   * @return number of cancelled operations
+   */
+  public long getNrOfCancelled() {
+    return nrOfCancelled.sum();
+  }
+
+  /**
+   * Method returning the number of operations rejected because too many were pending.
+   *
+   * @return number of rejected operations
+   */
+  public long getNrOfRejected() {
+    return nrOfRejected.sum();
+  }
+
+  /**
+   * Method returning the number of submitted and not yet finished operations.
+   *
+   * @return number of pending operations
+   */
+  public int getNrOfPending() {
+    return maxPending - pending.availablePermits();
+  }
+
+  /**
+   * Method returning the number of finished operations per latency bucket, the latency being the
+   * time from the submit to the completion. Cancelled operations are not counted. Bucket 0 counts
+   * latencies below 1 microsecond, bucket i &gt; 0 latencies from 2^(i-1) up to 2^i microseconds.
+   *
+   * @return the number of operations per bucket
+   */
+  public long[] getLatencyHistogram() {
+    return latencies.getCounts();
+  }
+
+  /**
+   * Returns the upper bound of the bucket holding a percentile of the latencies.
+   *
+   * @param percentile the percentile, between 0 and 100
+   * @return the upper bound in microseconds, 0 if no operation completed
+   */
+  public long getLatencyPercentileMicros(double percentile) {
+    return latencies.getPercentileMicros(percentile);
+  }
+}
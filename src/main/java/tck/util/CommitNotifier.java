@@ -0,0 +1,263 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tck.util;
+
+import org.datanucleus.util.NucleusLogger;
+
+import javax.jdo.JDOHelper;
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import javax.jdo.Transaction;
+import javax.jdo.listener.DeleteLifecycleListener;
+import javax.jdo.listener.InstanceLifecycleEvent;
+import javax.jdo.listener.StoreLifecycleListener;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+
+/**
+ * Reports the persistent instances stored or deleted by a transaction once the transaction has
+ * committed. Caches and indexes built next to the datastore use it to invalidate or update their
+ * entries; doing so at flush time instead would let other threads cache the old state again before
+ * the commit.
+ *
+ * <p>Only changes made through PersistenceManagers passed to {@link #attach} are reported. Attach a
+ * PersistenceManager after setting its own transaction Synchronization, if any; that
+ * Synchronization is still called.
+ */
+public class CommitNotifier {
+
+  /** Receives the changes of committed transactions. */
+  public interface Listener {
+
+    /**
+     * Called after a transaction of an attached PersistenceManager has committed, in the thread
+     * that committed it. Changes made outside of a transaction are reported right away.
+     *
+     * @param changes the stored and deleted instances, in the order of the datastore writes
+     */
+    void afterCommit(List<Change> changes);
+  }
+
+  /** A persistent instance stored or deleted by a committed transaction. */
+  public static final class Change {
+    private final Object oid;
+    private final Class<?> pcClass;
+    private final boolean deleted;
+
+    Change(Object oid, Class<?> pcClass, boolean deleted) {
+      this.oid = oid;
+      this.pcClass = pcClass;
+      this.deleted = deleted;
+    }
+
+    public Object getObjectId() {
+      return oid;
+    }
+
+    public Class<?> getPersistentClass() {
+      return pcClass;
+    }
+
+    public boolean isDeleted() {
+      return deleted;
+    }
+
+    public String toString() {
+      return (deleted ? "deleted " : "stored ") + pcClass.getSimpleName() + " " + oid;
+    }
+  }
+
+  /**
+   * The changes of one commit to the instances of a class, split into the ids of the stored and of
+   * the deleted instances. The last change of an instance wins.
+   */
+  public static final class ClassChanges {
+    private static final int RELOAD_BATCH_SIZE = 1000;
+
+    private final List<Object> stored = new ArrayList<>();
+    private final List<Object> deleted = new ArrayList<>();
+
+    /**
+     * Selects the changes to instances of a class.
+     *
+     * @param changes the changes reported to a {@link Listener}
+     * @param pcClass the class, the changes to instances of its subclasses are included
+     */
+    public ClassChanges(List<Change> changes, Class<?> pcClass) {
+      Map<Object, Boolean> deletedByOid = new LinkedHashMap<>();
+      for (Change change : changes) {
+        if (pcClass.isAssignableFrom(change.getPersistentClass())) {
+          deletedByOid.remove(change.getObjectId());
+          deletedByOid.put(change.getObjectId(), change.isDeleted());
+        }
+      }
+      for (Map.Entry<Object, Boolean> entry : deletedByOid.entrySet()) {
+        (entry.getValue() ? deleted : stored).add(entry.getKey());
+      }
+    }
+
+    public List<Object> getStored() {
+      return stored;
+    }
+
+    public List<Object> getDeleted() {
+      return deleted;
+    }
+
+    /**
+     * Reads the committed state of the stored instances in a PersistenceManager of its own. The
+     * action is called within its transaction, so it can still read the fields of the instances.
+     * Nothing is read if no instance was stored.
+     *
+     * @param pmf the PersistenceManagerFactory to read from
+     * @param action called with the ids of the stored instances and the instances in the same
+     *     order, null for an instance deleted meanwhile by a PersistenceManager not attached
+     */
+    public void reloadStored(
+        PersistenceManagerFactory pmf, BiConsumer<List<Object>, List<Object>> action) {
+      if (stored.isEmpty()) {
+        return;
+      }
+      PersistenceManager pm = pmf.getPersistenceManager();
+      try {
+        pm.currentTransaction().begin();
+        List<Object> instances;
+        try {
+          instances = new ObjectIdBatchFetcher(RELOAD_BATCH_SIZE).getObjectsById(pm, stored);
+        } catch (JDOObjectNotFoundException ex) {
+          instances = new ArrayList<>(stored.size());
+          for (Object oid : stored) {
+            try {
+              instances.add(pm.getObjectById(oid));
+            } catch (JDOObjectNotFoundException notFound) {
+              instances.add(null);
+            }
+          }
+        }
+        action.accept(stored, instances);
+        pm.currentTransaction().commit();
+      } finally {
+        if (pm.currentTransaction().isActive()) {
+          pm.currentTransaction().rollback();
+        }
+        pm.close();
+      }
+    }
+  }
+
+  private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Reports the changes made through the given PersistenceManager from now on. Attaching a
+   * PersistenceManager twice has no effect.
+   *
+   * @param pm the PersistenceManager
+   */
+  public void attach(PersistenceManager pm) {
+    if (pm.getUserObject(this) != null) {
+      return;
+    }
+    PendingChanges pending = new PendingChanges(pm.currentTransaction());
+    pm.putUserObject(this, pending);
+    pm.addInstanceLifecycleListener(pending, (Class[]) null);
+  }
+
+  private void fire(List<Change> changes) {
+    for (Listener listener : listeners) {
+      try {
+        listener.afterCommit(changes);
+      } catch (RuntimeException ex) {
+        // The transaction is committed already, a failing listener must not hide that
+        NucleusLogger.GENERAL.error("CommitNotifier listener " + listener + " failed", ex);
+      }
+    }
+  }
+
+  /** Collects the changes of the current transaction of one PersistenceManager. */
+  private class PendingChanges
+      implements StoreLifecycleListener, DeleteLifecycleListener, Synchronization {
+    private final Transaction tx;
+    private final Synchronization chained;
+    private List<Change> changes = new ArrayList<>();
+
+    PendingChanges(Transaction tx) {
+      this.tx = tx;
+      this.chained = tx.getSynchronization();
+      tx.setSynchronization(this);
+    }
+
+    @Override
+    public void preStore(InstanceLifecycleEvent event) {}
+
+    @Override
+    public void postStore(InstanceLifecycleEvent event) {
+      record(event.getPersistentInstance(), false);
+    }
+
+    @Override
+    public void preDelete(InstanceLifecycleEvent event) {}
+
+    @Override
+    public void postDelete(InstanceLifecycleEvent event) {
+      record(event.getPersistentInstance(), true);
+    }
+
+    private void record(Object pc, boolean deleted) {
+      Change change = new Change(JDOHelper.getObjectId(pc), pc.getClass(), deleted);
+      if (tx.isActive()) {
+        changes.add(change);
+      } else {
+        fire(Collections.singletonList(change));
+      }
+    }
+
+    @Override
+    public void beforeCompletion() {
+      if (chained != null) {
+        chained.beforeCompletion();
+      }
+    }
+
+    @Override
+    public void afterCompletion(int status) {
+      List<Change> completed = changes;
+      changes = new ArrayList<>();
+      if (status == Status.STATUS_COMMITTED && !completed.isEmpty()) {
+        fire(Collections.unmodifiableList(completed));
+      }
+      if (chained != null) {
+        chained.afterCompletion(status);
+      }
+    }
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tck.util;
+
+import javax.jdo.FetchPlan;
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.UnaryOperator;
+
+/**
+ * Process-wide cache of detached copies of a detachable persistent class, e.g.
+ * mydomain.model.Person. A hit is answered from the cached copy without opening a
+ * PersistenceManager; a miss detaches the instance in a short transaction of its own and caches it.
+ * The cache holds at most a configured number of copies and drops the least recently used one when
+ * full.
+ *
+ * <p>The cached copies are never handed out: each call of {@link #get} returns a new instance made
+ * by the copier given to the constructor, e.g. {@code p -> new Person(p.getId(), p.getName())}, so
+ * a caller changing its instance affects neither the cache nor other threads. The changes are not
+ * written; modify the persistent instance in a PersistenceManager instead. A cached copy is
+ * dropped, and detached again on the next read, when a transaction storing or deleting its
+ * instance commits. The cache learns about commits through a {@link CommitNotifier}, so every
+ * PersistenceManager writing to the class must be attached to it.
+ *
+ * @param <T> the persistent class
+ */
+public class DetachedSnapshotCache<T> implements CommitNotifier.Listener {
+
+  private final PersistenceManagerFactory pmf;
+  private final Class<T> pcClass;
+  private final UnaryOperator<T> copier;
+  private final int maxEntries;
+
+  private final LinkedHashMap<Object, Entry<T>> entries = new LinkedHashMap<>(64, 0.75f, true);
+  private final Map<Object, Object> keysByOid = new HashMap<>();
+
+  /** Incremented on each invalidation, so copies detached before a commit are not cached. */
+  private long epoch;
+
+  private final LongAdder nrOfHits = new LongAdder();
+  private final LongAdder nrOfMisses = new LongAdder();
+  private final LongAdder nrOfInvalidations = new LongAdder();
+
+  /**
+   * Creates a cache and registers it with the notifier.
+   *
+   * @param pmf the PersistenceManagerFactory used to load missing instances
+   * @param pcClass the persistent class, must be detachable
+   * @param notifier the notifier reporting the commits of the writing PersistenceManagers
+   * @param maxEntries maximum number of cached copies
+   * @param copier returns a new instance with the values of a detached copy
+   */
+  public DetachedSnapshotCache(
+      PersistenceManagerFactory pmf,
+      Class<T> pcClass,
+      CommitNotifier notifier,
+      int maxEntries,
+      UnaryOperator<T> copier) {
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+    }
+    this.pmf = pmf;
+    this.pcClass = pcClass;
+    this.copier = copier;
+    this.maxEntries = maxEntries;
+    notifier.addListener(this);
+  }
+
+  /**
+   * Returns a copy of the instance with the given key.
+   *
+   * @param key the application identity key, as passed to PersistenceManager.getObjectById
+   * @return a new copy made by the copier, or null if no such instance exists
+   */
+  public T get(Object key) {
+    long startEpoch;
+    synchronized (this) {
+      Entry<T> entry = entries.get(key);
+      if (entry != null) {
+        nrOfHits.increment();
+        return copier.apply(entry.copy);
+      }
+      startEpoch = epoch;
+    }
+    nrOfMisses.increment();
+    PersistenceManager pm = pmf.getPersistenceManager();
+    try {
+      pm.getFetchPlan().setGroup(FetchPlan.ALL);
+      pm.currentTransaction().begin();
+      T pc;
+      try {
+        pc = pm.getObjectById(pcClass, key);
+      } catch (JDOObjectNotFoundException ex) {
+        return null;
+      }
+      Object oid = pm.getObjectId(pc);
+      T copy = pm.detachCopy(pc);
+      pm.currentTransaction().commit();
+      store(key, oid, copy, startEpoch);
+      return copier.apply(copy);
+    } finally {
+      if (pm.currentTransaction().isActive()) {
+        pm.currentTransaction().rollback();
+      }
+      pm.close();
+    }
+  }
+
+  @Override
+  public synchronized void afterCommit(List<CommitNotifier.Change> changes) {
+    for (CommitNotifier.Change change : changes) {
+      if (!pcClass.isAssignableFrom(change.getPersistentClass())) {
+        continue;
+      }
+      epoch++;
+      Object key = keysByOid.remove(change.getObjectId());
+      if (key != null) {
+        entries.remove(key);
+        nrOfInvalidations.increment();
+      }
+    }
+  }
+
+  /** Removes all cached copies. */
+  public synchronized void clear() {
+    epoch++;
+    entries.clear();
+    keysByOid.clear();
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public long getNrOfHits() {
+    return nrOfHits.sum();
+  }
+
+  public long getNrOfMisses() {
+    return nrOfMisses.sum();
+  }
+
+  /**
+   * Method returning the number of copies dropped because their instance was changed by a commit.
+   *
+   * @return number of invalidated copies
+   */
+  public long getNrOfInvalidations() {
+    return nrOfInvalidations.sum();
+  }
+
+  private synchronized void store(Object key, Object oid, T copy, long startEpoch) {
+    if (epoch != startEpoch) {
+      // A commit overlapped the load, the copy may be stale already
+      return;
+    }
+    entries.put(key, new Entry<>(oid, copy));
+    keysByOid.put(oid, key);
+    Iterator<Entry<T>> eldest = entries.values().iterator();
+    while (entries.size() > maxEntries) {
+      keysByOid.remove(eldest.next().oid);
+      eldest.remove();
+    }
+  }
+
+  private static final class Entry<T> {
+    final Object oid;
+    final T copy;
+
+    Entry(Object oid, T copy) {
+      this.oid = oid;
+      this.copy = copy;
+    }
+  }
+}
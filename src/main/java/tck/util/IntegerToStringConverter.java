@@ -32,8 +32,11 @@ public class IntegerToStringConverter implements AttributeConverter<Integer, Str
    */
   @Override
   public String convertToDatastore(Integer attributeValue) {
+    PersistenceEvents.ConversionEvent event = new PersistenceEvents.ConversionEvent();
+    event.begin();
     nrOfConvertToDatastoreCalls++;
     String datastoreValue = attributeValue != null ? attributeValue.toString() : null;
+    event.end(getClass(), "convertToDatastore");
     return datastoreValue;
   }
 
@@ -46,8 +49,11 @@ public class IntegerToStringConverter implements AttributeConverter<Integer, Str
    */
   @Override
   public Integer convertToAttribute(String datastoreValue) {
+    PersistenceEvents.ConversionEvent event = new PersistenceEvents.ConversionEvent();
+    event.begin();
     nrOfConvertToAttributeCalls++;
     Integer attributeValue = datastoreValue != null ? Integer.valueOf(datastoreValue) : null;
+    event.end(getClass(), "convertToAttribute");
     return attributeValue;
   }
 
@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tck.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies with power of 2 microsecond buckets. Bucket 0 counts latencies
+ * below 1 microsecond, bucket i &gt; 0 latencies from 2^(i-1) up to 2^i microseconds. The last
+ * bucket takes all latencies of 2^22 microseconds or more.
+ */
+public final class LatencyHistogram {
+
+  /** Number of buckets. */
+  public static final int NR_OF_BUCKETS = 24;
+
+  private final AtomicLongArray counts = new AtomicLongArray(NR_OF_BUCKETS);
+
+  /**
+   * Counts a latency in its bucket.
+   *
+   * @param nanos the latency in nanoseconds
+   */
+  public void record(long nanos) {
+    long micros = nanos / 1000;
+    int bucket = 64 - Long.numberOfLeadingZeros(micros);
+    counts.incrementAndGet(Math.min(bucket, NR_OF_BUCKETS - 1));
+  }
+
+  /**
+   * Method returning the number of latencies per bucket. The buckets are read one by one, so
+   * latencies recorded meanwhile may be counted in some and not yet in others.
+   *
+   * @return the number of latencies per bucket
+   */
+  public long[] getCounts() {
+    long[] histogram = new long[NR_OF_BUCKETS];
+    for (int i = 0; i < histogram.length; i++) {
+      histogram[i] = counts.get(i);
+    }
+    return histogram;
+  }
+
+  /**
+   * Returns the upper bound of the bucket holding a percentile of the recorded latencies.
+   *
+   * @param percentile the percentile, between 0 and 100
+   * @return the upper bound in microseconds, 0 if nothing was recorded
+   */
+  public long getPercentileMicros(double percentile) {
+    return percentileMicros(getCounts(), percentile);
+  }
+
+  /**
+   * Method returning the exclusive upper bound of a bucket.
+   *
+   * @param bucket the bucket
+   * @return 2^bucket microseconds, or Long.MAX_VALUE for the last bucket
+   */
+  public static long getBucketUpperBoundMicros(int bucket) {
+    return bucket >= NR_OF_BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+  }
+
+  /**
+   * Returns the upper bound of the bucket holding a percentile of the latencies counted by a
+   * histogram read before.
+   *
+   * @param histogram the number of latencies per bucket, as returned by {@link #getCounts()}
+   * @param percentile the percentile, between 0 and 100
+   * @return the upper bound in microseconds, 0 if the histogram is empty
+   */
+  public static long percentileMicros(long[] histogram, double percentile) {
+    long total = 0;
+    for (long count : histogram) {
+      total += count;
+    }
+    long rank = (long) Math.ceil(total * percentile / 100);
+    long count = 0;
+    for (int i = 0; i < histogram.length; i++) {
+      count += histogram[i];
+      if (count >= rank && count > 0) {
+        return getBucketUpperBoundMicros(i);
+      }
+    }
+    return 0;
+  }
+}
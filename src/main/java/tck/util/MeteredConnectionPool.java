@@ -0,0 +1,680 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tck.util;
+
+import org.datanucleus.util.NucleusLogger;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * JDBC connection pool with metrics, used by DataNucleus with
+ * datanucleus.connectionPoolingType=tck-metered, see {@link MeteredConnectionPoolFactory}.
+ *
+ * <p>At most maxSize connections are handed out at a time. A caller waits up to maxWait
+ * milliseconds for a connection and gets an SQLTransientConnectionException after that. Idle
+ * connections are reused last-in first-out and are checked with {@link Connection#isValid} before
+ * they are handed out again, if a validation timeout is set. A connection returned with an open
+ * transaction is rolled back. Each connection caches up to maxStatements prepared statements by
+ * SQL; closing such a statement returns it to the cache, with the parameters cleared and settings
+ * like the fetch size, maximum rows and query timeout set back to their values before the use. The
+ * connections of a read-only pool are set read-only, which the driver may use for optimizations.
+ *
+ * <p>The metrics cover the number of active, idle and waiting callers, timeouts, validation
+ * failures, statement cache hits and a histogram of the wait times with power of 2 microsecond
+ * buckets.
+ *
+ * <p>DataNucleus creates a pool for the transactional and one for the non-transactional
+ * connections of a PersistenceManagerFactory. Both share one pool per connection URL, user and
+ * read-only flag, created by {@link #acquire} and closed when the last user has called {@link
+ * #release}. Its settings are those of the first caller; a warning is logged for a later caller
+ * asking for other settings.
+ */
+public class MeteredConnectionPool implements DataSource {
+
+  /** Number of wait time buckets. The last one takes all waits of 2^22 microseconds or more. */
+  public static final int NR_OF_WAIT_BUCKETS = LatencyHistogram.NR_OF_BUCKETS;
+
+  private static final Map<String, MeteredConnectionPool> POOLS = new HashMap<>();
+
+  private final String url;
+  private final Properties connectionProperties;
+  private final int maxSize;
+  private final long maxWaitMillis;
+  private final int validationTimeoutSeconds;
+  private final int maxStatements;
+  private final boolean readOnly;
+
+  private final Semaphore permits;
+  private final Deque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+  private volatile boolean closed;
+  private int refCount;
+
+  private final AtomicInteger nrOfActive = new AtomicInteger();
+  private final AtomicInteger nrOfPending = new AtomicInteger();
+  private final LongAdder nrOfCreated = new LongAdder();
+  private final LongAdder nrOfAcquired = new LongAdder();
+  private final LongAdder nrOfTimeouts = new LongAdder();
+  private final LongAdder nrOfValidationFailures = new LongAdder();
+  private final LongAdder nrOfStatementCacheHits = new LongAdder();
+  private final LongAdder nrOfStatementCacheMisses = new LongAdder();
+  private final LatencyHistogram waitHistogram = new LatencyHistogram();
+
+  /**
+   * Creates a pool. Connections are opened with the DriverManager.
+   *
+   * @param url the connection URL
+   * @param connectionProperties the connection properties, e.g. user and password
+   * @param maxSize maximum number of connections handed out at a time
+   * @param maxWaitMillis maximum wait for a connection
+   * @param validationTimeoutSeconds timeout of the validation of idle connections, 0 for none
+   * @param maxStatements maximum number of cached prepared statements per connection, 0 for none
+   * @param readOnly whether the connections are set read-only
+   */
+  public MeteredConnectionPool(
+      String url,
+      Properties connectionProperties,
+      int maxSize,
+      long maxWaitMillis,
+      int validationTimeoutSeconds,
+      int maxStatements,
+      boolean readOnly) {
+    if (maxSize < 1 || maxWaitMillis < 0 || validationTimeoutSeconds < 0 || maxStatements < 0) {
+      throw new IllegalArgumentException(
+          "Invalid pool settings: maxSize="
+              + maxSize
+              + ", maxWait="
+              + maxWaitMillis
+              + ", validationTimeout="
+              + validationTimeoutSeconds
+              + ", maxStatements="
+              + maxStatements);
+    }
+    this.url = url;
+    this.connectionProperties = (Properties) connectionProperties.clone();
+    this.maxSize = maxSize;
+    this.maxWaitMillis = maxWaitMillis;
+    this.validationTimeoutSeconds = validationTimeoutSeconds;
+    this.maxStatements = maxStatements;
+    this.readOnly = readOnly;
+    this.permits = new Semaphore(maxSize, true);
+  }
+
+  /**
+   * Returns the shared pool of a connection URL, user and read-only flag, creating it if there is
+   * none.
+   *
+   * @param url the connection URL
+   * @param connectionProperties the connection properties, e.g. user and password
+   * @param maxSize maximum number of connections handed out at a time
+   * @param maxWaitMillis maximum wait for a connection
+   * @param validationTimeoutSeconds timeout of the validation of idle connections, 0 for none
+   * @param maxStatements maximum number of cached prepared statements per connection, 0 for none
+   * @param readOnly whether the connections are set read-only
+   * @return the pool, to be released with {@link #release}
+   */
+  public static MeteredConnectionPool acquire(
+      String url,
+      Properties connectionProperties,
+      int maxSize,
+      long maxWaitMillis,
+      int validationTimeoutSeconds,
+      int maxStatements,
+      boolean readOnly) {
+    String key = url + '\u0000' + connectionProperties.getProperty("user") + '\u0000' + readOnly;
+    synchronized (POOLS) {
+      MeteredConnectionPool pool = POOLS.get(key);
+      if (pool == null) {
+        pool =
+            new MeteredConnectionPool(
+                url,
+                connectionProperties,
+                maxSize,
+                maxWaitMillis,
+                validationTimeoutSeconds,
+                maxStatements,
+                readOnly);
+        POOLS.put(key, pool);
+      } else if (pool.maxSize != maxSize
+          || pool.maxWaitMillis != maxWaitMillis
+          || pool.validationTimeoutSeconds != validationTimeoutSeconds
+          || pool.maxStatements != maxStatements) {
+        NucleusLogger.CONNECTION.warn(
+            "Connection pool of "
+                + url
+                + " is shared with the settings of its first user, maxSize="
+                + pool.maxSize
+                + ", maxWait="
+                + pool.maxWaitMillis
+                + ", validationTimeout="
+                + pool.validationTimeoutSeconds
+                + ", maxStatements="
+                + pool.maxStatements
+                + ", instead of maxSize="
+                + maxSize
+                + ", maxWait="
+                + maxWaitMillis
+                + ", validationTimeout="
+                + validationTimeoutSeconds
+                + ", maxStatements="
+                + maxStatements);
+      }
+      pool.refCount++;
+      return pool;
+    }
+  }
+
+  /**
+   * Method returning the shared read-write pool of a connection URL.
+   *
+   * @param url the connection URL
+   * @return the pool, or null if there is none
+   */
+  public static MeteredConnectionPool forUrl(String url) {
+    return forUrl(url, false);
+  }
+
+  /**
+   * Method returning a shared pool of a connection URL.
+   *
+   * @param url the connection URL
+   * @param readOnly whether the read-only or the read-write pool is returned
+   * @return the pool, or null if there is none
+   */
+  public static MeteredConnectionPool forUrl(String url, boolean readOnly) {
+    synchronized (POOLS) {
+      for (MeteredConnectionPool pool : POOLS.values()) {
+        if (pool.url.equals(url) && pool.readOnly == readOnly) {
+          return pool;
+        }
+      }
+      return null;
+    }
+  }
+
+  /** Releases a pool returned by {@link #acquire} and closes it when it is no longer used. */
+  public void release() {
+    synchronized (POOLS) {
+      if (--refCount > 0) {
+        return;
+      }
+      POOLS.values().remove(this);
+    }
+    close();
+  }
+
+  /**
+   * Closes the pool and all idle connections. Active connections are closed when they are
+   * returned.
+   */
+  public void close() {
+    closed = true;
+    PooledConnection pooled;
+    while ((pooled = idle.poll()) != null) {
+      pooled.closePhysical();
+    }
+  }
+
+  @Override
+  public Connection getConnection() throws SQLException {
+    if (closed) {
+      throw new SQLException("Connection pool is closed", "08003");
+    }
+    long start = System.nanoTime();
+    boolean acquired;
+    nrOfPending.incrementAndGet();
+    try {
+      acquired = permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for a connection", "08001", ex);
+    } finally {
+      nrOfPending.decrementAndGet();
+    }
+    waitHistogram.record(System.nanoTime() - start);
+    if (!acquired) {
+      nrOfTimeouts.increment();
+      throw new SQLTransientConnectionException(
+          "No connection available within " + maxWaitMillis + " ms, pool size " + maxSize, "08001");
+    }
+    try {
+      PooledConnection pooled = takeIdle();
+      if (pooled == null) {
+        Connection physical = DriverManager.getConnection(url, connectionProperties);
+        physical.setReadOnly(readOnly);
+        pooled = new PooledConnection(physical);
+        nrOfCreated.increment();
+      }
+      nrOfActive.incrementAndGet();
+      nrOfAcquired.increment();
+      return pooled.newHandle();
+    } catch (SQLException | RuntimeException ex) {
+      permits.release();
+      throw ex;
+    }
+  }
+
+  /** All users share the pool's connections, so the credentials must match the pool's. */
+  @Override
+  public Connection getConnection(String username, String password) throws SQLException {
+    if (!Objects.equals(username, connectionProperties.getProperty("user"))) {
+      throw new SQLFeatureNotSupportedException("Connections of other users are not pooled");
+    }
+    return getConnection();
+  }
+
+  private PooledConnection takeIdle() {
+    PooledConnection pooled;
+    while ((pooled = idle.pollFirst()) != null) {
+      if (validationTimeoutSeconds == 0 || pooled.isValid()) {
+        return pooled;
+      }
+      nrOfValidationFailures.increment();
+      pooled.closePhysical();
+    }
+    return null;
+  }
+
+  private void giveBack(PooledConnection pooled) {
+    try {
+      nrOfActive.decrementAndGet();
+      if (closed || !pooled.reset()) {
+        pooled.closePhysical();
+      } else {
+        idle.addFirst(pooled);
+        if (closed && idle.remove(pooled)) {
+          // Closed concurrently
+          pooled.closePhysical();
+        }
+      }
+    } finally {
+      permits.release();
+    }
+  }
+
+  /**
+   * Method returning the exclusive upper bound of a wait time bucket.
+   *
+   * @param bucket the bucket
+   * @return 2^bucket microseconds, or Long.MAX_VALUE for the last bucket
+   */
+  public static long getWaitBucketUpperBoundMicros(int bucket) {
+    return LatencyHistogram.getBucketUpperBoundMicros(bucket);
+  }
+
+  /**
+   * Method returning the number of waits per wait time bucket. Bucket 0 counts waits below 1
+   * microsecond, bucket i &gt; 0 waits from 2^(i-1) up to 2^i microseconds.
+   *
+   * @return the number of waits per bucket
+   */
+  public long[] getWaitHistogram() {
+    return waitHistogram.getCounts();
+  }
+
+  /**
+   * Returns the upper bound of the bucket holding a percentile of the wait times.
+   *
+   * @param percentile the percentile, between 0 and 100
+   * @return the upper bound in microseconds, 0 if there were no waits
+   */
+  public long getWaitPercentileMicros(double percentile) {
+    return waitHistogram.getPercentileMicros(percentile);
+  }
+
+  public boolean isReadOnly() {
+    return readOnly;
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public int getNrOfActive() {
+    return nrOfActive.get();
+  }
+
+  public int getNrOfIdle() {
+    return idle.size();
+  }
+
+  /**
+   * Method returning the number of callers waiting for a connection.
+   *
+   * @return number of waiting callers
+   */
+  public int getNrOfPending() {
+    return nrOfPending.get();
+  }
+
+  public long getNrOfCreated() {
+    return nrOfCreated.sum();
+  }
+
+  public long getNrOfAcquired() {
+    return nrOfAcquired.sum();
+  }
+
+  public long getNrOfTimeouts() {
+    return nrOfTimeouts.sum();
+  }
+
+  public long getNrOfValidationFailures() {
+    return nrOfValidationFailures.sum();
+  }
+
+  public long getNrOfStatementCacheHits() {
+    return nrOfStatementCacheHits.sum();
+  }
+
+  public long getNrOfStatementCacheMisses() {
+    return nrOfStatementCacheMisses.sum();
+  }
+
+  @Override
+  public PrintWriter getLogWriter() {
+    return DriverManager.getLogWriter();
+  }
+
+  @Override
+  public void setLogWriter(PrintWriter out) {
+    DriverManager.setLogWriter(out);
+  }
+
+  @Override
+  public void setLoginTimeout(int seconds) {
+    DriverManager.setLoginTimeout(seconds);
+  }
+
+  @Override
+  public int getLoginTimeout() {
+    return DriverManager.getLoginTimeout();
+  }
+
+  @Override
+  public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+    throw new SQLFeatureNotSupportedException();
+  }
+
+  @Override
+  public <T> T unwrap(Class<T> iface) throws SQLException {
+    if (iface.isInstance(this)) {
+      return iface.cast(this);
+    }
+    throw new SQLException("Not a wrapper of " + iface.getName());
+  }
+
+  @Override
+  public boolean isWrapperFor(Class<?> iface) {
+    return iface.isInstance(this);
+  }
+
+  private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException ex) {
+      throw ex.getCause();
+    }
+  }
+
+  /** A physical connection with its statement cache. */
+  private final class PooledConnection {
+    private final Connection physical;
+    private final Map<List<Object>, Deque<PreparedStatement>> statements = new HashMap<>();
+    private int nrOfCachedStatements;
+
+    PooledConnection(Connection physical) {
+      this.physical = physical;
+    }
+
+    Connection newHandle() {
+      return (Connection)
+          Proxy.newProxyInstance(
+              Connection.class.getClassLoader(),
+              new Class<?>[] {Connection.class},
+              new ConnectionHandle(this));
+    }
+
+    boolean isValid() {
+      try {
+        return physical.isValid(validationTimeoutSeconds);
+      } catch (SQLException ex) {
+        return false;
+      }
+    }
+
+    /** Rolls back an open transaction, returns false if the connection is unusable. */
+    boolean reset() {
+      try {
+        if (physical.isClosed()) {
+          return false;
+        }
+        if (!physical.getAutoCommit()) {
+          physical.rollback();
+          physical.setAutoCommit(true);
+        }
+        if (physical.isReadOnly() != readOnly) {
+          physical.setReadOnly(readOnly);
+        }
+        return true;
+      } catch (SQLException ex) {
+        return false;
+      }
+    }
+
+    void closePhysical() {
+      try {
+        physical.close();
+      } catch (SQLException ex) {
+        // the connection is discarded anyway
+      }
+    }
+
+    PreparedStatement prepare(Connection handle, Method method, Object[] args) throws Throwable {
+      List<Object> key = Arrays.asList(args);
+      Deque<PreparedStatement> cached = statements.get(key);
+      PreparedStatement ps = cached == null ? null : cached.pollFirst();
+      if (ps != null && !ps.isClosed()) {
+        nrOfCachedStatements--;
+        nrOfStatementCacheHits.increment();
+      } else {
+        ps = (PreparedStatement) invoke(physical, method, args);
+        nrOfStatementCacheMisses.increment();
+      }
+      return (PreparedStatement)
+          Proxy.newProxyInstance(
+              PreparedStatement.class.getClassLoader(),
+              new Class<?>[] {PreparedStatement.class},
+              new StatementHandle(handle, this, key, ps));
+    }
+
+    void giveBackStatement(List<Object> key, PreparedStatement ps, boolean reusable)
+        throws SQLException {
+      if (!reusable || nrOfCachedStatements >= maxStatements) {
+        ps.close();
+        return;
+      }
+      ps.clearParameters();
+      ps.clearBatch();
+      statements.computeIfAbsent(key, k -> new ArrayDeque<>()).addFirst(ps);
+      nrOfCachedStatements++;
+    }
+  }
+
+  /** The connection handed out, returning the physical connection to the pool on close. */
+  private final class ConnectionHandle implements InvocationHandler {
+    private final PooledConnection pooled;
+    private boolean handleClosed;
+
+    ConnectionHandle(PooledConnection pooled) {
+      this.pooled = pooled;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      switch (method.getName()) {
+        case "close":
+          if (!handleClosed) {
+            handleClosed = true;
+            giveBack(pooled);
+          }
+          return null;
+        case "isClosed":
+          return handleClosed || pooled.physical.isClosed();
+        case "equals":
+          return proxy == args[0];
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "toString":
+          return "Pooled " + pooled.physical;
+        default:
+          break;
+      }
+      if (handleClosed) {
+        throw new SQLException("Connection is closed", "08003");
+      }
+      if (maxStatements > 0 && method.getName().equals("prepareStatement") && isCacheable(args)) {
+        return pooled.prepare((Connection) proxy, method, args);
+      }
+      return MeteredConnectionPool.invoke(pooled.physical, method, args);
+    }
+
+    /** Statements with generated key columns are not cached. */
+    private boolean isCacheable(Object[] args) {
+      for (Object arg : args) {
+        if (arg != null && arg.getClass().isArray()) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /** A cached prepared statement, returning to the statement cache on close. */
+  private static final class StatementHandle implements InvocationHandler {
+    /** Setters of statement settings that can be restored, with their getters. */
+    private static final Map<String, String> SETTINGS = new HashMap<>();
+
+    static {
+      SETTINGS.put("setFetchSize", "getFetchSize");
+      SETTINGS.put("setFetchDirection", "getFetchDirection");
+      SETTINGS.put("setMaxRows", "getMaxRows");
+      SETTINGS.put("setLargeMaxRows", "getLargeMaxRows");
+      SETTINGS.put("setMaxFieldSize", "getMaxFieldSize");
+      SETTINGS.put("setQueryTimeout", "getQueryTimeout");
+      SETTINGS.put("setPoolable", "isPoolable");
+    }
+
+    private final Connection connection;
+    private final PooledConnection pooled;
+    private final List<Object> key;
+    private final PreparedStatement ps;
+    /** The values before the first call of each setter, in the order of the calls. */
+    private final Map<Method, Object> originalSettings = new LinkedHashMap<>();
+    private boolean reusable = true;
+    private boolean handleClosed;
+
+    StatementHandle(
+        Connection connection, PooledConnection pooled, List<Object> key, PreparedStatement ps) {
+      this.connection = connection;
+      this.pooled = pooled;
+      this.key = key;
+      this.ps = ps;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      switch (method.getName()) {
+        case "close":
+          if (!handleClosed) {
+            handleClosed = true;
+            pooled.giveBackStatement(key, ps, reusable && restoreSettings());
+          }
+          return null;
+        case "isClosed":
+          return handleClosed || ps.isClosed();
+        case "getConnection":
+          return connection;
+        case "equals":
+          return proxy == args[0];
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        default:
+          break;
+      }
+      if (handleClosed) {
+        throw new SQLException("Statement is closed");
+      }
+      String getter = SETTINGS.get(method.getName());
+      if (getter != null) {
+        if (!originalSettings.containsKey(method)) {
+          originalSettings.put(
+              method, MeteredConnectionPool.invoke(ps, Statement.class.getMethod(getter), null));
+        }
+      } else if (method.getName().equals("setCursorName")
+          || method.getName().equals("setEscapeProcessing")
+          || method.getName().equals("closeOnCompletion")) {
+        // Cannot be read back, so the statement is not cached
+        reusable = false;
+      }
+      return MeteredConnectionPool.invoke(ps, method, args);
+    }
+
+    /**
+     * Restores the settings changed through this handle, so that the next user of the cached
+     * statement gets the settings of a new one.
+     *
+     * @return whether all settings were restored
+     */
+    private boolean restoreSettings() {
+      try {
+        for (Map.Entry<Method, Object> setting : originalSettings.entrySet()) {
+          MeteredConnectionPool.invoke(ps, setting.getKey(), new Object[] {setting.getValue()});
+        }
+        return true;
+      } catch (Throwable ex) {
+        return false;
+      }
+    }
+  }
+}
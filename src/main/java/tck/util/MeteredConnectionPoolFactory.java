@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tck.util;
+
+import org.datanucleus.store.StoreManager;
+import org.datanucleus.store.rdbms.connectionpool.ConnectionPool;
+import org.datanucleus.store.rdbms.connectionpool.ConnectionPoolFactory;
+
+import javax.sql.DataSource;
+import java.util.Properties;
+
+/**
+ * DataNucleus connection pool plugin creating a {@link MeteredConnectionPool}, see plugin.xml.
+ * Enabled with datanucleus.connectionPoolingType=tck-metered and configured with the standard
+ * DataNucleus pool properties:
+ *
+ * <ul>
+ *   <li>datanucleus.connectionPool.maxPoolSize: maximum number of connections, default 10
+ *   <li>datanucleus.connectionPool.maxWait: maximum wait for a connection in milliseconds,
+ *       default 10000
+ *   <li>datanucleus.connectionPool.validationTimeout: timeout of the validation of idle
+ *       connections in seconds, 0 (the default) for no validation
+ *   <li>datanucleus.connectionPool.maxStatements: maximum number of cached prepared statements
+ *       per connection, 0 (the default) for no caching
+ *   <li>datanucleus.connectionPool.recordSql: true to record the statements with {@link
+ *       SqlRecorder}, false (the default) otherwise
+ * </ul>
+ *
+ * <p>The connections of a read-only PersistenceManagerFactory (javax.jdo.option.ReadOnly) come
+ * from a separate pool and are set read-only.
+ */
+public class MeteredConnectionPoolFactory implements ConnectionPoolFactory {
+
+  public static final String PROPERTY_MAX_POOL_SIZE = "datanucleus.connectionPool.maxPoolSize";
+  public static final String PROPERTY_MAX_WAIT = "datanucleus.connectionPool.maxWait";
+  public static final String PROPERTY_VALIDATION_TIMEOUT =
+      "datanucleus.connectionPool.validationTimeout";
+  public static final String PROPERTY_MAX_STATEMENTS = "datanucleus.connectionPool.maxStatements";
+  public static final String PROPERTY_RECORD_SQL = "datanucleus.connectionPool.recordSql";
+
+  private static final String PROPERTY_READ_ONLY = "datanucleus.readOnlyDatastore";
+  private static final int DEFAULT_MAX_POOL_SIZE = 10;
+  private static final int DEFAULT_MAX_WAIT = 10_000;
+
+  @Override
+  public ConnectionPool createConnectionPool(StoreManager storeMgr) {
+    Properties props = new Properties();
+    if (storeMgr.getConnectionUserName() != null) {
+      props.setProperty("user", storeMgr.getConnectionUserName());
+    }
+    if (storeMgr.getConnectionPassword() != null) {
+      props.setProperty("password", storeMgr.getConnectionPassword());
+    }
+    MeteredConnectionPool pool =
+        MeteredConnectionPool.acquire(
+            storeMgr.getConnectionURL(),
+            props,
+            getIntProperty(storeMgr, PROPERTY_MAX_POOL_SIZE, DEFAULT_MAX_POOL_SIZE),
+            getIntProperty(storeMgr, PROPERTY_MAX_WAIT, DEFAULT_MAX_WAIT),
+            getIntProperty(storeMgr, PROPERTY_VALIDATION_TIMEOUT, 0),
+            getIntProperty(storeMgr, PROPERTY_MAX_STATEMENTS, 0),
+            storeMgr.hasProperty(PROPERTY_READ_ONLY)
+                && storeMgr.getBooleanProperty(PROPERTY_READ_ONLY));
+    boolean recordSql =
+        storeMgr.hasProperty(PROPERTY_RECORD_SQL)
+            && storeMgr.getBooleanProperty(PROPERTY_RECORD_SQL);
+    DataSource dataSource = recordSql ? SqlRecorder.wrap(pool) : pool;
+    return new ConnectionPool() {
+      @Override
+      public void close() {
+        pool.release();
+      }
+
+      @Override
+      public DataSource getDataSource() {
+        return dataSource;
+      }
+    };
+  }
+
+  private static int getIntProperty(StoreManager storeMgr, String name, int defaultValue) {
+    return storeMgr.hasProperty(name) ? storeMgr.getIntProperty(name) : defaultValue;
+  }
+}
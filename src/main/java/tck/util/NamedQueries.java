@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tck.util;
+
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import javax.jdo.Query;
+import javax.jdo.metadata.QueryMetadata;
+import javax.jdo.metadata.TypeMetadata;
+
+/**
+ * Helper compiling the named queries of persistent classes when a PersistenceManagerFactory is
+ * created. DataNucleus keeps query compilations in a cache of the PersistenceManagerFactory, so
+ * later executions of a named query in any PersistenceManager and thread skip parsing and
+ * compiling the JDOQL string.
+ *
+ * <p>The named queries are declared in package.jdo for the tck.pc classes and with the Query
+ * annotation for mydomain.model.Person. Their names are prefixed with the simple class name, e.g.
+ * PCRectAnnotated.byUpperLeft.
+ */
+public final class NamedQueries {
+
+  private NamedQueries() {}
+
+  /**
+   * Compiles all named queries declared for the given classes.
+   *
+   * @param pmf the PersistenceManagerFactory caching the compilations
+   * @param classes the persistent classes
+   * @return number of compiled queries
+   */
+  public static int warmUp(PersistenceManagerFactory pmf, Class<?>... classes) {
+    int nrOfQueries = 0;
+    PersistenceManager pm = pmf.getPersistenceManager();
+    try {
+      for (Class<?> pcClass : classes) {
+        TypeMetadata metadata = pmf.getMetadata(pcClass.getName());
+        if (metadata == null) {
+          continue;
+        }
+        for (QueryMetadata queryMetadata : metadata.getQueries()) {
+          compile(pm, pcClass, queryMetadata.getName());
+          nrOfQueries++;
+        }
+      }
+    } finally {
+      pm.close();
+    }
+    return nrOfQueries;
+  }
+
+  private static void compile(PersistenceManager pm, Class<?> pcClass, String name) {
+    try (Query<?> query = pm.newNamedQuery(pcClass, name)) {
+      query.compile();
+    } catch (Exception ex) {
+      throw ex instanceof RuntimeException
+          ? (RuntimeException) ex
+          : new IllegalStateException(ex);
+    }
+  }
+}
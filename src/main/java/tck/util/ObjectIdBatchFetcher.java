@@ -0,0 +1,227 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tck.util;
+
+import org.datanucleus.util.NucleusLogger;
+
+import javax.jdo.FetchPlan;
+import javax.jdo.JDOHelper;
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.ObjectState;
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import javax.jdo.Query;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Resolves many object ids with few datastore round trips. Instead of one SELECT per
+ * getObjectById, the ids that are neither in the level 1 nor in the level 2 cache are grouped by
+ * class and loaded with one IN-list query per class and batch.
+ *
+ * <p>{@link #iterator} additionally loads the next batch in the background while the caller
+ * processes the current one. The background load uses its own PersistenceManager, because a
+ * PersistenceManager must not be used by two threads, and fills the level 2 cache of the
+ * PersistenceManagerFactory, from which the caller's PersistenceManager then takes the instances.
+ */
+public class ObjectIdBatchFetcher {
+
+  private static final String OID_FILTER = ":oids.contains(JDOHelper.getObjectId(this))";
+
+  private final int batchSize;
+  private final LongAdder nrOfQueries = new LongAdder();
+
+  /**
+   * Creates a fetcher.
+   *
+   * @param batchSize maximum number of ids per IN-list query
+   */
+  public ObjectIdBatchFetcher(int batchSize) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+    }
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Returns the persistent instances for the given object ids, in the order of the ids.
+   *
+   * @param pm the PersistenceManager the instances are returned in
+   * @param oids the object ids to resolve
+   * @return the persistent instances, one per object id
+   * @throws JDOObjectNotFoundException if an object id does not exist in the datastore
+   */
+  public List<Object> getObjectsById(PersistenceManager pm, Collection<?> oids) {
+    List<Object> result = new ArrayList<>(oids.size());
+    List<Object> batch = new ArrayList<>(batchSize);
+    for (Object oid : oids) {
+      batch.add(oid);
+      if (batch.size() == batchSize) {
+        result.addAll(resolve(pm, batch));
+        batch.clear();
+      }
+    }
+    result.addAll(resolve(pm, batch));
+    return result;
+  }
+
+  /**
+   * Returns an iterator over the persistent instances for the given object ids, in the order of the
+   * ids. While the caller processes one batch, the next batch is loaded into the level 2 cache
+   * using the given executor.
+   *
+   * @param pm the PersistenceManager the instances are returned in
+   * @param oids the object ids to resolve
+   * @param executor the executor running the background loads
+   * @return iterator over the persistent instances
+   */
+  public Iterator<Object> iterator(PersistenceManager pm, List<?> oids, Executor executor) {
+    return new PrefetchingIterator(pm, oids, executor);
+  }
+
+  /**
+   * Method returning the number of IN-list queries executed by this fetcher.
+   *
+   * @return number of executed queries
+   */
+  public long getNrOfQueries() {
+    return nrOfQueries.sum();
+  }
+
+  /** Returns the instances for one batch, querying the datastore only for unloaded ones. */
+  private List<Object> resolve(PersistenceManager pm, List<?> batch) {
+    List<Object> result = new ArrayList<>(batch.size());
+    Map<Class<?>, List<Object>> unloaded = new LinkedHashMap<>();
+    for (Object oid : batch) {
+      // Does not access the datastore, returns a hollow instance if not cached. Loaded instances
+      // outside a datastore transaction report the same state, they are just queried again.
+      Object pc = pm.getObjectById(oid, false);
+      result.add(pc);
+      if (JDOHelper.getObjectState(pc) == ObjectState.HOLLOW_PERSISTENT_NONTRANSACTIONAL) {
+        unloaded.computeIfAbsent(pc.getClass(), c -> new ArrayList<>()).add(oid);
+      }
+    }
+    for (Map.Entry<Class<?>, List<Object>> entry : unloaded.entrySet()) {
+      Set<Object> found = load(pm, entry.getKey(), entry.getValue());
+      for (Object oid : entry.getValue()) {
+        if (!found.contains(oid)) {
+          throw new JDOObjectNotFoundException(
+              "No object with id " + oid + " in the datastore", oid);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Loads the instances of one class with one IN-list query, filling the hollow instances.
+   *
+   * @return the object ids of the instances found
+   */
+  private <T> Set<Object> load(PersistenceManager pm, Class<T> pcClass, List<Object> oids) {
+    try (Query<T> query = pm.newQuery(pcClass, OID_FILTER)) {
+      query.getFetchPlan().addGroup(FetchPlan.ALL);
+      query.setParameters(oids);
+      List<T> loaded = query.executeList();
+      nrOfQueries.increment();
+      Set<Object> found = new HashSet<>(loaded.size() * 2);
+      for (T pc : loaded) {
+        found.add(pm.getObjectId(pc));
+      }
+      return found;
+    } catch (Exception ex) {
+      throw ex instanceof RuntimeException
+          ? (RuntimeException) ex
+          : new IllegalStateException(ex);
+    }
+  }
+
+  /** Loads one batch in its own PersistenceManager so the instances end up in the L2 cache. */
+  private void prefetch(PersistenceManagerFactory pmf, List<?> batch) {
+    PersistenceManager pm = pmf.getPersistenceManager();
+    try {
+      pm.currentTransaction().begin();
+      resolve(pm, batch);
+      pm.currentTransaction().commit();
+    } catch (RuntimeException ex) {
+      // Only a cache warm-up, the caller's PersistenceManager loads or reports the batch itself
+      NucleusLogger.CACHE.debug("Prefetch of " + batch.size() + " object ids failed", ex);
+    } finally {
+      if (pm.currentTransaction().isActive()) {
+        pm.currentTransaction().rollback();
+      }
+      pm.close();
+    }
+  }
+
+  private class PrefetchingIterator implements Iterator<Object> {
+    private final PersistenceManager pm;
+    private final List<?> oids;
+    private final Executor executor;
+    private int nextBatchStart;
+    private CompletableFuture<Void> nextBatchLoad;
+    private Iterator<Object> current = new ArrayList<>().iterator();
+
+    PrefetchingIterator(PersistenceManager pm, List<?> oids, Executor executor) {
+      this.pm = pm;
+      this.oids = oids;
+      this.executor = executor;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return current.hasNext() || nextBatchStart < oids.size();
+    }
+
+    @Override
+    public Object next() {
+      if (!current.hasNext()) {
+        if (nextBatchStart >= oids.size()) {
+          throw new NoSuchElementException();
+        }
+        List<?> batch = batch(nextBatchStart);
+        if (nextBatchLoad != null) {
+          nextBatchLoad.join();
+        }
+        nextBatchStart += batch.size();
+        if (nextBatchStart < oids.size()) {
+          List<?> following = batch(nextBatchStart);
+          PersistenceManagerFactory pmf = pm.getPersistenceManagerFactory();
+          nextBatchLoad = CompletableFuture.runAsync(() -> prefetch(pmf, following), executor);
+        } else {
+          nextBatchLoad = null;
+        }
+        current = resolve(pm, batch).iterator();
+      }
+      return current.next();
+    }
+
+    private List<?> batch(int start) {
+      return oids.subList(start, Math.min(start + batchSize, oids.size()));
+    }
+  }
+}
@@ -0,0 +1,376 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tck.util;
+
+import org.datanucleus.NucleusContext;
+import org.datanucleus.cache.AbstractLevel2Cache;
+import org.datanucleus.cache.CacheUniqueKey;
+import org.datanucleus.cache.CachedPC;
+import org.datanucleus.util.NucleusLogger;
+import tck.model.ConvertiblePoint;
+import tck.model.Point;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * DataNucleus level 2 cache keeping the cached field values off the Java heap, so that millions of
+ * cached instances do not add to the work of the garbage collector. Each cached instance is
+ * serialized into a compact binary form and stored in an {@link OffHeapSlabStore}; only the object
+ * ids stay on the heap.
+ *
+ * <p>The cache is registered as level 2 cache type "offheap" in plugin.xml and enabled with
+ * <code>datanucleus.cache.level2.type=offheap</code>. It is configured with the properties
+ *
+ * <ul>
+ *   <li>datanucleus.cache.level2.maxSize: maximum number of cached instances (default unbounded)
+ *   <li>datanucleus.cache.level2.offheap.capacity: off-heap memory in bytes (default 64 MB)
+ *   <li>datanucleus.cache.level2.offheap.slotSize: size of one storage slot (default 64 bytes)
+ * </ul>
+ *
+ * <p>Field values of type int, long, double, boolean, String, Point and ConvertiblePoint are
+ * written in a compact form, other Serializable values with Java serialization. Instances with
+ * field values that cannot be serialized are not cached. Entries for unique keys are rare and kept
+ * on the heap.
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+public class OffHeapLevel2Cache extends AbstractLevel2Cache {
+
+  private static final long serialVersionUID = 1L;
+
+  public static final String PROPERTY_CAPACITY = "datanucleus.cache.level2.offheap.capacity";
+  public static final String PROPERTY_SLOT_SIZE = "datanucleus.cache.level2.offheap.slotSize";
+
+  private static final long DEFAULT_CAPACITY = 64L * 1024 * 1024;
+  private static final int DEFAULT_SLOT_SIZE = 64;
+
+  private static final byte NULL = 0;
+  private static final byte INT = 1;
+  private static final byte LONG = 2;
+  private static final byte STRING = 3;
+  private static final byte BOOLEAN = 4;
+  private static final byte DOUBLE = 5;
+  private static final byte POINT = 6;
+  private static final byte CONVERTIBLE_POINT = 7;
+  private static final byte CACHED_PC = 8;
+  private static final byte SERIALIZED = 9;
+
+  private final transient OffHeapSlabStore<Object> store;
+  private final Map<CacheUniqueKey, CachedPC> uniqueEntries = new ConcurrentHashMap<>();
+  private final Map<Class<?>, Integer> classNumbers = new ConcurrentHashMap<>();
+  private final List<Class<?>> classes = new CopyOnWriteArrayList<>();
+  private final LongAdder nrOfRejectedPuts = new LongAdder();
+
+  public OffHeapLevel2Cache(NucleusContext nucleusCtx) {
+    super(nucleusCtx);
+    String capacity = nucleusCtx.getConfiguration().getStringProperty(PROPERTY_CAPACITY);
+    String slotSize = nucleusCtx.getConfiguration().getStringProperty(PROPERTY_SLOT_SIZE);
+    store =
+        new OffHeapSlabStore<>(
+            capacity == null ? DEFAULT_CAPACITY : Long.parseLong(capacity),
+            slotSize == null ? DEFAULT_SLOT_SIZE : Integer.parseInt(slotSize),
+            maxSize);
+  }
+
+  @Override
+  public void close() {
+    if (clearAtClose) {
+      evictAll();
+    }
+  }
+
+  @Override
+  public void evict(Object oid) {
+    store.remove(oid);
+  }
+
+  @Override
+  public void evictAll() {
+    store.clear();
+    uniqueEntries.clear();
+  }
+
+  @Override
+  public void evictAll(Object[] oids) {
+    for (Object oid : oids) {
+      store.remove(oid);
+    }
+  }
+
+  @Override
+  public void evictAll(Collection oids) {
+    for (Object oid : oids) {
+      store.remove(oid);
+    }
+  }
+
+  @Override
+  public void evictAll(Class pcClass, boolean subclasses) {
+    store.removeIf(
+        cls -> subclasses ? pcClass.isAssignableFrom((Class<?>) cls) : pcClass == cls);
+    uniqueEntries
+        .values()
+        .removeIf(
+            pc ->
+                subclasses
+                    ? pcClass.isAssignableFrom(pc.getObjectClass())
+                    : pcClass == pc.getObjectClass());
+  }
+
+  @Override
+  public int getSize() {
+    return store.size();
+  }
+
+  @Override
+  public CachedPC get(Object oid) {
+    byte[] bytes = store.get(oid);
+    if (bytes == null) {
+      return null;
+    }
+    try {
+      return decode(new DataInputStream(new ByteArrayInputStream(bytes)), oid);
+    } catch (IOException | ClassNotFoundException ex) {
+      NucleusLogger.CACHE.warn("Unable to read cached object " + oid, ex);
+      store.remove(oid);
+      return null;
+    }
+  }
+
+  @Override
+  public CachedPC put(Object oid, CachedPC pc) {
+    if (oid == null || pc == null) {
+      return null;
+    }
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+      encode(new DataOutputStream(bytes), pc);
+      if (!store.put(oid, bytes.toByteArray(), pc.getObjectClass())) {
+        nrOfRejectedPuts.increment();
+      }
+    } catch (IOException ex) {
+      // A field value cannot be serialized, so the instance is not cached
+      store.remove(oid);
+      nrOfRejectedPuts.increment();
+    }
+    return null;
+  }
+
+  @Override
+  public boolean containsOid(Object oid) {
+    return store.containsKey(oid);
+  }
+
+  @Override
+  public CachedPC getUnique(CacheUniqueKey key) {
+    return uniqueEntries.get(key);
+  }
+
+  @Override
+  public CachedPC putUnique(CacheUniqueKey key, CachedPC pc) {
+    return uniqueEntries.put(key, pc);
+  }
+
+  @Override
+  public void removeUnique(CacheUniqueKey key) {
+    uniqueEntries.remove(key);
+  }
+
+  public long getHits() {
+    return store.getHits();
+  }
+
+  public long getMisses() {
+    return store.getMisses();
+  }
+
+  public long getEvictions() {
+    return store.getEvictions();
+  }
+
+  public long getNrOfRejectedPuts() {
+    return nrOfRejectedPuts.sum();
+  }
+
+  public long getUsedBytes() {
+    return store.getUsedBytes();
+  }
+
+  // Compact serialized form of a CachedPC
+
+  private void encode(DataOutputStream out, CachedPC pc) throws IOException {
+    out.writeInt(classNumber(pc.getObjectClass()));
+    writeValue(out, pc.getVersion());
+    boolean[] loaded = pc.getLoadedFields();
+    out.writeShort(loaded.length);
+    for (int i = 0; i < loaded.length; i += 8) {
+      int bits = 0;
+      for (int j = 0; j < 8 && i + j < loaded.length; j++) {
+        if (loaded[i + j]) {
+          bits |= 1 << j;
+        }
+      }
+      out.writeByte(bits);
+    }
+    int[] fieldNumbers = pc.getLoadedFieldNumbers();
+    int nrOfFields = fieldNumbers == null ? 0 : fieldNumbers.length;
+    out.writeShort(nrOfFields);
+    for (int i = 0; i < nrOfFields; i++) {
+      out.writeShort(fieldNumbers[i]);
+      writeValue(out, pc.getFieldValue(fieldNumbers[i]));
+    }
+  }
+
+  private CachedPC decode(DataInputStream in, Object oid)
+      throws IOException, ClassNotFoundException {
+    Class<?> cls = classes.get(in.readInt());
+    Object version = readValue(in);
+    boolean[] loaded = new boolean[in.readShort()];
+    for (int i = 0; i < loaded.length; i += 8) {
+      int bits = in.readByte();
+      for (int j = 0; j < 8 && i + j < loaded.length; j++) {
+        loaded[i + j] = (bits & (1 << j)) != 0;
+      }
+    }
+    CachedPC pc = new CachedPC(cls, loaded, version, oid);
+    int nrOfFields = in.readShort();
+    for (int i = 0; i < nrOfFields; i++) {
+      int fieldNumber = in.readShort();
+      pc.setFieldValue(fieldNumber, readValue(in));
+    }
+    return pc;
+  }
+
+  private void writeValue(DataOutputStream out, Object value) throws IOException {
+    if (value == null) {
+      out.writeByte(NULL);
+    } else if (value instanceof Integer) {
+      out.writeByte(INT);
+      out.writeInt((Integer) value);
+    } else if (value instanceof Long) {
+      out.writeByte(LONG);
+      out.writeLong((Long) value);
+    } else if (value instanceof String) {
+      out.writeByte(STRING);
+      out.writeUTF((String) value);
+    } else if (value instanceof Boolean) {
+      out.writeByte(BOOLEAN);
+      out.writeBoolean((Boolean) value);
+    } else if (value instanceof Double) {
+      out.writeByte(DOUBLE);
+      out.writeDouble((Double) value);
+    } else if (value.getClass() == Point.class) {
+      Point point = (Point) value;
+      out.writeByte(POINT);
+      writePoint(out, point.x, point.y);
+    } else if (value.getClass() == ConvertiblePoint.class) {
+      ConvertiblePoint point = (ConvertiblePoint) value;
+      out.writeByte(CONVERTIBLE_POINT);
+      writePoint(out, point.x, point.y);
+    } else if (value instanceof CachedPC) {
+      // embedded persistable, cached as nested CachedPC
+      out.writeByte(CACHED_PC);
+      encode(out, (CachedPC) value);
+    } else {
+      out.writeByte(SERIALIZED);
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+        oos.writeObject(value);
+      }
+      out.writeInt(bytes.size());
+      bytes.writeTo(out);
+    }
+  }
+
+  private Object readValue(DataInputStream in) throws IOException, ClassNotFoundException {
+    byte type = in.readByte();
+    switch (type) {
+      case NULL:
+        return null;
+      case INT:
+        return in.readInt();
+      case LONG:
+        return in.readLong();
+      case STRING:
+        return in.readUTF();
+      case BOOLEAN:
+        return in.readBoolean();
+      case DOUBLE:
+        return in.readDouble();
+      case POINT:
+        {
+          int x = in.readInt();
+          return new Point(x, readNullableInt(in));
+        }
+      case CONVERTIBLE_POINT:
+        {
+          int x = in.readInt();
+          return new ConvertiblePoint(x, readNullableInt(in));
+        }
+      case CACHED_PC:
+        return decode(in, null);
+      case SERIALIZED:
+        {
+          byte[] bytes = new byte[in.readInt()];
+          in.readFully(bytes);
+          try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return ois.readObject();
+          }
+        }
+      default:
+        throw new IOException("Unknown value type " + type);
+    }
+  }
+
+  private static void writePoint(DataOutputStream out, int x, Integer y) throws IOException {
+    out.writeInt(x);
+    out.writeBoolean(y != null);
+    if (y != null) {
+      out.writeInt(y);
+    }
+  }
+
+  private static Integer readNullableInt(DataInputStream in) throws IOException {
+    return in.readBoolean() ? Integer.valueOf(in.readInt()) : null;
+  }
+
+  private int classNumber(Class<?> cls) {
+    Integer number = classNumbers.get(cls);
+    if (number == null) {
+      synchronized (classes) {
+        number = classNumbers.get(cls);
+        if (number == null) {
+          number = classes.size();
+          classes.add(cls);
+          classNumbers.put(cls, number);
+        }
+      }
+    }
+    return number;
+  }
+}
@@ -0,0 +1,291 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tck.util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Size-bounded store of byte arrays kept outside of the Java heap. The values are written into
+ * fixed-size slots of direct ByteBuffer slabs; a value larger than one slot uses a chain of slots.
+ * Only the keys and a small index entry per key are kept on the heap.
+ *
+ * <p>When the store runs out of slots or reaches its maximum number of entries, the least recently
+ * used entries are evicted. The store is thread-safe.
+ *
+ * @param <K> the type of the keys
+ */
+public class OffHeapSlabStore<K> {
+
+  /** Size of the header of each slot, holding the index of the next slot of the chain. */
+  private static final int SLOT_HEADER = 4;
+
+  private static final int END_OF_CHAIN = -1;
+  private static final int MAX_SLAB_BYTES = 1 << 30;
+
+  private final int slotSize;
+  private final int slotsPerSlab;
+  private final int nrOfSlots;
+  private final int maxEntries;
+  private final ByteBuffer[] slabs;
+
+  /** Slots from this one on were never used, they are handed out in order. */
+  private int nextUnusedSlot;
+  /** Slots released before, handed out before the unused ones. */
+  private int[] freeSlots = new int[64];
+  private int nrOfFreeSlots;
+
+  private final LinkedHashMap<K, Entry> index = new LinkedHashMap<>(1024, 0.75f, true);
+
+  private long hits;
+  private long misses;
+  private long puts;
+  private long evictions;
+
+  /**
+   * Creates a store and allocates its off-heap memory.
+   *
+   * @param capacityBytes the off-heap memory used for the slots
+   * @param slotSize size of one slot in bytes, including a 4 byte header
+   * @param maxEntries maximum number of entries, or a value less than 1 for no limit
+   */
+  public OffHeapSlabStore(long capacityBytes, int slotSize, int maxEntries) {
+    if (slotSize <= SLOT_HEADER || slotSize > MAX_SLAB_BYTES || capacityBytes < slotSize) {
+      throw new IllegalArgumentException(
+          "Invalid settings: capacity=" + capacityBytes + ", slotSize=" + slotSize);
+    }
+    long slots = capacityBytes / slotSize;
+    if (slots > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Too many slots for capacity " + capacityBytes);
+    }
+    this.slotSize = slotSize;
+    this.nrOfSlots = (int) slots;
+    this.slotsPerSlab = Math.min(nrOfSlots, MAX_SLAB_BYTES / slotSize);
+    this.maxEntries = maxEntries < 1 ? Integer.MAX_VALUE : maxEntries;
+    this.slabs = new ByteBuffer[(nrOfSlots + slotsPerSlab - 1) / slotsPerSlab];
+    for (int i = 0; i < slabs.length; i++) {
+      int slabSlots = Math.min(slotsPerSlab, nrOfSlots - i * slotsPerSlab);
+      slabs[i] = ByteBuffer.allocateDirect(slabSlots * slotSize);
+    }
+  }
+
+  /**
+   * Stores a value, replacing the value stored for the key before. Evicts least recently used
+   * entries if necessary.
+   *
+   * @param key the key
+   * @param value the value to be stored
+   * @param tag an object kept on the heap with the entry, used by {@link #removeIf}
+   * @return false if the value is larger than the whole store and was not stored
+   */
+  public synchronized boolean put(K key, byte[] value, Object tag) {
+    int slotsNeeded = slotsFor(value.length);
+    remove(key);
+    if (slotsNeeded > nrOfSlots) {
+      return false;
+    }
+    Iterator<Map.Entry<K, Entry>> eldest = index.entrySet().iterator();
+    while (getNrOfAvailableSlots() < slotsNeeded || index.size() >= maxEntries) {
+      Entry evicted = eldest.next().getValue();
+      eldest.remove();
+      release(evicted.firstSlot);
+      evictions++;
+    }
+    index.put(key, new Entry(write(value), value.length, tag));
+    puts++;
+    return true;
+  }
+
+  /**
+   * Returns the value stored for the key.
+   *
+   * @param key the key
+   * @return a copy of the stored value, or null if none is stored
+   */
+  public synchronized byte[] get(K key) {
+    Entry entry = index.get(key);
+    if (entry == null) {
+      misses++;
+      return null;
+    }
+    hits++;
+    return read(entry);
+  }
+
+  /**
+   * Returns whether a value is stored for the key, without counting a hit or miss.
+   *
+   * @param key the key
+   * @return true if a value is stored
+   */
+  public synchronized boolean containsKey(K key) {
+    return index.containsKey(key);
+  }
+
+  /**
+   * Removes the value stored for the key.
+   *
+   * @param key the key
+   * @return true if a value was removed
+   */
+  public synchronized boolean remove(K key) {
+    Entry entry = index.remove(key);
+    if (entry == null) {
+      return false;
+    }
+    release(entry.firstSlot);
+    return true;
+  }
+
+  /**
+   * Removes all entries whose tag matches the predicate.
+   *
+   * @param tagFilter predicate on the tags given to {@link #put}
+   */
+  public synchronized void removeIf(Predicate<Object> tagFilter) {
+    Iterator<Entry> entries = index.values().iterator();
+    while (entries.hasNext()) {
+      Entry entry = entries.next();
+      if (tagFilter.test(entry.tag)) {
+        entries.remove();
+        release(entry.firstSlot);
+      }
+    }
+  }
+
+  /** Removes all entries. */
+  public synchronized void clear() {
+    index.clear();
+    nextUnusedSlot = 0;
+    nrOfFreeSlots = 0;
+  }
+
+  public synchronized int size() {
+    return index.size();
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  public synchronized long getPuts() {
+    return puts;
+  }
+
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * Method returning the off-heap memory currently used by stored values, including slot headers
+   * and unused slot space.
+   *
+   * @return used off-heap memory in bytes
+   */
+  public synchronized long getUsedBytes() {
+    return (long) (nextUnusedSlot - nrOfFreeSlots) * slotSize;
+  }
+
+  private int getNrOfAvailableSlots() {
+    return nrOfFreeSlots + nrOfSlots - nextUnusedSlot;
+  }
+
+  private int slotsFor(int length) {
+    int payload = slotSize - SLOT_HEADER;
+    return Math.max(1, (length + payload - 1) / payload);
+  }
+
+  private int write(byte[] value) {
+    int payload = slotSize - SLOT_HEADER;
+    int first = END_OF_CHAIN;
+    int previous = END_OF_CHAIN;
+    int offset = 0;
+    do {
+      int slot = nrOfFreeSlots > 0 ? freeSlots[--nrOfFreeSlots] : nextUnusedSlot++;
+      int length = Math.min(payload, value.length - offset);
+      ByteBuffer slab = slabOf(slot);
+      int position = positionOf(slot);
+      slab.putInt(position, END_OF_CHAIN);
+      slab.position(position + SLOT_HEADER);
+      slab.put(value, offset, length);
+      if (previous == END_OF_CHAIN) {
+        first = slot;
+      } else {
+        slabOf(previous).putInt(positionOf(previous), slot);
+      }
+      previous = slot;
+      offset += length;
+    } while (offset < value.length);
+    return first;
+  }
+
+  private byte[] read(Entry entry) {
+    byte[] value = new byte[entry.length];
+    int payload = slotSize - SLOT_HEADER;
+    int offset = 0;
+    int slot = entry.firstSlot;
+    while (offset < value.length) {
+      int length = Math.min(payload, value.length - offset);
+      ByteBuffer slab = slabOf(slot);
+      int position = positionOf(slot);
+      slab.position(position + SLOT_HEADER);
+      slab.get(value, offset, length);
+      offset += length;
+      slot = slab.getInt(position);
+    }
+    return value;
+  }
+
+  private void release(int firstSlot) {
+    int slot = firstSlot;
+    while (slot != END_OF_CHAIN) {
+      if (nrOfFreeSlots == freeSlots.length) {
+        freeSlots = Arrays.copyOf(freeSlots, Math.min(nrOfSlots, 2 * freeSlots.length));
+      }
+      freeSlots[nrOfFreeSlots++] = slot;
+      slot = slabOf(slot).getInt(positionOf(slot));
+    }
+  }
+
+  private ByteBuffer slabOf(int slot) {
+    return slabs[slot / slotsPerSlab];
+  }
+
+  private int positionOf(int slot) {
+    return (slot % slotsPerSlab) * slotSize;
+  }
+
+  private static final class Entry {
+    final int firstSlot;
+    final int length;
+    final Object tag;
+
+    Entry(int firstSlot, int length, Object tag) {
+      this.firstSlot = firstSlot;
+      this.length = length;
+      this.tag = tag;
+    }
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tck.util;
+
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import javax.jdo.Query;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * JDOQL query evaluated in memory over a collection of candidates, see {@link
+ * Query#setCandidates(Collection)}, with the candidates split into chunks whose filter is
+ * evaluated in parallel on a fork-join pool.
+ *
+ * <p>Every chunk is evaluated by a query of its own PersistenceManager, since a
+ * PersistenceManager must not be used by several threads. The candidates are therefore read
+ * without their PersistenceManager and must be transient, detached or have all fields used by the
+ * filter loaded.
+ *
+ * <p>The matches of the chunks are concatenated in the order of the candidates, so the result does
+ * not depend on the scheduling of the chunks. With an ordering the concatenated matches are sorted
+ * by one more in-memory query without filter, so the ordering must not use parameters.
+ *
+ * @param <T> the candidate class
+ */
+public class ParallelCandidateQuery<T> {
+
+  /** Default number of candidates per chunk. */
+  public static final int DEFAULT_CHUNK_SIZE = 10_000;
+
+  private final PersistenceManagerFactory pmf;
+  private final Class<T> candidateClass;
+  private final String filter;
+  private final String ordering;
+  private final ForkJoinPool pool;
+  private final int chunkSize;
+
+  /**
+   * Creates a query evaluated on the common fork-join pool with the default chunk size.
+   *
+   * @param pmf the PersistenceManagerFactory of the queries of the chunks
+   * @param candidateClass the candidate class
+   * @param filter the JDOQL filter
+   * @param ordering the JDOQL ordering, or null for the order of the candidates
+   */
+  public ParallelCandidateQuery(
+      PersistenceManagerFactory pmf, Class<T> candidateClass, String filter, String ordering) {
+    this(pmf, candidateClass, filter, ordering, ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * Creates a query.
+   *
+   * @param pmf the PersistenceManagerFactory of the queries of the chunks
+   * @param candidateClass the candidate class
+   * @param filter the JDOQL filter
+   * @param ordering the JDOQL ordering, or null for the order of the candidates
+   * @param pool the pool evaluating the chunks
+   * @param chunkSize maximum number of candidates evaluated by one task
+   */
+  public ParallelCandidateQuery(
+      PersistenceManagerFactory pmf,
+      Class<T> candidateClass,
+      String filter,
+      String ordering,
+      ForkJoinPool pool,
+      int chunkSize) {
+    if (chunkSize < 1) {
+      throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+    }
+    this.pmf = pmf;
+    this.candidateClass = candidateClass;
+    this.filter = filter;
+    this.ordering = ordering;
+    this.pool = pool;
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Executes the query over the given candidates.
+   *
+   * @param candidates the candidates
+   * @param params the values of the parameters of the filter
+   * @return the matching candidates
+   */
+  @SuppressWarnings("unchecked")
+  public List<T> execute(Collection<? extends T> candidates, Object... params) {
+    List<T> list =
+        candidates instanceof List && candidates instanceof RandomAccess
+            ? (List<T>) candidates
+            : new ArrayList<>(candidates);
+    if (list.size() <= chunkSize) {
+      return evaluate(list, filter, ordering, params);
+    }
+    List<T> matches = pool.invoke(new ChunkTask(list, 0, list.size(), params));
+    return ordering == null ? matches : evaluate(matches, null, ordering);
+  }
+
+  private List<T> evaluate(
+      List<T> candidates, String filter, String ordering, Object... params) {
+    PersistenceManager pm = pmf.getPersistenceManager();
+    try {
+      Query<T> query = pm.newQuery(candidateClass);
+      query.setCandidates(candidates);
+      query.setFilter(filter);
+      query.setOrdering(ordering);
+      List<T> result = new ArrayList<>(query.setParameters(params).executeList());
+      query.closeAll();
+      return result;
+    } finally {
+      pm.close();
+    }
+  }
+
+  private final class ChunkTask extends RecursiveTask<List<T>> {
+    private static final long serialVersionUID = 1L;
+
+    private final List<T> candidates;
+    private final int from;
+    private final int to;
+    private final Object[] params;
+
+    ChunkTask(List<T> candidates, int from, int to, Object[] params) {
+      this.candidates = candidates;
+      this.from = from;
+      this.to = to;
+      this.params = params;
+    }
+
+    @Override
+    protected List<T> compute() {
+      if (to - from <= chunkSize) {
+        return evaluate(candidates.subList(from, to), filter, null, params);
+      }
+      int mid = (from + to) >>> 1;
+      ChunkTask right = new ChunkTask(candidates, mid, to, params);
+      right.fork();
+      List<T> result = new ArrayList<>(new ChunkTask(candidates, from, mid, params).compute());
+      result.addAll(right.join());
+      return result;
+    }
+  }
+}
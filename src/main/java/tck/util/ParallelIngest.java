@@ -0,0 +1,304 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tck.util;
+
+import javax.jdo.JDOFatalException;
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import javax.jdo.Transaction;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bulk ingest splitting a stream of transient instances into partitions that are persisted in
+ * parallel. Every partition is persisted by one worker thread in its own PersistenceManager and
+ * transaction, so the partition size is the commit batch size of the workers.
+ *
+ * <p>The calling thread reads the input and hands partitions to the workers through a bounded
+ * queue. It blocks when all workers are busy and the queue is full, so the input is never read
+ * much faster than it is written.
+ *
+ * <p>A partition whose commit fails is rolled back. Depending on the {@link FailurePolicy} it is
+ * either retried in a new PersistenceManager or the whole ingest is aborted with an {@link
+ * AbortedException} carrying the statistics up to the abort. Partitions committed before an abort
+ * stay committed. An exception thrown by the input stops the workers as well and is rethrown once
+ * they have finished their current partition.
+ */
+public class ParallelIngest<T> {
+
+  /** What to do when persisting a partition fails. */
+  public enum FailurePolicy {
+    /** Retry the failed partition up to maxRetries times, then abort. */
+    RETRY_PARTITION,
+    /** Stop all workers at the first failure. */
+    ABORT
+  }
+
+  private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+  private final PersistenceManagerFactory pmf;
+  private final int nrOfWorkers;
+  private final int batchSize;
+  private final FailurePolicy failurePolicy;
+  private final int maxRetries;
+
+  /**
+   * Creates a parallel ingest.
+   *
+   * @param pmf the PersistenceManagerFactory the workers get their PersistenceManagers from
+   * @param nrOfWorkers number of worker threads
+   * @param batchSize number of instances per partition, i.e. per commit
+   * @param failurePolicy the policy applied when a partition fails
+   * @param maxRetries maximum number of retries of a partition with policy RETRY_PARTITION
+   */
+  public ParallelIngest(
+      PersistenceManagerFactory pmf,
+      int nrOfWorkers,
+      int batchSize,
+      FailurePolicy failurePolicy,
+      int maxRetries) {
+    if (nrOfWorkers < 1 || batchSize < 1 || maxRetries < 0) {
+      throw new IllegalArgumentException(
+          "Invalid ingest settings: workers="
+              + nrOfWorkers
+              + ", batchSize="
+              + batchSize
+              + ", maxRetries="
+              + maxRetries);
+    }
+    this.pmf = pmf;
+    this.nrOfWorkers = nrOfWorkers;
+    this.batchSize = batchSize;
+    this.failurePolicy = failurePolicy;
+    this.maxRetries = maxRetries;
+  }
+
+  /**
+   * Persists all instances returned by the given iterator.
+   *
+   * @param input the transient instances to be persisted
+   * @return statistics of the ingest
+   * @throws AbortedException if the ingest was aborted because a partition failed
+   */
+  public Result ingest(Iterator<? extends T> input) {
+    Result result = new Result();
+    BlockingQueue<List<T>> queue = new ArrayBlockingQueue<>(2 * nrOfWorkers);
+    List<T> endOfInput = new ArrayList<>(0);
+    AtomicReference<RuntimeException> failure = new AtomicReference<>();
+    ExecutorService workers = Executors.newFixedThreadPool(nrOfWorkers);
+    long start = System.nanoTime();
+    try {
+      for (int i = 0; i < nrOfWorkers; i++) {
+        workers.execute(() -> runWorker(queue, endOfInput, failure, result));
+      }
+      List<T> partition = new ArrayList<>(batchSize);
+      try {
+        while (input.hasNext() && failure.get() == null) {
+          partition.add(input.next());
+          if (partition.size() == batchSize) {
+            enqueue(queue, partition, failure);
+            partition = new ArrayList<>(batchSize);
+          }
+        }
+      } catch (RuntimeException ex) {
+        // Stops the workers, they never get the end of input
+        failure.compareAndSet(null, ex);
+        throw ex;
+      }
+      if (!partition.isEmpty()) {
+        enqueue(queue, partition, failure);
+      }
+      for (int i = 0; i < nrOfWorkers; i++) {
+        enqueue(queue, endOfInput, failure);
+      }
+    } finally {
+      if (failure.get() != null) {
+        queue.clear();
+      }
+      workers.shutdown();
+      awaitTermination(workers);
+    }
+    result.elapsedNanos = System.nanoTime() - start;
+    if (failure.get() != null) {
+      throw new AbortedException(
+          "Parallel ingest aborted after "
+              + result.getNrOfPartitions()
+              + " committed partitions: "
+              + failure.get().getMessage(),
+          failure.get(),
+          result);
+    }
+    return result;
+  }
+
+  private void enqueue(
+      BlockingQueue<List<T>> queue, List<T> partition, AtomicReference<RuntimeException> failure) {
+    try {
+      while (!queue.offer(partition, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+        if (failure.get() != null) {
+          return;
+        }
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      failure.compareAndSet(null, new JDOFatalException("Parallel ingest interrupted", ex));
+    }
+  }
+
+  private void runWorker(
+      BlockingQueue<List<T>> queue,
+      List<T> endOfInput,
+      AtomicReference<RuntimeException> failure,
+      Result result) {
+    try {
+      while (failure.get() == null) {
+        List<T> partition = queue.poll(OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        if (partition == endOfInput) {
+          return;
+        }
+        if (partition != null) {
+          persistPartition(partition, result);
+        }
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      failure.compareAndSet(null, new JDOFatalException("Parallel ingest interrupted", ex));
+    } catch (RuntimeException ex) {
+      failure.compareAndSet(null, ex);
+    }
+  }
+
+  private void persistPartition(List<T> partition, Result result) {
+    int attempt = 0;
+    while (true) {
+      PersistenceManager pm = pmf.getPersistenceManager();
+      Transaction tx = pm.currentTransaction();
+      try {
+        tx.begin();
+        pm.makePersistentAll(partition);
+        tx.commit();
+        result.nrOfPartitions.increment();
+        result.nrOfObjects.add(partition.size());
+        return;
+      } catch (RuntimeException ex) {
+        if (failurePolicy == FailurePolicy.ABORT || attempt >= maxRetries) {
+          throw ex;
+        }
+        attempt++;
+        result.nrOfRetries.increment();
+      } finally {
+        if (tx.isActive()) {
+          tx.rollback();
+        }
+        pm.close();
+      }
+    }
+  }
+
+  private static void awaitTermination(ExecutorService executor) {
+    try {
+      while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+        // keep waiting for running partitions to commit or roll back
+      }
+    } catch (InterruptedException ex) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Thrown when a failed partition aborts the ingest. */
+  public static class AbortedException extends JDOFatalException {
+    private static final long serialVersionUID = 1L;
+
+    private final transient Result result;
+
+    AbortedException(String msg, Throwable cause, Result result) {
+      super(msg, cause);
+      this.result = result;
+    }
+
+    /**
+     * Method returning the statistics of the ingest up to the abort.
+     *
+     * @return the statistics
+     */
+    public Result getResult() {
+      return result;
+    }
+  }
+
+  /** Statistics of one ingest run. */
+  public static class Result {
+    private final LongAdder nrOfObjects = new LongAdder();
+    private final LongAdder nrOfPartitions = new LongAdder();
+    private final LongAdder nrOfRetries = new LongAdder();
+    private long elapsedNanos;
+
+    /**
+     * Method returning the number of persisted instances.
+     *
+     * @return number of persisted instances
+     */
+    public long getNrOfObjects() {
+      return nrOfObjects.sum();
+    }
+
+    /**
+     * Method returning the number of committed partitions.
+     *
+     * @return number of committed partitions
+     */
+    public long getNrOfPartitions() {
+      return nrOfPartitions.sum();
+    }
+
+    /**
+     * Method returning the number of partition retries.
+     *
+     * @return number of partition retries
+     */
+    public long getNrOfRetries() {
+      return nrOfRetries.sum();
+    }
+
+    /**
+     * Method returning the wall-clock time of the ingest.
+     *
+     * @return elapsed time in nanoseconds
+     */
+    public long getElapsedNanos() {
+      return elapsedNanos;
+    }
+
+    /**
+     * Method returning the ingest throughput.
+     *
+     * @return persisted instances per second
+     */
+    public double getObjectsPerSecond() {
+      return elapsedNanos == 0 ? 0 : getNrOfObjects() * 1e9 / elapsedNanos;
+    }
+  }
+}
@@ -0,0 +1,489 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tck.util;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import org.datanucleus.ExecutionContext;
+import org.datanucleus.api.jdo.JDODataStoreCache;
+import org.datanucleus.api.jdo.JDOPersistenceManager;
+import org.datanucleus.cache.Level2Cache;
+
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import javax.jdo.Query;
+import javax.jdo.Transaction;
+import javax.jdo.datastore.DataStoreCache;
+import javax.jdo.listener.InstanceLifecycleEvent;
+import javax.jdo.listener.StoreLifecycleListener;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Java Flight Recorder events of persistence operations, so that the samples of a recording can be
+ * related to the PersistenceManager, transaction, query or conversion they belong to.
+ *
+ * <p>The events are disabled by default and enabled by a JFR settings file, e.g. the one shipped
+ * as src/main/resources/tck-persistence.jfc, which also enables execution sampling:
+ *
+ * <pre>
+ * java -XX:StartFlightRecording=settings=tck-persistence.jfc,filename=rec.jfr ...
+ * </pre>
+ *
+ * <p>The AttributeConverters of tck.util emit {@link ConversionEvent}s themselves. The other events
+ * are emitted by a PersistenceManagerFactory wrapped with {@link #wrap}, see also {@link
+ * PersistenceUnits#PROPERTY_JFR_EVENTS}. Its PersistenceManagers, transactions and queries are
+ * proxies timing the calls. A disabled event costs a check of its enabled flag, the proxies cost a
+ * reflective call per method.
+ *
+ * <p>The same proxies record the {@link PersistenceMetrics} given to {@link
+ * #wrap(PersistenceManagerFactory, PersistenceMetrics)}, whether the events are enabled or not.
+ */
+public final class PersistenceEvents {
+
+  private static final String CATEGORY = "JDO";
+
+  private PersistenceEvents() {}
+
+  /** Lifetime of a PersistenceManager, from its creation to its close. */
+  @Name("tck.PersistenceManager")
+  @Label("PersistenceManager")
+  @Category({"TCK", CATEGORY})
+  @Enabled(false)
+  @StackTrace(false)
+  public static final class PersistenceManagerEvent extends Event {}
+
+  /** Begin, commit or rollback of a transaction. */
+  @Name("tck.Transaction")
+  @Label("Transaction")
+  @Category({"TCK", CATEGORY})
+  @Enabled(false)
+  public static final class TransactionEvent extends Event {
+    @Label("Operation")
+    @Description("begin, commit or rollback")
+    String operation;
+
+    @Label("Optimistic")
+    boolean optimistic;
+  }
+
+  /** Explicit flush of a PersistenceManager. */
+  @Name("tck.Flush")
+  @Label("Flush")
+  @Category({"TCK", CATEGORY})
+  @Enabled(false)
+  public static final class FlushEvent extends Event {}
+
+  /** Execution of a query. */
+  @Name("tck.Query")
+  @Label("Query Execution")
+  @Category({"TCK", CATEGORY})
+  @Enabled(false)
+  public static final class QueryEvent extends Event {
+    @Label("Candidate Class")
+    Class<?> candidateClass;
+
+    @Label("Query")
+    @Description("The single-string JDOQL of the query")
+    String filter;
+
+    @Label("Method")
+    String method;
+  }
+
+  /** Lookup of an instance by its object id. */
+  @Name("tck.GetObjectById")
+  @Label("getObjectById")
+  @Category({"TCK", CATEGORY})
+  @Enabled(false)
+  public static final class GetObjectByIdEvent extends Event {
+    @Label("Class")
+    Class<?> objectClass;
+  }
+
+  /** Call of an AttributeConverter method. */
+  @Name("tck.Conversion")
+  @Label("Attribute Conversion")
+  @Category({"TCK", CATEGORY})
+  @Enabled(false)
+  @StackTrace(false)
+  public static final class ConversionEvent extends Event {
+    @Label("Converter")
+    Class<?> converterClass;
+
+    @Label("Method")
+    String method;
+
+    /**
+     * Ends the conversion, and commits the event if it is enabled and exceeds its threshold.
+     *
+     * @param converter the AttributeConverter class
+     * @param methodName convertToDatastore or convertToAttribute
+     */
+    public void end(Class<?> converter, String methodName) {
+      if (shouldCommit()) {
+        converterClass = converter;
+        method = methodName;
+        commit();
+      }
+    }
+  }
+
+  /**
+   * Returns a PersistenceManagerFactory emitting the events of its PersistenceManagers.
+   *
+   * @param pmf the PersistenceManagerFactory
+   * @return the wrapping PersistenceManagerFactory
+   */
+  public static PersistenceManagerFactory wrap(PersistenceManagerFactory pmf) {
+    return wrap(pmf, null);
+  }
+
+  /**
+   * Returns a PersistenceManagerFactory emitting the events of its PersistenceManagers and
+   * recording their metrics. The metrics are closed, i.e. unregistered from JMX, with the factory.
+   *
+   * @param pmf the PersistenceManagerFactory
+   * @param metrics the metrics to record, null for none
+   * @return the wrapping PersistenceManagerFactory
+   */
+  public static PersistenceManagerFactory wrap(
+      PersistenceManagerFactory pmf, PersistenceMetrics metrics) {
+    return proxy(PersistenceManagerFactory.class, new FactoryHandler(pmf, metrics));
+  }
+
+  private static <T> T proxy(Class<T> iface, InvocationHandler handler) {
+    return iface.cast(
+        Proxy.newProxyInstance(iface.getClassLoader(), new Class<?>[] {iface}, handler));
+  }
+
+  private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException ex) {
+      throw ex.getCause();
+    }
+  }
+
+  /** Base handler answering equals and hashCode for the proxy itself. */
+  private abstract static class Handler implements InvocationHandler {
+    final Object target;
+
+    Handler(Object target) {
+      this.target = target;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      switch (method.getName()) {
+        case "equals":
+          return proxy == args[0];
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        default:
+          return handle(proxy, method, args);
+      }
+    }
+
+    abstract Object handle(Object proxy, Method method, Object[] args) throws Throwable;
+  }
+
+  private static final class FactoryHandler extends Handler {
+    private final PersistenceMetrics metrics;
+    private final Level2Cache level2Cache;
+
+    FactoryHandler(PersistenceManagerFactory pmf, PersistenceMetrics metrics) {
+      super(pmf);
+      this.metrics = metrics;
+      this.level2Cache = metrics == null ? null : level2CacheOf(pmf);
+    }
+
+    @Override
+    Object handle(Object proxy, Method method, Object[] args) throws Throwable {
+      Object result = PersistenceEvents.invoke(target, method, args);
+      if (result instanceof PersistenceManager) {
+        return proxy(
+            PersistenceManager.class,
+            new ManagerHandler(
+                (PersistenceManager) result,
+                (PersistenceManagerFactory) proxy,
+                metrics,
+                level2Cache));
+      }
+      if (metrics != null && method.getName().equals("close")) {
+        metrics.close();
+      }
+      return result;
+    }
+
+    /** The L2 cache is not part of the JDO DataStoreCache API, it is read from DataNucleus'. */
+    private static Level2Cache level2CacheOf(PersistenceManagerFactory pmf) {
+      DataStoreCache cache = pmf.getDataStoreCache();
+      return cache instanceof JDODataStoreCache
+          ? ((JDODataStoreCache) cache).getLevel2Cache()
+          : null;
+    }
+  }
+
+  /** Counts the objects inserted or updated by the flushes of a PersistenceManager. */
+  private static final class StoreCounter implements StoreLifecycleListener {
+    long nrOfStored;
+
+    @Override
+    public void preStore(InstanceLifecycleEvent event) {
+      // Counted once stored
+    }
+
+    @Override
+    public void postStore(InstanceLifecycleEvent event) {
+      nrOfStored++;
+    }
+  }
+
+  private static final class ManagerHandler extends Handler {
+    private final PersistenceManagerFactory factory;
+    private final PersistenceManagerEvent lifetime = new PersistenceManagerEvent();
+    private final PersistenceMetrics metrics;
+    private final Level2Cache level2Cache;
+    private final StoreCounter stores;
+    private final ExecutionContext executionContext;
+    private Transaction transaction;
+    private boolean closed;
+
+    ManagerHandler(
+        PersistenceManager pm,
+        PersistenceManagerFactory factory,
+        PersistenceMetrics metrics,
+        Level2Cache level2Cache) {
+      super(pm);
+      this.factory = factory;
+      this.metrics = metrics;
+      this.level2Cache = level2Cache;
+      if (metrics != null) {
+        stores = new StoreCounter();
+        executionContext = executionContextOf(pm);
+        pm.addInstanceLifecycleListener(stores, (Class<?>[]) null);
+        metrics.persistenceManagerOpened();
+      } else {
+        stores = null;
+        executionContext = null;
+      }
+      lifetime.begin();
+    }
+
+    @Override
+    Object handle(Object proxy, Method method, Object[] args) throws Throwable {
+      switch (method.getName()) {
+        case "getPersistenceManagerFactory":
+          return factory;
+        case "currentTransaction":
+          if (transaction == null) {
+            transaction =
+                proxy(
+                    Transaction.class,
+                    new TransactionHandler(
+                        ((PersistenceManager) target).currentTransaction(),
+                        (PersistenceManager) proxy,
+                        metrics,
+                        stores));
+          }
+          return transaction;
+        case "close":
+          {
+            PersistenceEvents.invoke(target, method, args);
+            if (!closed) {
+              closed = true;
+              lifetime.commit();
+              if (metrics != null) {
+                metrics.persistenceManagerClosed();
+              }
+            }
+            return null;
+          }
+        case "flush":
+          {
+            FlushEvent event = new FlushEvent();
+            event.begin();
+            PersistenceEvents.invoke(target, method, args);
+            event.commit();
+            return null;
+          }
+        case "getObjectById":
+          {
+            GetObjectByIdEvent event = new GetObjectByIdEvent();
+            event.begin();
+            Object id = metrics == null ? null : objectIdOf(args);
+            boolean inLevel1 = id != null && executionContext != null
+                && executionContext.getObjectFromLevel1Cache(id) != null;
+            boolean inLevel2 = id != null && !inLevel1 && level2Cache != null
+                && level2Cache.containsOid(id);
+            Object result = PersistenceEvents.invoke(target, method, args);
+            if (event.shouldCommit()) {
+              event.objectClass = result == null ? null : result.getClass();
+              event.commit();
+            }
+            if (metrics != null) {
+              metrics.objectLookedUp(inLevel1, inLevel2);
+            }
+            return result;
+          }
+        default:
+          break;
+      }
+      Object result = PersistenceEvents.invoke(target, method, args);
+      if (result instanceof Query) {
+        return proxy(
+            Query.class,
+            new QueryHandler((Query<?>) result, (PersistenceManager) proxy, metrics));
+      }
+      return result;
+    }
+
+    /** The L1 cache is not part of the JDO API either, it is read from the ExecutionContext. */
+    private static ExecutionContext executionContextOf(PersistenceManager pm) {
+      return pm instanceof JDOPersistenceManager
+          ? ((JDOPersistenceManager) pm).getExecutionContext()
+          : null;
+    }
+
+    /** The object id of getObjectById(oid), getObjectById(oid, validate) or (class, key). */
+    private Object objectIdOf(Object[] args) {
+      if (args[0] instanceof Class) {
+        return ((PersistenceManager) target).newObjectIdInstance((Class<?>) args[0], args[1]);
+      }
+      return args[0];
+    }
+  }
+
+  private static final class TransactionHandler extends Handler {
+    private final PersistenceManager pm;
+    private final PersistenceMetrics metrics;
+    private final StoreCounter stores;
+    private long beginNanos;
+    private long storedAtBegin;
+
+    TransactionHandler(
+        Transaction tx, PersistenceManager pm, PersistenceMetrics metrics, StoreCounter stores) {
+      super(tx);
+      this.pm = pm;
+      this.metrics = metrics;
+      this.stores = stores;
+    }
+
+    @Override
+    Object handle(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if (name.equals("getPersistenceManager")) {
+        return pm;
+      }
+      if (!name.equals("begin") && !name.equals("commit") && !name.equals("rollback")) {
+        return PersistenceEvents.invoke(target, method, args);
+      }
+      TransactionEvent event = new TransactionEvent();
+      event.begin();
+      boolean succeeded = false;
+      try {
+        Object result = PersistenceEvents.invoke(target, method, args);
+        succeeded = true;
+        return result;
+      } finally {
+        if (event.shouldCommit()) {
+          event.operation = name;
+          event.optimistic = ((Transaction) target).getOptimistic();
+          event.commit();
+        }
+        if (metrics != null) {
+          record(name, succeeded);
+        }
+      }
+    }
+
+    private void record(String name, boolean succeeded) {
+      if (name.equals("begin")) {
+        if (succeeded) {
+          beginNanos = System.nanoTime();
+          storedAtBegin = stores.nrOfStored;
+        }
+      } else if (beginNanos != 0 && !((Transaction) target).isActive()) {
+        // A failed commit is recorded as rollback, unless still active and rolled back later
+        boolean committed = succeeded && name.equals("commit");
+        metrics.transactionEnded(
+            committed, System.nanoTime() - beginNanos, stores.nrOfStored - storedAtBegin);
+        beginNanos = 0;
+      }
+    }
+  }
+
+  private static final class QueryHandler extends Handler {
+    private final PersistenceManager pm;
+    private final PersistenceMetrics metrics;
+
+    QueryHandler(Query<?> query, PersistenceManager pm, PersistenceMetrics metrics) {
+      super(query);
+      this.pm = pm;
+      this.metrics = metrics;
+    }
+
+    @Override
+    Object handle(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if (name.equals("getPersistenceManager")) {
+        return pm;
+      }
+      if (!name.startsWith("execute") && !name.equals("deletePersistentAll")) {
+        Object result = PersistenceEvents.invoke(target, method, args);
+        // Setters return the query itself for chaining
+        return result == target ? proxy : result;
+      }
+      QueryEvent event = new QueryEvent();
+      event.begin();
+      long start = System.nanoTime();
+      try {
+        return PersistenceEvents.invoke(target, method, args);
+      } finally {
+        if (metrics != null) {
+          metrics.queryExecuted(target.toString(), System.nanoTime() - start);
+        }
+        if (event.shouldCommit()) {
+          Query<?> query = (Query<?>) target;
+          event.method = name;
+          event.filter = query.toString();
+          event.candidateClass = candidateClassOf(query);
+          event.commit();
+        }
+      }
+    }
+
+    /** The candidate class is not part of the JDO Query API, it is read from DataNucleus' query. */
+    private static Class<?> candidateClassOf(Query<?> query) {
+      try {
+        Object internal = query.getClass().getMethod("getInternalQuery").invoke(query);
+        return (Class<?>) internal.getClass().getMethod("getCandidateClass").invoke(internal);
+      } catch (ReflectiveOperationException | RuntimeException ex) {
+        return null;
+      }
+    }
+  }
+}
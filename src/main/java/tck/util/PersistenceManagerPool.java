@@ -0,0 +1,328 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tck.util;
+
+import javax.jdo.FetchPlan;
+import javax.jdo.JDOUserException;
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import javax.jdo.Transaction;
+import javax.jdo.listener.InstanceLifecycleListener;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of reusable PersistenceManagers for short units of work. {@link #borrow} hands out an idle
+ * PersistenceManager, or opens a new one while fewer than the maximum number are borrowed, and
+ * otherwise waits for one to be released.
+ *
+ * <p>A released PersistenceManager is cleaned before it is borrowed again: an active transaction is
+ * rolled back, the cached instances are made transient, so the next borrower gets instances of its
+ * own, the transaction Synchronization, the instance lifecycle listeners and the user objects of
+ * the previous borrower are removed, and the fetch plan and the transaction and PersistenceManager
+ * options are reset to the defaults of the PersistenceManagerFactory. Idle PersistenceManagers are
+ * closed once they were not used for the idle timeout. A borrowed PersistenceManager must be passed
+ * to {@link #release} instead of being closed, exactly once.
+ *
+ * <p>JDO has no method listing the listeners and user objects of a PersistenceManager, so the pool
+ * hands out a proxy of each PersistenceManager recording them. The same proxy is handed out on
+ * every borrow of the PersistenceManager, JDOHelper.getPersistenceManager of its instances returns
+ * the PersistenceManager itself.
+ */
+public class PersistenceManagerPool implements AutoCloseable {
+
+  private final PersistenceManagerFactory pmf;
+  private final long idleTimeoutNanos;
+  private final Semaphore permits;
+  private final ConcurrentLinkedDeque<Idle> idle = new ConcurrentLinkedDeque<>();
+  private final Set<PersistenceManager> borrowed = ConcurrentHashMap.newKeySet();
+  private volatile boolean closed;
+
+  private final LongAdder nrOfBorrows = new LongAdder();
+  private final LongAdder nrOfCreated = new LongAdder();
+  private final LongAdder nrOfIdleClosed = new LongAdder();
+  private final LongAdder totalBorrowWaitNanos = new LongAdder();
+  private final AtomicLong maxBorrowWaitNanos = new AtomicLong();
+
+  /**
+   * Creates a pool. PersistenceManagers are opened on demand.
+   *
+   * @param pmf the PersistenceManagerFactory
+   * @param maxSize maximum number of PersistenceManagers borrowed at the same time
+   * @param idleTimeout time after which an unused PersistenceManager is closed
+   * @param unit the unit of idleTimeout
+   */
+  public PersistenceManagerPool(
+      PersistenceManagerFactory pmf, int maxSize, long idleTimeout, TimeUnit unit) {
+    if (maxSize < 1) {
+      throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+    }
+    this.pmf = pmf;
+    this.permits = new Semaphore(maxSize, true);
+    this.idleTimeoutNanos = unit.toNanos(idleTimeout);
+  }
+
+  /**
+   * Borrows a PersistenceManager, waiting if the maximum number is borrowed already.
+   *
+   * @param timeout maximum time to wait
+   * @param unit the unit of timeout
+   * @return a PersistenceManager without cached instances or active transaction
+   * @throws JDOUserException if the pool is closed or no PersistenceManager was released in time
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public PersistenceManager borrow(long timeout, TimeUnit unit) throws InterruptedException {
+    assertOpen();
+    long start = System.nanoTime();
+    if (!permits.tryAcquire(timeout, unit)) {
+      throw new JDOUserException(
+          "No PersistenceManager released within " + unit.toMillis(timeout) + " ms");
+    }
+    PersistenceManager pm;
+    try {
+      closeExpired();
+      Idle entry = idle.pollFirst();
+      if (entry != null) {
+        pm = entry.pm;
+      } else {
+        pm = proxy(pmf.getPersistenceManager());
+        nrOfCreated.increment();
+      }
+      borrowed.add(pm);
+    } catch (RuntimeException ex) {
+      permits.release();
+      throw ex;
+    }
+    long waitNanos = System.nanoTime() - start;
+    nrOfBorrows.increment();
+    totalBorrowWaitNanos.add(waitNanos);
+    maxBorrowWaitNanos.accumulateAndGet(waitNanos, Math::max);
+    return pm;
+  }
+
+  /**
+   * Returns a borrowed PersistenceManager to the pool. An active transaction is rolled back.
+   *
+   * @param pm the PersistenceManager returned by {@link #borrow}
+   * @throws JDOUserException if pm is not borrowed from this pool, or was released already
+   */
+  public void release(PersistenceManager pm) {
+    if (!borrowed.remove(pm)) {
+      throw new JDOUserException("PersistenceManager is not borrowed from this pool");
+    }
+    try {
+      if (pm.isClosed()) {
+        return;
+      }
+      if (closed) {
+        pm.close();
+        return;
+      }
+      try {
+        reset(pm);
+      } catch (RuntimeException ex) {
+        pm.close();
+        throw ex;
+      }
+      // Most recently used first, so that rarely needed PersistenceManagers time out
+      idle.offerFirst(new Idle(pm, System.nanoTime()));
+      closeExpired();
+    } finally {
+      permits.release();
+    }
+  }
+
+  /** Closes the pool and all idle PersistenceManagers. Borrowed ones are closed on release. */
+  @Override
+  public void close() {
+    closed = true;
+    Idle entry;
+    while ((entry = idle.pollFirst()) != null) {
+      entry.pm.close();
+    }
+  }
+
+  /**
+   * Method returning the number of idle PersistenceManagers in the pool.
+   *
+   * @return number of idle PersistenceManagers
+   */
+  public int getNrOfIdle() {
+    return idle.size();
+  }
+
+  public long getNrOfBorrows() {
+    return nrOfBorrows.sum();
+  }
+
+  /**
+   * Method returning the number of PersistenceManagers opened by the pool.
+   *
+   * @return number of opened PersistenceManagers
+   */
+  public long getNrOfCreated() {
+    return nrOfCreated.sum();
+  }
+
+  /**
+   * Method returning the number of PersistenceManagers closed after the idle timeout.
+   *
+   * @return number of idle PersistenceManagers closed
+   */
+  public long getNrOfIdleClosed() {
+    return nrOfIdleClosed.sum();
+  }
+
+  /**
+   * Method returning the average time borrow waited for a PersistenceManager, including the time to
+   * open a new one.
+   *
+   * @return average borrow wait in nanoseconds
+   */
+  public long getAverageBorrowWaitNanos() {
+    long borrows = nrOfBorrows.sum();
+    return borrows == 0 ? 0 : totalBorrowWaitNanos.sum() / borrows;
+  }
+
+  /**
+   * Method returning the maximum time borrow waited for a PersistenceManager.
+   *
+   * @return maximum borrow wait in nanoseconds
+   */
+  public long getMaxBorrowWaitNanos() {
+    return maxBorrowWaitNanos.get();
+  }
+
+  private static PersistenceManager proxy(PersistenceManager pm) {
+    return (PersistenceManager)
+        Proxy.newProxyInstance(
+            PersistenceManager.class.getClassLoader(),
+            new Class<?>[] {PersistenceManager.class},
+            new Pooled(pm));
+  }
+
+  private void reset(PersistenceManager proxy) {
+    Pooled pooled = (Pooled) Proxy.getInvocationHandler(proxy);
+    PersistenceManager pm = pooled.pm;
+    Transaction tx = pm.currentTransaction();
+    if (tx.isActive()) {
+      tx.rollback();
+    }
+    tx.setSynchronization(null);
+    for (InstanceLifecycleListener listener : pooled.listeners) {
+      pm.removeInstanceLifecycleListener(listener);
+    }
+    pooled.listeners.clear();
+    for (Object key : pooled.userObjectKeys) {
+      pm.removeUserObject(key);
+    }
+    pooled.userObjectKeys.clear();
+    pm.setUserObject(null);
+    // Evicted instances would stay managed, and be returned to the next borrower
+    pm.makeTransientAll(pm.getManagedObjects());
+    tx.setOptimistic(pmf.getOptimistic());
+    tx.setRetainValues(pmf.getRetainValues());
+    tx.setRestoreValues(pmf.getRestoreValues());
+    tx.setNontransactionalRead(pmf.getNontransactionalRead());
+    tx.setNontransactionalWrite(pmf.getNontransactionalWrite());
+    pm.setIgnoreCache(pmf.getIgnoreCache());
+    pm.setDetachAllOnCommit(pmf.getDetachAllOnCommit());
+    pm.setCopyOnAttach(pmf.getCopyOnAttach());
+    pm.setDatastoreReadTimeoutMillis(pmf.getDatastoreReadTimeoutMillis());
+    pm.setDatastoreWriteTimeoutMillis(pmf.getDatastoreWriteTimeoutMillis());
+    FetchPlan fetchPlan = pm.getFetchPlan();
+    fetchPlan.setGroup(FetchPlan.DEFAULT);
+    fetchPlan.setMaxFetchDepth(1);
+    fetchPlan.setFetchSize(FetchPlan.FETCH_SIZE_OPTIMAL);
+    fetchPlan.setDetachmentRoots(Collections.emptyList());
+    fetchPlan.setDetachmentOptions(FetchPlan.DETACH_LOAD_FIELDS);
+  }
+
+  /** Closes the idle PersistenceManagers at the end of the deque that exceeded the timeout. */
+  private void closeExpired() {
+    long now = System.nanoTime();
+    Idle eldest;
+    while ((eldest = idle.peekLast()) != null && now - eldest.since > idleTimeoutNanos) {
+      if (idle.removeLastOccurrence(eldest)) {
+        eldest.pm.close();
+        nrOfIdleClosed.increment();
+      }
+    }
+  }
+
+  private void assertOpen() {
+    if (closed) {
+      throw new JDOUserException("PersistenceManagerPool is closed");
+    }
+  }
+
+  /** Handler of a pooled PersistenceManager, recording what a borrower adds to it. */
+  private static final class Pooled implements InvocationHandler {
+    final PersistenceManager pm;
+    final List<InstanceLifecycleListener> listeners = new ArrayList<>();
+    final List<Object> userObjectKeys = new ArrayList<>();
+
+    Pooled(PersistenceManager pm) {
+      this.pm = pm;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      switch (method.getName()) {
+        case "equals":
+          return proxy == args[0];
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "addInstanceLifecycleListener":
+          listeners.add((InstanceLifecycleListener) args[0]);
+          break;
+        case "putUserObject":
+          userObjectKeys.add(args[0]);
+          break;
+        default:
+          break;
+      }
+      try {
+        return method.invoke(pm, args);
+      } catch (InvocationTargetException ex) {
+        throw ex.getCause();
+      }
+    }
+  }
+
+  private static final class Idle {
+    final PersistenceManager pm;
+    final long since;
+
+    Idle(PersistenceManager pm, long since) {
+      this.pm = pm;
+      this.since = since;
+    }
+  }
+}
@@ -0,0 +1,517 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tck.util;
+
+import javax.jdo.JDOFatalException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of a PersistenceManagerFactory: open PersistenceManagers, transaction latencies,
+ * commits and rollbacks, objects flushed per commit, L1 and L2 cache hits of getObjectById, and
+ * the latency of each query. They are recorded by a factory wrapped with {@link
+ * PersistenceEvents#wrap(javax.jdo.PersistenceManagerFactory, PersistenceMetrics)}, see also
+ * {@link PersistenceUnits#PROPERTY_METRICS}, and exposed over JMX by {@link #register()}.
+ *
+ * <p>Recording is lock-free: counters are LongAdders and latencies are counted in {@link
+ * LatencyHistogram}s. Only the first execution of a query adds it to a concurrent map, at
+ * most {@value #MAX_NR_OF_QUERIES} queries are kept apart, later ones are counted as {@value
+ * #OTHER_QUERIES}.
+ *
+ * <p>{@link #snapshot()} reads every value once into an immutable {@link Snapshot}, so the rates,
+ * averages and percentiles derived from it agree with each other. The recording is not stopped
+ * meanwhile, so a snapshot taken during a commit may count it in the latencies but not yet in the
+ * commits.
+ *
+ * <p>A L1 hit is a getObjectById of an id held by the L1 cache of the PersistenceManager at the
+ * time of the call, otherwise a L2 hit is an id held by the L2 cache of the factory.
+ */
+public class PersistenceMetrics implements PersistenceMetricsMXBean, AutoCloseable {
+
+  public static final int NR_OF_LATENCY_BUCKETS = LatencyHistogram.NR_OF_BUCKETS;
+
+  public static final int MAX_NR_OF_QUERIES = 256;
+
+  public static final String OTHER_QUERIES = "(other)";
+
+  private static final String DOMAIN = "tck";
+
+  private static final AtomicInteger NR_OF_REGISTERED = new AtomicInteger();
+
+  private final String name;
+  private final long startNanos = System.nanoTime();
+  private ObjectName objectName;
+
+  private final LongAdder nrOfOpened = new LongAdder();
+  private final LongAdder nrOfClosed = new LongAdder();
+  private final LongAdder nrOfCommits = new LongAdder();
+  private final LongAdder nrOfRollbacks = new LongAdder();
+  private final LongAdder nrOfObjectsFlushed = new LongAdder();
+  private final LongAdder nrOfLevel1Hits = new LongAdder();
+  private final LongAdder nrOfLevel2Hits = new LongAdder();
+  private final LongAdder nrOfCacheMisses = new LongAdder();
+  private final LatencyHistogram transactionLatencies = new LatencyHistogram();
+  private final ConcurrentMap<String, QueryRecorder> queries = new ConcurrentHashMap<>();
+
+  /**
+   * Creates the metrics of a PersistenceManagerFactory.
+   *
+   * @param name name of the metrics in JMX, e.g. the persistence unit
+   */
+  public PersistenceMetrics(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Method returning the name of the metrics.
+   *
+   * @return the name
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Registers the metrics as MXBean "tck:type=PersistenceMetrics,name=&lt;name&gt;,id=&lt;n&gt;"
+   * with the platform MBeanServer. The id keeps the factories of the same unit apart.
+   *
+   * @return the ObjectName of the MXBean
+   * @throws JDOFatalException if the MXBean cannot be registered
+   */
+  public synchronized ObjectName register() {
+    if (objectName == null) {
+      try {
+        ObjectName on =
+            new ObjectName(
+                DOMAIN + ":type=PersistenceMetrics,name=" + name
+                    + ",id=" + NR_OF_REGISTERED.incrementAndGet());
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+        objectName = on;
+      } catch (JMException ex) {
+        throw new JDOFatalException("Cannot register the metrics " + name + " with JMX", ex);
+      }
+    }
+    return objectName;
+  }
+
+  /**
+   * Method returning the ObjectName of the registered MXBean.
+   *
+   * @return the ObjectName, null if not registered
+   */
+  public synchronized ObjectName getObjectName() {
+    return objectName;
+  }
+
+  /** Unregisters the MXBean, if registered. The metrics are still recorded and readable. */
+  @Override
+  public synchronized void close() {
+    if (objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (InstanceNotFoundException ex) {
+        // Already unregistered by someone else
+      } catch (JMException ex) {
+        throw new JDOFatalException("Cannot unregister the metrics " + name + " from JMX", ex);
+      }
+      objectName = null;
+    }
+  }
+
+  void persistenceManagerOpened() {
+    nrOfOpened.increment();
+  }
+
+  void persistenceManagerClosed() {
+    nrOfClosed.increment();
+  }
+
+  void transactionEnded(boolean committed, long nanos, long nrOfFlushed) {
+    transactionLatencies.record(nanos);
+    if (committed) {
+      nrOfObjectsFlushed.add(nrOfFlushed);
+      nrOfCommits.increment();
+    } else {
+      nrOfRollbacks.increment();
+    }
+  }
+
+  void objectLookedUp(boolean inLevel1, boolean inLevel2) {
+    if (inLevel1) {
+      nrOfLevel1Hits.increment();
+    } else if (inLevel2) {
+      nrOfLevel2Hits.increment();
+    } else {
+      nrOfCacheMisses.increment();
+    }
+  }
+
+  void queryExecuted(String query, long nanos) {
+    QueryRecorder recorder = queries.get(query);
+    if (recorder == null) {
+      String key = queries.size() < MAX_NR_OF_QUERIES ? query : OTHER_QUERIES;
+      recorder = queries.computeIfAbsent(key, k -> new QueryRecorder());
+    }
+    recorder.latencies.record(nanos);
+    recorder.nanos.add(nanos);
+    recorder.executions.increment();
+  }
+
+  private static double ratio(long count, long total) {
+    return total == 0 ? 0 : (double) count / total;
+  }
+
+  /**
+   * Reads the current values of all metrics.
+   *
+   * @return the snapshot
+   */
+  public Snapshot snapshot() {
+    Map<String, QueryStatistics> queryStatistics = new TreeMap<>();
+    for (Map.Entry<String, QueryRecorder> entry : queries.entrySet()) {
+      queryStatistics.put(entry.getKey(), entry.getValue().statistics());
+    }
+    return new Snapshot(this, queryStatistics);
+  }
+
+  @Override
+  public Snapshot getSnapshot() {
+    return snapshot();
+  }
+
+  @Override
+  public long getNrOfActivePersistenceManagers() {
+    return snapshot().getNrOfActivePersistenceManagers();
+  }
+
+  @Override
+  public long getNrOfCommits() {
+    return nrOfCommits.sum();
+  }
+
+  @Override
+  public long getNrOfRollbacks() {
+    return nrOfRollbacks.sum();
+  }
+
+  @Override
+  public double getCommitsPerSecond() {
+    return snapshot().getCommitsPerSecond();
+  }
+
+  @Override
+  public double getRollbacksPerSecond() {
+    return snapshot().getRollbacksPerSecond();
+  }
+
+  @Override
+  public long getTransactionLatencyP50Micros() {
+    return transactionLatencies.getPercentileMicros(50);
+  }
+
+  @Override
+  public long getTransactionLatencyP99Micros() {
+    return transactionLatencies.getPercentileMicros(99);
+  }
+
+  @Override
+  public double getObjectsFlushedPerCommit() {
+    return snapshot().getObjectsFlushedPerCommit();
+  }
+
+  @Override
+  public double getLevel1HitRate() {
+    return snapshot().getLevel1HitRate();
+  }
+
+  @Override
+  public double getLevel2HitRate() {
+    return snapshot().getLevel2HitRate();
+  }
+
+  @Override
+  public Map<String, QueryStatistics> getQueryStatistics() {
+    return snapshot().getQueryStatistics();
+  }
+
+  /** Counters of the executions of one query. */
+  private static final class QueryRecorder {
+    final LongAdder executions = new LongAdder();
+    final LongAdder nanos = new LongAdder();
+    final LatencyHistogram latencies = new LatencyHistogram();
+
+    QueryStatistics statistics() {
+      return new QueryStatistics(executions.sum(), nanos.sum(), latencies.getCounts());
+    }
+  }
+
+  /** Execution statistics of one query, read by {@link PersistenceMetrics#snapshot()}. */
+  public static final class QueryStatistics {
+    private final long nrOfExecutions;
+    private final long totalNanos;
+    private final long[] latencyHistogram;
+
+    QueryStatistics(long nrOfExecutions, long totalNanos, long[] latencyHistogram) {
+      this.nrOfExecutions = nrOfExecutions;
+      this.totalNanos = totalNanos;
+      this.latencyHistogram = latencyHistogram;
+    }
+
+    /**
+     * Method returning the number of executions of the query.
+     *
+     * @return number of executions
+     */
+    public long getNrOfExecutions() {
+      return nrOfExecutions;
+    }
+
+    /**
+     * Method returning the average execution time.
+     *
+     * @return average time in microseconds
+     */
+    public double getAverageMicros() {
+      return ratio(totalNanos, nrOfExecutions) / 1000;
+    }
+
+    /**
+     * Method returning the number of executions per latency bucket. Bucket 0 counts latencies
+     * below 1 microsecond, bucket i &gt; 0 latencies from 2^(i-1) up to 2^i microseconds.
+     *
+     * @return the number of executions per bucket
+     */
+    public long[] getLatencyHistogram() {
+      return latencyHistogram.clone();
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding a percentile of the execution latencies.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the upper bound in microseconds, 0 if the query was not executed
+     */
+    public long getLatencyPercentileMicros(double percentile) {
+      return LatencyHistogram.percentileMicros(latencyHistogram, percentile);
+    }
+
+    /**
+     * Method returning the 99th percentile of the execution latencies.
+     *
+     * @return upper bound of the percentile in microseconds
+     */
+    public long getLatencyP99Micros() {
+      return getLatencyPercentileMicros(99);
+    }
+  }
+
+  /** Immutable values of all metrics, read together by {@link PersistenceMetrics#snapshot()}. */
+  public static final class Snapshot {
+    private final long uptimeNanos;
+    private final long nrOfOpened;
+    private final long nrOfClosed;
+    private final long nrOfCommits;
+    private final long nrOfRollbacks;
+    private final long nrOfObjectsFlushed;
+    private final long nrOfLevel1Hits;
+    private final long nrOfLevel2Hits;
+    private final long nrOfCacheMisses;
+    private final long[] transactionLatencyHistogram;
+    private final Map<String, QueryStatistics> queryStatistics;
+
+    Snapshot(PersistenceMetrics metrics, Map<String, QueryStatistics> queryStatistics) {
+      // Read in the reverse order of recording, e.g. every commit read is in the latencies read
+      nrOfClosed = metrics.nrOfClosed.sum();
+      nrOfOpened = metrics.nrOfOpened.sum();
+      nrOfCommits = metrics.nrOfCommits.sum();
+      nrOfRollbacks = metrics.nrOfRollbacks.sum();
+      nrOfObjectsFlushed = metrics.nrOfObjectsFlushed.sum();
+      transactionLatencyHistogram = metrics.transactionLatencies.getCounts();
+      nrOfLevel1Hits = metrics.nrOfLevel1Hits.sum();
+      nrOfLevel2Hits = metrics.nrOfLevel2Hits.sum();
+      nrOfCacheMisses = metrics.nrOfCacheMisses.sum();
+      uptimeNanos = System.nanoTime() - metrics.startNanos;
+      this.queryStatistics = Collections.unmodifiableMap(queryStatistics);
+    }
+
+    /**
+     * Method returning the time from the creation of the metrics to this snapshot.
+     *
+     * @return the time in milliseconds
+     */
+    public long getUptimeMillis() {
+      return uptimeNanos / 1_000_000;
+    }
+
+    /**
+     * Method returning the number of PersistenceManagers opened so far.
+     *
+     * @return number of opened PersistenceManagers
+     */
+    public long getNrOfPersistenceManagers() {
+      return nrOfOpened;
+    }
+
+    /**
+     * Method returning the number of open PersistenceManagers.
+     *
+     * @return number of open PersistenceManagers
+     */
+    public long getNrOfActivePersistenceManagers() {
+      return nrOfOpened - nrOfClosed;
+    }
+
+    /**
+     * Method returning the number of committed transactions.
+     *
+     * @return number of commits
+     */
+    public long getNrOfCommits() {
+      return nrOfCommits;
+    }
+
+    /**
+     * Method returning the number of rolled back transactions, including failed commits.
+     *
+     * @return number of rollbacks
+     */
+    public long getNrOfRollbacks() {
+      return nrOfRollbacks;
+    }
+
+    /**
+     * Method returning the average number of commits per second over the uptime.
+     *
+     * @return commits per second
+     */
+    public double getCommitsPerSecond() {
+      return ratio(nrOfCommits * 1_000_000_000L, uptimeNanos);
+    }
+
+    /**
+     * Method returning the average number of rollbacks per second over the uptime.
+     *
+     * @return rollbacks per second
+     */
+    public double getRollbacksPerSecond() {
+      return ratio(nrOfRollbacks * 1_000_000_000L, uptimeNanos);
+    }
+
+    /**
+     * Method returning the number of transactions per latency bucket, the latency being the time
+     * from begin to commit or rollback. Bucket 0 counts latencies below 1 microsecond, bucket i
+     * &gt; 0 latencies from 2^(i-1) up to 2^i microseconds.
+     *
+     * @return the number of transactions per bucket
+     */
+    public long[] getTransactionLatencyHistogram() {
+      return transactionLatencyHistogram.clone();
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding a percentile of the transaction latencies.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the upper bound in microseconds, 0 if no transaction ended
+     */
+    public long getTransactionLatencyPercentileMicros(double percentile) {
+      return LatencyHistogram.percentileMicros(transactionLatencyHistogram, percentile);
+    }
+
+    /**
+     * Method returning the number of objects inserted or updated by committed transactions.
+     *
+     * @return number of flushed objects
+     */
+    public long getNrOfObjectsFlushed() {
+      return nrOfObjectsFlushed;
+    }
+
+    /**
+     * Method returning the average number of objects inserted or updated per commit.
+     *
+     * @return objects flushed per commit
+     */
+    public double getObjectsFlushedPerCommit() {
+      return ratio(nrOfObjectsFlushed, nrOfCommits);
+    }
+
+    /**
+     * Method returning the number of getObjectById calls answered by the L1 cache.
+     *
+     * @return number of L1 hits
+     */
+    public long getNrOfLevel1Hits() {
+      return nrOfLevel1Hits;
+    }
+
+    /**
+     * Method returning the number of getObjectById calls answered by the L2 cache.
+     *
+     * @return number of L2 hits
+     */
+    public long getNrOfLevel2Hits() {
+      return nrOfLevel2Hits;
+    }
+
+    /**
+     * Method returning the number of getObjectById calls missing both caches.
+     *
+     * @return number of misses
+     */
+    public long getNrOfCacheMisses() {
+      return nrOfCacheMisses;
+    }
+
+    /**
+     * Method returning the fraction of getObjectById calls answered by the L1 cache.
+     *
+     * @return the hit rate, between 0 and 1
+     */
+    public double getLevel1HitRate() {
+      return ratio(nrOfLevel1Hits, nrOfLevel1Hits + nrOfLevel2Hits + nrOfCacheMisses);
+    }
+
+    /**
+     * Method returning the fraction of getObjectById calls missing the L1 cache that are
+     * answered by the L2 cache.
+     *
+     * @return the hit rate, between 0 and 1
+     */
+    public double getLevel2HitRate() {
+      return ratio(nrOfLevel2Hits, nrOfLevel2Hits + nrOfCacheMisses);
+    }
+
+    /**
+     * Method returning the execution statistics per single-string query, sorted by query.
+     *
+     * @return the statistics by query
+     */
+    public Map<String, QueryStatistics> getQueryStatistics() {
+      return queryStatistics;
+    }
+  }
+}
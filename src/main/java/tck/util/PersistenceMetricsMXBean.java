@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tck.util;
+
+import java.util.Map;
+
+/**
+ * JMX view of the {@link PersistenceMetrics} of a PersistenceManagerFactory. The attributes are
+ * read from a new snapshot each, {@link #getSnapshot()} returns all of them read together.
+ */
+public interface PersistenceMetricsMXBean {
+
+  /**
+   * Returns the current values of all metrics.
+   *
+   * @return the snapshot
+   */
+  PersistenceMetrics.Snapshot getSnapshot();
+
+  /**
+   * Method returning the number of open PersistenceManagers.
+   *
+   * @return number of open PersistenceManagers
+   */
+  long getNrOfActivePersistenceManagers();
+
+  /**
+   * Method returning the number of committed transactions.
+   *
+   * @return number of commits
+   */
+  long getNrOfCommits();
+
+  /**
+   * Method returning the number of rolled back transactions.
+   *
+   * @return number of rollbacks
+   */
+  long getNrOfRollbacks();
+
+  /**
+   * Method returning the average number of commits per second since the metrics were created.
+   *
+   * @return commits per second
+   */
+  double getCommitsPerSecond();
+
+  /**
+   * Method returning the average number of rollbacks per second since the metrics were created.
+   *
+   * @return rollbacks per second
+   */
+  double getRollbacksPerSecond();
+
+  /**
+   * Method returning the median transaction latency, from begin to commit or rollback.
+   *
+   * @return upper bound of the median in microseconds
+   */
+  long getTransactionLatencyP50Micros();
+
+  /**
+   * Method returning the 99th percentile of the transaction latency.
+   *
+   * @return upper bound of the percentile in microseconds
+   */
+  long getTransactionLatencyP99Micros();
+
+  /**
+   * Method returning the average number of objects inserted or updated per commit.
+   *
+   * @return objects flushed per commit
+   */
+  double getObjectsFlushedPerCommit();
+
+  /**
+   * Method returning the fraction of getObjectById calls answered by the L1 cache.
+   *
+   * @return the hit rate, between 0 and 1
+   */
+  double getLevel1HitRate();
+
+  /**
+   * Method returning the fraction of getObjectById calls missing the L1 cache and answered by the
+   * L2 cache.
+   *
+   * @return the hit rate, between 0 and 1
+   */
+  double getLevel2HitRate();
+
+  /**
+   * Method returning the execution statistics per single-string query.
+   *
+   * @return the statistics by query
+   */
+  Map<String, PersistenceMetrics.QueryStatistics> getQueryStatistics();
+}
@@ -0,0 +1,276 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tck.util;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.jdo.JDOFatalException;
+import javax.jdo.JDOHelper;
+import javax.jdo.PersistenceManagerFactory;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Helper selecting the persistence unit of META-INF/persistence.xml used by the tests and
+ * benchmarks. All units map the same classes and differ only in the H2 datastore:
+ *
+ * <ul>
+ *   <li>{@link #MEMORY}: in-memory database, the default.
+ *   <li>{@link #FILE}: MVStore file below target/h2 with a 64 MB page cache.
+ *   <li>{@link #FILE_WRITE_DELAY}: as FILE, but commits are written to disk together every 500
+ *       ms instead of one by one.
+ * </ul>
+ *
+ * <p>The unit is selected with the system property {@value #PROPERTY_PERSISTENCE_UNIT}, e.g.
+ * {@code mvn test -Dtck.persistenceUnit=MyTest-file}.
+ *
+ * <p>Test forks running in parallel get a database of their own: when the system property {@value
+ * #PROPERTY_FORK} is set, e.g. by surefire to its fork number, the database name of the unit's
+ * connection URL is suffixed with "-fork" and the fork number.
+ *
+ * <p>With the system property {@value #PROPERTY_JFR_EVENTS} set to true the factories are wrapped
+ * by {@link PersistenceEvents#wrap}, so their operations are visible in Flight Recordings. With
+ * {@value #PROPERTY_METRICS} set to true they record {@link PersistenceMetrics}, registered as
+ * MXBean with the platform MBeanServer until the factory is closed.
+ *
+ * <p>{@link #getReadOnlyPersistenceManagerFactory()} opens a unit for read-only workloads: objects
+ * are read without a transaction over read-only connections (and from the L2 cache), so nothing is
+ * flushed or committed, and any write fails immediately with a JDOException.
+ */
+public final class PersistenceUnits {
+
+  /** System property naming the persistence unit. */
+  public static final String PROPERTY_PERSISTENCE_UNIT = "tck.persistenceUnit";
+
+  /** System property naming the test fork, i.e. the suffix of the database name. */
+  public static final String PROPERTY_FORK = "tck.fork";
+
+  /** System property enabling the JFR events of the PersistenceManagerFactories. */
+  public static final String PROPERTY_JFR_EVENTS = "tck.jfrEvents";
+
+  /** System property enabling the JMX metrics of the PersistenceManagerFactories. */
+  public static final String PROPERTY_METRICS = "tck.metrics";
+
+  private static final String PROPERTY_CONNECTION_URL = "javax.jdo.option.ConnectionURL";
+
+  public static final String MEMORY = "MyTest";
+  public static final String FILE = "MyTest-file";
+  public static final String FILE_WRITE_DELAY = "MyTest-file-writeDelay";
+
+  private static final List<String> ALL =
+      Collections.unmodifiableList(Arrays.asList(MEMORY, FILE, FILE_WRITE_DELAY));
+
+  /** Connection URLs by unit, as in the persistence.xml files. Read when first needed. */
+  private static Map<String, String> connectionUrls;
+
+  private static final Map<String, String> READ_ONLY_PROPERTIES = new HashMap<>();
+
+  static {
+    READ_ONLY_PROPERTIES.put("javax.jdo.option.ReadOnly", "true");
+    READ_ONLY_PROPERTIES.put("datanucleus.readOnlyDatastoreAction", "EXCEPTION");
+    READ_ONLY_PROPERTIES.put("javax.jdo.option.NontransactionalRead", "true");
+    READ_ONLY_PROPERTIES.put("javax.jdo.option.NontransactionalWrite", "false");
+    // The schema is created by the read-write units, a read-only one must not drop it
+    READ_ONLY_PROPERTIES.put("datanucleus.schema.generateDatabase.mode", "none");
+    READ_ONLY_PROPERTIES.put("datanucleus.schema.autoCreateAll", "false");
+  }
+
+  private PersistenceUnits() {}
+
+  /**
+   * Method returning the name of the selected persistence unit.
+   *
+   * @return the value of the system property, or MEMORY if not set
+   */
+  public static String getName() {
+    String name = System.getProperty(PROPERTY_PERSISTENCE_UNIT);
+    return name == null || name.isEmpty() ? MEMORY : name;
+  }
+
+  /**
+   * Method returning the names of all persistence units.
+   *
+   * @return the names
+   */
+  public static List<String> getAll() {
+    return ALL;
+  }
+
+  /**
+   * Returns the PersistenceManagerFactory of the selected persistence unit.
+   *
+   * @return the PersistenceManagerFactory
+   */
+  public static PersistenceManagerFactory getPersistenceManagerFactory() {
+    return getPersistenceManagerFactory(Collections.emptyMap());
+  }
+
+  /**
+   * Returns a PersistenceManagerFactory of the selected persistence unit, with some of its
+   * properties replaced.
+   *
+   * @param overrides the properties to replace
+   * @return the PersistenceManagerFactory
+   */
+  public static PersistenceManagerFactory getPersistenceManagerFactory(Map<?, ?> overrides) {
+    return getPersistenceManagerFactory(getName(), overrides);
+  }
+
+  /**
+   * Returns a PersistenceManagerFactory of a persistence unit, with some of its properties
+   * replaced.
+   *
+   * @param unitName the name of the persistence unit
+   * @param overrides the properties to replace
+   * @return the PersistenceManagerFactory
+   */
+  public static PersistenceManagerFactory getPersistenceManagerFactory(
+      String unitName, Map<?, ?> overrides) {
+    PersistenceManagerFactory pmf =
+        JDOHelper.getPersistenceManagerFactory(forFork(unitName, overrides), unitName);
+    return instrument(unitName, pmf);
+  }
+
+  /**
+   * Returns a read-only PersistenceManagerFactory of the selected persistence unit. Its
+   * PersistenceManagers read without a transaction and reject every write.
+   *
+   * @return the PersistenceManagerFactory
+   */
+  public static PersistenceManagerFactory getReadOnlyPersistenceManagerFactory() {
+    return getReadOnlyPersistenceManagerFactory(Collections.emptyMap());
+  }
+
+  /**
+   * Returns a read-only PersistenceManagerFactory of the selected persistence unit, with some of
+   * its properties replaced.
+   *
+   * @param overrides the properties to replace
+   * @return the PersistenceManagerFactory
+   */
+  public static PersistenceManagerFactory getReadOnlyPersistenceManagerFactory(
+      Map<?, ?> overrides) {
+    Map<Object, Object> props = new HashMap<>(READ_ONLY_PROPERTIES);
+    props.putAll(overrides);
+    return getPersistenceManagerFactory(props);
+  }
+
+  /**
+   * Method returning the connection URL of the selected persistence unit in this fork.
+   *
+   * @return the URL, or null for a unit without one
+   */
+  public static String getConnectionURL() {
+    return getConnectionURL(getName());
+  }
+
+  /**
+   * Method returning the connection URL of a persistence unit in this fork.
+   *
+   * @param unitName the name of the persistence unit
+   * @return the URL, or null for a unit without one
+   */
+  public static String getConnectionURL(String unitName) {
+    String url = getConnectionURLs().get(unitName);
+    String fork = System.getProperty(PROPERTY_FORK);
+    if (url == null || fork == null || fork.isEmpty()) {
+      return url;
+    }
+    int end = url.indexOf(';');
+    return end < 0
+        ? url + "-fork" + fork
+        : url.substring(0, end) + "-fork" + fork + url.substring(end);
+  }
+
+  private static PersistenceManagerFactory instrument(
+      String unitName, PersistenceManagerFactory pmf) {
+    if (Boolean.getBoolean(PROPERTY_METRICS)) {
+      PersistenceMetrics metrics = new PersistenceMetrics(unitName);
+      metrics.register();
+      return PersistenceEvents.wrap(pmf, metrics);
+    }
+    return Boolean.getBoolean(PROPERTY_JFR_EVENTS) ? PersistenceEvents.wrap(pmf) : pmf;
+  }
+
+  private static synchronized Map<String, String> getConnectionURLs() {
+    if (connectionUrls == null) {
+      connectionUrls = readConnectionURLs();
+    }
+    return connectionUrls;
+  }
+
+  /**
+   * Reads the connection URL of each unit from the persistence.xml files on the class path. As
+   * with JDOHelper, the first unit of a name wins.
+   */
+  private static Map<String, String> readConnectionURLs() {
+    Map<String, String> urls = new HashMap<>();
+    try {
+      DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+      factory.setNamespaceAware(true);
+      DocumentBuilder builder = factory.newDocumentBuilder();
+      Enumeration<URL> resources =
+          PersistenceUnits.class.getClassLoader().getResources("META-INF/persistence.xml");
+      while (resources.hasMoreElements()) {
+        URL resource = resources.nextElement();
+        Document document;
+        try (InputStream in = resource.openStream()) {
+          document = builder.parse(in, resource.toString());
+        }
+        NodeList units = document.getElementsByTagNameNS("*", "persistence-unit");
+        for (int i = 0; i < units.getLength(); i++) {
+          Element unit = (Element) units.item(i);
+          NodeList properties = unit.getElementsByTagNameNS("*", "property");
+          for (int j = 0; j < properties.getLength(); j++) {
+            Element property = (Element) properties.item(j);
+            if (PROPERTY_CONNECTION_URL.equals(property.getAttribute("name"))) {
+              urls.putIfAbsent(unit.getAttribute("name"), property.getAttribute("value"));
+            }
+          }
+        }
+      }
+    } catch (IOException | ParserConfigurationException | SAXException ex) {
+      throw new JDOFatalException("Cannot read the persistence units", ex);
+    }
+    return urls;
+  }
+
+  private static Map<?, ?> forFork(String unitName, Map<?, ?> overrides) {
+    String url = getConnectionURL(unitName);
+    if (url == null
+        || overrides.containsKey(PROPERTY_CONNECTION_URL)
+        || System.getProperty(PROPERTY_FORK) == null) {
+      return overrides;
+    }
+    Map<Object, Object> props = new HashMap<>(overrides);
+    props.put(PROPERTY_CONNECTION_URL, url);
+    return props;
+  }
+}
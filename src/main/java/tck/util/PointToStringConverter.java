@@ -35,6 +35,8 @@ public class PointToStringConverter extends PointConversionCounter
    */
   @Override
   public String convertToDatastore(Point attributeValue) {
+    PersistenceEvents.ConversionEvent event = new PersistenceEvents.ConversionEvent();
+    event.begin();
     incNrOfConvertToDatastoreCalls();
     String datastoreValue = null;
     if (attributeValue != null) {
@@ -43,6 +45,7 @@ public class PointToStringConverter extends PointConversionCounter
               + SEPARATOR
               + (attributeValue.getY() == null ? Integer.valueOf(0) : attributeValue.getY());
     }
+    event.end(getClass(), "convertToDatastore");
     return datastoreValue;
   }
 
@@ -55,6 +58,8 @@ public class PointToStringConverter extends PointConversionCounter
    */
   @Override
   public Point convertToAttribute(String datastoreValue) {
+    PersistenceEvents.ConversionEvent event = new PersistenceEvents.ConversionEvent();
+    event.begin();
     incNrOfConvertToAttributeCalls();
     Point attributeValue = null;
     if (datastoreValue != null) {
@@ -65,6 +70,7 @@ public class PointToStringConverter extends PointConversionCounter
         attributeValue = new Point(x == null ? 0 : x.intValue(), y);
       }
     }
+    event.end(getClass(), "convertToAttribute");
     return attributeValue;
   }
 }
@@ -0,0 +1,293 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tck.util;
+
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.ObjectState;
+import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Caches the object ids returned by JDOQL queries. Entries are keyed by candidate class, filter and
+ * parameter values, compared with equals and hashCode. Parameters of a type with a registered key
+ * function are keyed by its result instead, e.g. a copy of a mutable Point, so that changing the
+ * Point after the query does not change the key. Keys are not built with the AttributeConverters,
+ * which would count a conversion for each lookup. A cache hit returns
+ * the cached ids resolved in the caller's PersistenceManager, taking the instances from the level
+ * 1 or level 2 cache where possible, so neither the query nor the conversion of the result
+ * columns is repeated.
+ *
+ * <p>All entries for a candidate class are dropped when a transaction storing or deleting an
+ * instance of that class commits. The cache learns about commits through a {@link CommitNotifier},
+ * so every PersistenceManager writing to the candidate classes must be attached to it. Entries
+ * also expire after a configurable time, and the least recently used entries are dropped when the
+ * cache is full.
+ */
+public class QueryResultCache implements CommitNotifier.Listener {
+
+  private static final EnumSet<ObjectState> CHANGED_STATES =
+      EnumSet.of(
+          ObjectState.PERSISTENT_NEW,
+          ObjectState.PERSISTENT_DIRTY,
+          ObjectState.PERSISTENT_DELETED,
+          ObjectState.PERSISTENT_NEW_DELETED);
+
+  private final CommitNotifier notifier;
+  private final int maxEntries;
+  private final long ttlNanos;
+  private final Map<Class<?>, Function<Object, ?>> keyFunctions = new HashMap<>();
+  private final ObjectIdBatchFetcher fetcher = new ObjectIdBatchFetcher(100);
+  private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+
+  /** Incremented on each invalidation, so results of queries overlapping a commit are not cached. */
+  private final AtomicLong epoch = new AtomicLong();
+
+  private final LongAdder nrOfHits = new LongAdder();
+  private final LongAdder nrOfMisses = new LongAdder();
+  private final LongAdder nrOfInvalidations = new LongAdder();
+
+  /**
+   * Creates a cache and registers it with the notifier.
+   *
+   * @param notifier the notifier reporting the commits of the writing PersistenceManagers
+   * @param maxEntries maximum number of cached query results
+   * @param ttl time after which a cached result expires
+   * @param unit the unit of ttl
+   */
+  public QueryResultCache(CommitNotifier notifier, int maxEntries, long ttl, TimeUnit unit) {
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+    }
+    this.notifier = notifier;
+    this.maxEntries = maxEntries;
+    this.ttlNanos = unit.toNanos(ttl);
+    notifier.addListener(this);
+  }
+
+  /**
+   * Registers the function building the cache key for parameters of the given type and its
+   * subclasses. The key must implement equals and hashCode and must not change later.
+   *
+   * @param type the parameter type
+   * @param keyFunction the function returning the key of a parameter value
+   * @param <P> the parameter type
+   */
+  @SuppressWarnings("unchecked")
+  public synchronized <P> void registerKeyFunction(
+      Class<P> type, Function<? super P, ?> keyFunction) {
+    keyFunctions.put(type, (Function<Object, ?>) keyFunction);
+  }
+
+  /**
+   * Executes a query, or returns its cached result. The result is only cached if the
+   * PersistenceManager has no uncommitted changes to instances of the candidate class.
+   *
+   * @param pm the PersistenceManager to return the instances in
+   * @param candidateClass the candidate class of the query
+   * @param filter the JDOQL filter
+   * @param params the values of the parameters in the filter, in order of declaration
+   * @param <T> the candidate class
+   * @return the query result
+   */
+  public <T> List<T> executeList(
+      PersistenceManager pm, Class<T> candidateClass, String filter, Object... params) {
+    notifier.attach(pm);
+    if (!pm.getManagedObjects(CHANGED_STATES, candidateClass).isEmpty()) {
+      return execute(pm, candidateClass, filter, params);
+    }
+    Key key = new Key(candidateClass, filter, toKeyValues(params));
+    List<Object> oids = lookup(key);
+    if (oids != null) {
+      try {
+        List<T> result = new ArrayList<>(oids.size());
+        for (Object pc : fetcher.getObjectsById(pm, oids)) {
+          result.add(candidateClass.cast(pc));
+        }
+        nrOfHits.increment();
+        return result;
+      } catch (JDOObjectNotFoundException ex) {
+        // Deleted by a PersistenceManager not attached to the notifier
+        remove(key);
+      }
+    }
+    nrOfMisses.increment();
+    long startEpoch = epoch.get();
+    List<T> result = execute(pm, candidateClass, filter, params);
+    List<Object> resultOids = new ArrayList<>(result.size());
+    for (T pc : result) {
+      resultOids.add(pm.getObjectId(pc));
+    }
+    store(key, Collections.unmodifiableList(resultOids), startEpoch);
+    return result;
+  }
+
+  @Override
+  public void afterCommit(List<CommitNotifier.Change> changes) {
+    synchronized (this) {
+      epoch.incrementAndGet();
+      Iterator<Key> keys = entries.keySet().iterator();
+      while (keys.hasNext()) {
+        Key key = keys.next();
+        for (CommitNotifier.Change change : changes) {
+          if (key.candidateClass.isAssignableFrom(change.getPersistentClass())) {
+            keys.remove();
+            nrOfInvalidations.increment();
+            break;
+          }
+        }
+      }
+    }
+  }
+
+  /** Removes all cached results. */
+  public synchronized void clear() {
+    epoch.incrementAndGet();
+    entries.clear();
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public long getNrOfHits() {
+    return nrOfHits.sum();
+  }
+
+  public long getNrOfMisses() {
+    return nrOfMisses.sum();
+  }
+
+  /**
+   * Method returning the number of entries dropped because a commit changed their candidate class.
+   *
+   * @return number of invalidated entries
+   */
+  public long getNrOfInvalidations() {
+    return nrOfInvalidations.sum();
+  }
+
+  private <T> List<T> execute(
+      PersistenceManager pm, Class<T> candidateClass, String filter, Object... params) {
+    try (Query<T> query = pm.newQuery(candidateClass, filter)) {
+      query.setParameters(params);
+      return new ArrayList<>(query.executeList());
+    } catch (Exception ex) {
+      throw ex instanceof RuntimeException
+          ? (RuntimeException) ex
+          : new IllegalStateException(ex);
+    }
+  }
+
+  private synchronized List<Object> lookup(Key key) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (System.nanoTime() - entry.created > ttlNanos) {
+      entries.remove(key);
+      return null;
+    }
+    return entry.oids;
+  }
+
+  private synchronized void store(Key key, List<Object> oids, long startEpoch) {
+    if (epoch.get() != startEpoch) {
+      // A commit overlapped the query, the result may be stale already
+      return;
+    }
+    entries.put(key, new Entry(oids, System.nanoTime()));
+    Iterator<Entry> eldest = entries.values().iterator();
+    while (entries.size() > maxEntries) {
+      eldest.next();
+      eldest.remove();
+    }
+  }
+
+  private synchronized void remove(Key key) {
+    entries.remove(key);
+  }
+
+  private synchronized List<Object> toKeyValues(Object[] params) {
+    List<Object> values = new ArrayList<>(params.length);
+    for (Object param : params) {
+      Function<Object, ?> keyFunction = null;
+      for (Class<?> c = param == null ? null : param.getClass();
+          c != null && keyFunction == null;
+          c = c.getSuperclass()) {
+        keyFunction = keyFunctions.get(c);
+      }
+      values.add(keyFunction == null ? param : keyFunction.apply(param));
+    }
+    return values;
+  }
+
+  private static final class Key {
+    final Class<?> candidateClass;
+    final String filter;
+    final List<Object> params;
+
+    Key(Class<?> candidateClass, String filter, List<Object> params) {
+      this.candidateClass = candidateClass;
+      this.filter = filter;
+      this.params = params;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return candidateClass == other.candidateClass
+          && filter.equals(other.filter)
+          && params.equals(other.params);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(candidateClass, filter, params);
+    }
+
+    public String toString() {
+      return candidateClass.getSimpleName() + ": " + filter + " " + Arrays.toString(params.toArray());
+    }
+  }
+
+  private static final class Entry {
+    final List<Object> oids;
+    final long created;
+
+    Entry(List<Object> oids, long created) {
+      this.oids = oids;
+      this.created = created;
+    }
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tck.util;
+
+import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Helper running a JDOQL query and returning its result as a lazily fetched Stream. The result is
+ * read through a forward-only JDBC cursor in chunks of the given fetch size and is not cached by
+ * the query, so only the instances currently processed by the caller are kept in memory.
+ * Instances already visited are evicted from the PersistenceManager, releasing their field values.
+ *
+ * <p>The returned Stream holds an open cursor and must be closed, preferably with
+ * try-with-resources. It has to be consumed while the PersistenceManager (and its transaction, if
+ * any) is still open.
+ */
+public final class QueryStreams {
+
+  /** Fetch size used when none is given. */
+  public static final int DEFAULT_FETCH_SIZE = 500;
+
+  private QueryStreams() {}
+
+  /**
+   * Returns all instances of the candidate class as lazily fetched Stream.
+   *
+   * @param pm the PersistenceManager used to execute the query
+   * @param candidateClass the candidate class of the query
+   * @return a Stream of the candidate instances
+   */
+  public static <T> Stream<T> stream(PersistenceManager pm, Class<T> candidateClass) {
+    return stream(pm, candidateClass, null, DEFAULT_FETCH_SIZE);
+  }
+
+  /**
+   * Runs the query with the given filter and returns its result as lazily fetched Stream.
+   *
+   * @param pm the PersistenceManager used to execute the query
+   * @param candidateClass the candidate class of the query
+   * @param filter the JDOQL filter, or null to return all instances of the candidate class
+   * @param fetchSize the number of rows fetched from the datastore per round trip
+   * @param parameters the values of the query parameters, in declaration order
+   * @return a Stream of the query result
+   */
+  public static <T> Stream<T> stream(
+      PersistenceManager pm,
+      Class<T> candidateClass,
+      String filter,
+      int fetchSize,
+      Object... parameters) {
+    if (fetchSize < 1) {
+      throw new IllegalArgumentException("fetchSize must be positive: " + fetchSize);
+    }
+    Query<T> query =
+        filter == null ? pm.newQuery(candidateClass) : pm.newQuery(candidateClass, filter);
+    query.getFetchPlan().setFetchSize(fetchSize);
+    // Do not keep already read result objects in the query result, and do not read the rest of
+    // the result when the transaction commits
+    query.addExtension("datanucleus.query.resultCacheType", "none");
+    query.addExtension("datanucleus.query.loadResultsAtCommit", "false");
+    query.addExtension("datanucleus.rdbms.query.resultSetType", "forward-only");
+    if (parameters.length > 0) {
+      query.setParameters(parameters);
+    }
+    Iterator<T> iterator = new EvictingIterator<>(pm, query.executeList().iterator());
+    return StreamSupport.stream(
+            Spliterators.spliteratorUnknownSize(
+                iterator, Spliterator.ORDERED | Spliterator.NONNULL),
+            false)
+        .onClose(query::closeAll);
+  }
+
+  /** Iterator evicting the previously returned instance whenever the caller moves on. */
+  private static final class EvictingIterator<T> implements Iterator<T> {
+    private final PersistenceManager pm;
+    private final Iterator<T> delegate;
+    private T previous;
+
+    EvictingIterator(PersistenceManager pm, Iterator<T> delegate) {
+      this.pm = pm;
+      this.delegate = delegate;
+    }
+
+    @Override
+    public boolean hasNext() {
+      boolean hasNext = delegate.hasNext();
+      if (!hasNext) {
+        evictPrevious();
+      }
+      return hasNext;
+    }
+
+    @Override
+    public T next() {
+      if (!delegate.hasNext()) {
+        evictPrevious();
+        throw new NoSuchElementException();
+      }
+      T next = delegate.next();
+      evictPrevious();
+      previous = next;
+      return next;
+    }
+
+    private void evictPrevious() {
+      if (previous != null) {
+        pm.evict(previous);
+        previous = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,453 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tck.util;
+
+import tck.model.Point;
+import tck.pc.IPCRect;
+
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Column-wise in-memory copy of the corners of all instances of one rect class. The coordinates
+ * are kept in int arrays, one per coordinate, with a bitmap marking null y values (stored as 0), so
+ * aggregate scans run over primitive arrays instead of millions of persistent instances.
+ *
+ * <p>{@link #load} fills new columns in one streaming pass over the rect class and then replaces
+ * the current ones, so scans keep running on the old columns meanwhile. The snapshot follows the
+ * commits of the PersistenceManagers attached to its {@link CommitNotifier}: rows of deleted rects
+ * are marked dead, stored rects are read again and their rows updated or appended. Once more than
+ * {@value #MAX_DEAD_ROWS_PERCENT}% of the rows are dead, the live rows are moved together. Scans
+ * run in parallel and see a consistent state; updates wait for running scans.
+ *
+ * @param <T> the rect class
+ */
+public class RectColumnSnapshot<T extends IPCRect> implements CommitNotifier.Listener {
+
+  /** Share of dead rows above which the rows are compacted. */
+  public static final int MAX_DEAD_ROWS_PERCENT = 25;
+
+  private static final int INITIAL_CAPACITY = 1024;
+  private static final int MAX = Integer.MAX_VALUE;
+  private static final int MIN = Integer.MIN_VALUE;
+
+  private final PersistenceManagerFactory pmf;
+  private final Class<T> rectClass;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private Rows rows = new Rows();
+  /** Changes committed while {@link #load} reads, applied again to the loaded rows. */
+  private List<CommitNotifier.Change> changedDuringLoad;
+
+  /**
+   * Creates an empty snapshot and registers it with the notifier.
+   *
+   * @param pmf the PersistenceManagerFactory to load the rects from
+   * @param rectClass the rect class
+   * @param notifier the notifier reporting the commits of the writing PersistenceManagers
+   */
+  public RectColumnSnapshot(
+      PersistenceManagerFactory pmf, Class<T> rectClass, CommitNotifier notifier) {
+    this.pmf = pmf;
+    this.rectClass = rectClass;
+    notifier.addListener(this);
+  }
+
+  /**
+   * Replaces the content of the snapshot with all persistent instances of the rect class. The
+   * changes committed while reading are applied to the new content afterwards.
+   *
+   * @return number of loaded rects
+   */
+  public synchronized int load() {
+    lock.writeLock().lock();
+    try {
+      changedDuringLoad = new ArrayList<>();
+    } finally {
+      lock.writeLock().unlock();
+    }
+    Rows loaded = new Rows();
+    PersistenceManager pm = pmf.getPersistenceManager();
+    try {
+      pm.currentTransaction().begin();
+      try (Stream<T> rects = QueryStreams.stream(pm, rectClass)) {
+        Iterator<T> it = rects.iterator();
+        while (it.hasNext()) {
+          T rect = it.next();
+          loaded.setRow(pm.getObjectId(rect), rect);
+        }
+      }
+      pm.currentTransaction().commit();
+    } finally {
+      if (pm.currentTransaction().isActive()) {
+        pm.currentTransaction().rollback();
+      }
+      pm.close();
+    }
+    List<CommitNotifier.Change> missed;
+    lock.writeLock().lock();
+    try {
+      rows = loaded;
+      missed = changedDuringLoad;
+      changedDuringLoad = null;
+    } finally {
+      lock.writeLock().unlock();
+    }
+    if (!missed.isEmpty()) {
+      afterCommit(missed);
+    }
+    return size();
+  }
+
+  /**
+   * Method returning the number of rects in the snapshot.
+   *
+   * @return number of rects
+   */
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return rows.nrOfLiveRows;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Runs a parallel scan over all rows. The accumulator is called with a result container and a
+   * row number, and reads the row with {@link Columns}.
+   *
+   * @param supplier creates a result container per parallel part
+   * @param accumulator adds a row to a result container
+   * @param combiner merges the second result container into the first
+   * @param <R> the result container
+   * @return the merged result container
+   */
+  public <R> R scan(
+      Supplier<R> supplier, ObjIntConsumer<R> accumulator, BiConsumer<R, R> combiner) {
+    lock.readLock().lock();
+    try {
+      long[] liveBits = rows.live;
+      return IntStream.range(0, rows.nrOfRows)
+          .parallel()
+          .filter(row -> isSet(liveBits, row))
+          .collect(supplier, accumulator, combiner);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Method returning read access to the columns. Only valid within the accumulator of {@link
+   * #scan}.
+   *
+   * @return the columns
+   */
+  public Columns columns() {
+    return new Columns();
+  }
+
+  /**
+   * Returns the bounding box of all rects.
+   *
+   * @return minimum x, minimum y, maximum x and maximum y, or null if the snapshot is empty
+   */
+  public int[] boundingBox() {
+    Columns c = columns();
+    int[] box =
+        scan(
+            () -> new int[] {MAX, MAX, MIN, MIN},
+            (b, row) -> {
+              b[0] = Math.min(b[0], c.getMinX(row));
+              b[1] = Math.min(b[1], c.getMinY(row));
+              b[2] = Math.max(b[2], c.getMaxX(row));
+              b[3] = Math.max(b[3], c.getMaxY(row));
+            },
+            (b1, b2) -> {
+              b1[0] = Math.min(b1[0], b2[0]);
+              b1[1] = Math.min(b1[1], b2[1]);
+              b1[2] = Math.max(b1[2], b2[2]);
+              b1[3] = Math.max(b1[3], b2[3]);
+            });
+    return box[0] > box[2] ? null : box;
+  }
+
+  /**
+   * Counts the rects per area bucket. Areas of at least nrOfBuckets * bucketWidth are counted in
+   * the last bucket.
+   *
+   * @param bucketWidth the area range of one bucket
+   * @param nrOfBuckets the number of buckets
+   * @return the number of rects per bucket
+   */
+  public long[] areaHistogram(long bucketWidth, int nrOfBuckets) {
+    Columns c = columns();
+    return scan(
+        () -> new long[nrOfBuckets],
+        (h, row) -> h[(int) Math.min(nrOfBuckets - 1, c.getArea(row) / bucketWidth)]++,
+        (h1, h2) -> Arrays.setAll(h1, i -> h1[i] + h2[i]));
+  }
+
+  /**
+   * Counts the rects intersecting a window, including rects touching its border.
+   *
+   * @param minX the smallest x coordinate of the window
+   * @param minY the smallest y coordinate of the window
+   * @param maxX the largest x coordinate of the window
+   * @param maxY the largest y coordinate of the window
+   * @return number of intersecting rects
+   */
+  public long countOverlaps(int minX, int minY, int maxX, int maxY) {
+    Columns c = columns();
+    return scan(
+        () -> new long[1],
+        (n, row) -> {
+          if (c.getMinX(row) <= maxX && minX <= c.getMaxX(row)
+              && c.getMinY(row) <= maxY && minY <= c.getMaxY(row)) {
+            n[0]++;
+          }
+        },
+        (n1, n2) -> n1[0] += n2[0])[0];
+  }
+
+  @Override
+  public void afterCommit(List<CommitNotifier.Change> changes) {
+    CommitNotifier.ClassChanges rects = new CommitNotifier.ClassChanges(changes, rectClass);
+    lock.writeLock().lock();
+    try {
+      if (changedDuringLoad != null) {
+        changedDuringLoad.addAll(changes);
+      }
+      for (Object oid : rects.getDeleted()) {
+        rows.removeRow(oid);
+      }
+      rows.compactIfSparse();
+    } finally {
+      lock.writeLock().unlock();
+    }
+    rects.reloadStored(
+        pmf,
+        (oids, instances) -> {
+          lock.writeLock().lock();
+          try {
+            for (int i = 0; i < oids.size(); i++) {
+              if (instances.get(i) == null) {
+                rows.removeRow(oids.get(i));
+              } else {
+                rows.setRow(oids.get(i), rectClass.cast(instances.get(i)));
+              }
+            }
+            rows.compactIfSparse();
+          } finally {
+            lock.writeLock().unlock();
+          }
+        });
+  }
+
+  /** The columns and the row of each rect. */
+  private static final class Rows {
+    int nrOfRows;
+    int nrOfLiveRows;
+    int[] upperLeftX = new int[INITIAL_CAPACITY];
+    int[] upperLeftY = new int[INITIAL_CAPACITY];
+    int[] lowerRightX = new int[INITIAL_CAPACITY];
+    int[] lowerRightY = new int[INITIAL_CAPACITY];
+    long[] upperLeftYNull = new long[INITIAL_CAPACITY / 64];
+    long[] lowerRightYNull = new long[INITIAL_CAPACITY / 64];
+    long[] live = new long[INITIAL_CAPACITY / 64];
+    Object[] oids = new Object[INITIAL_CAPACITY];
+    final Map<Object, Integer> rowByOid = new HashMap<>();
+
+    void setRow(Object oid, IPCRect rect) {
+      Point upperLeft = rect.getUpperLeft();
+      Point lowerRight = rect.getLowerRight();
+      if (upperLeft == null || lowerRight == null) {
+        // No bounds, not part of any scan
+        removeRow(oid);
+        return;
+      }
+      Integer row = rowByOid.get(oid);
+      if (row == null) {
+        row = nrOfRows++;
+        ensureCapacity(nrOfRows);
+        oids[row] = oid;
+        rowByOid.put(oid, row);
+      }
+      if (!isSet(live, row)) {
+        set(live, row, true);
+        nrOfLiveRows++;
+      }
+      upperLeftX[row] = upperLeft.x;
+      upperLeftY[row] = upperLeft.y == null ? 0 : upperLeft.y;
+      set(upperLeftYNull, row, upperLeft.y == null);
+      lowerRightX[row] = lowerRight.x;
+      lowerRightY[row] = lowerRight.y == null ? 0 : lowerRight.y;
+      set(lowerRightYNull, row, lowerRight.y == null);
+    }
+
+    void removeRow(Object oid) {
+      Integer row = rowByOid.get(oid);
+      if (row != null && isSet(live, row)) {
+        set(live, row, false);
+        nrOfLiveRows--;
+      }
+    }
+
+    /** Moves the live rows to the front, in their order, if too many rows are dead. */
+    void compactIfSparse() {
+      long nrOfDeadRows = nrOfRows - nrOfLiveRows;
+      if (nrOfDeadRows * 100 <= (long) nrOfRows * MAX_DEAD_ROWS_PERCENT) {
+        return;
+      }
+      int to = 0;
+      for (int from = 0; from < nrOfRows; from++) {
+        if (!isSet(live, from)) {
+          rowByOid.remove(oids[from]);
+          continue;
+        }
+        if (to != from) {
+          upperLeftX[to] = upperLeftX[from];
+          upperLeftY[to] = upperLeftY[from];
+          lowerRightX[to] = lowerRightX[from];
+          lowerRightY[to] = lowerRightY[from];
+          set(upperLeftYNull, to, isSet(upperLeftYNull, from));
+          set(lowerRightYNull, to, isSet(lowerRightYNull, from));
+          set(live, to, true);
+          oids[to] = oids[from];
+          rowByOid.put(oids[to], to);
+        }
+        to++;
+      }
+      for (int row = to; row < nrOfRows; row++) {
+        set(live, row, false);
+        oids[row] = null;
+      }
+      nrOfRows = to;
+    }
+
+    void ensureCapacity(int capacity) {
+      if (capacity <= upperLeftX.length) {
+        return;
+      }
+      int newCapacity = Math.max(capacity, upperLeftX.length * 2);
+      upperLeftX = Arrays.copyOf(upperLeftX, newCapacity);
+      upperLeftY = Arrays.copyOf(upperLeftY, newCapacity);
+      lowerRightX = Arrays.copyOf(lowerRightX, newCapacity);
+      lowerRightY = Arrays.copyOf(lowerRightY, newCapacity);
+      oids = Arrays.copyOf(oids, newCapacity);
+      int words = (newCapacity + 63) / 64;
+      upperLeftYNull = Arrays.copyOf(upperLeftYNull, words);
+      lowerRightYNull = Arrays.copyOf(lowerRightYNull, words);
+      live = Arrays.copyOf(live, words);
+    }
+  }
+
+  private static boolean isSet(long[] bits, int row) {
+    return (bits[row >>> 6] & (1L << row)) != 0;
+  }
+
+  private static void set(long[] bits, int row, boolean value) {
+    if (value) {
+      bits[row >>> 6] |= 1L << row;
+    } else {
+      bits[row >>> 6] &= ~(1L << row);
+    }
+  }
+
+  /** Read access to the rows of the snapshot during a scan. */
+  public final class Columns {
+
+    private Columns() {}
+
+    public Object getObjectId(int row) {
+      return rows.oids[row];
+    }
+
+    public int getUpperLeftX(int row) {
+      return rows.upperLeftX[row];
+    }
+
+    /**
+     * Method returning the y coordinate of the upper left corner.
+     *
+     * @param row the row number
+     * @return the y coordinate, or null if not set
+     */
+    public Integer getUpperLeftY(int row) {
+      return isSet(rows.upperLeftYNull, row) ? null : rows.upperLeftY[row];
+    }
+
+    public int getLowerRightX(int row) {
+      return rows.lowerRightX[row];
+    }
+
+    /**
+     * Method returning the y coordinate of the lower right corner.
+     *
+     * @param row the row number
+     * @return the y coordinate, or null if not set
+     */
+    public Integer getLowerRightY(int row) {
+      return isSet(rows.lowerRightYNull, row) ? null : rows.lowerRightY[row];
+    }
+
+    public int getMinX(int row) {
+      return Math.min(rows.upperLeftX[row], rows.lowerRightX[row]);
+    }
+
+    public int getMaxX(int row) {
+      return Math.max(rows.upperLeftX[row], rows.lowerRightX[row]);
+    }
+
+    /**
+     * Method returning the smaller y coordinate of the rect, counting a null y as 0.
+     *
+     * @param row the row number
+     * @return the smaller y coordinate
+     */
+    public int getMinY(int row) {
+      return Math.min(rows.upperLeftY[row], rows.lowerRightY[row]);
+    }
+
+    /**
+     * Method returning the larger y coordinate of the rect, counting a null y as 0.
+     *
+     * @param row the row number
+     * @return the larger y coordinate
+     */
+    public int getMaxY(int row) {
+      return Math.max(rows.upperLeftY[row], rows.lowerRightY[row]);
+    }
+
+    public long getArea(int row) {
+      return ((long) getMaxX(row) - getMinX(row)) * ((long) getMaxY(row) - getMinY(row));
+    }
+  }
+}
@@ -0,0 +1,358 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tck.util;
+
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import javax.jdo.datastore.JDOConnection;
+import javax.jdo.metadata.ColumnMetadata;
+import javax.jdo.metadata.EmbeddedMetadata;
+import javax.jdo.metadata.IndexMetadata;
+import javax.jdo.metadata.MemberMetadata;
+import javax.jdo.metadata.TypeMetadata;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Opens a PersistenceManagerFactory without running schema DDL when the mapping has not changed
+ * since the last start. The persistence units of persistence.xml drop and create all tables on
+ * every start, which is expensive for the file-backed units.
+ *
+ * <p>The bootstrap first opens the unit with schema generation and auto creation disabled and
+ * computes a checksum over the JDO metadata of the given classes: tables, members, columns,
+ * embedded mappings, indexes, identity and version. The checksum is compared with the one stored
+ * in the table {@value #CHECKSUM_TABLE}. If they match, this PersistenceManagerFactory is used as
+ * is. Otherwise it is reopened with auto creation enabled, which only adds missing tables,
+ * columns and constraints and never drops anything, all given classes are initialized and the new
+ * checksum is stored.
+ */
+public class SchemaBootstrap {
+
+  /** Table holding the schema checksum per persistence unit. */
+  public static final String CHECKSUM_TABLE = "TCK_SCHEMA_CHECKSUM";
+
+  private final String unitName;
+  private final Map<String, Object> overrides;
+  private final Class<?>[] classes;
+  private String checksum;
+  private boolean schemaReused;
+
+  /**
+   * Creates a bootstrap for a persistence unit.
+   *
+   * @param unitName the persistence unit
+   * @param overrides properties replacing those of the unit, e.g. the connection URL
+   * @param classes the persistent classes of the unit
+   */
+  public SchemaBootstrap(String unitName, Map<String, ?> overrides, Class<?>... classes) {
+    this.unitName = unitName;
+    this.overrides = new HashMap<>(overrides);
+    this.classes = classes.clone();
+    Arrays.sort(this.classes, Comparator.comparing(Class::getName));
+  }
+
+  /**
+   * Opens the persistence unit, running DDL only if the schema checksum changed.
+   *
+   * @return the PersistenceManagerFactory
+   */
+  public PersistenceManagerFactory open() {
+    PersistenceManagerFactory pmf = open(false);
+    try {
+      checksum = checksum(pmf, classes);
+      schemaReused = checksum.equals(readChecksum(pmf));
+      if (schemaReused) {
+        return pmf;
+      }
+    } catch (RuntimeException ex) {
+      pmf.close();
+      throw ex;
+    }
+    pmf.close();
+
+    pmf = open(true);
+    try {
+      createSchema(pmf);
+      writeChecksum(pmf, checksum);
+      return pmf;
+    } catch (RuntimeException ex) {
+      pmf.close();
+      throw ex;
+    }
+  }
+
+  /**
+   * Method returning the schema checksum computed by the last {@link #open}.
+   *
+   * @return the checksum as hex string
+   */
+  public String getChecksum() {
+    return checksum;
+  }
+
+  /**
+   * Method returning whether the last {@link #open} found a matching checksum and skipped the
+   * DDL.
+   *
+   * @return true if the stored schema was reused
+   */
+  public boolean isSchemaReused() {
+    return schemaReused;
+  }
+
+  /**
+   * Computes a checksum over the metadata of the given classes that changes with every change of
+   * their mapping.
+   *
+   * @param pmf the PersistenceManagerFactory providing the metadata
+   * @param classes the persistent classes
+   * @return the SHA-256 checksum as hex string
+   */
+  public static String checksum(PersistenceManagerFactory pmf, Class<?>... classes) {
+    StringBuilder sb = new StringBuilder();
+    for (Class<?> pcClass : classes) {
+      TypeMetadata type = pmf.getMetadata(pcClass.getName());
+      if (type == null) {
+        throw new IllegalArgumentException("Class is not persistent: " + pcClass.getName());
+      }
+      append(sb, type);
+    }
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256")
+          .digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+      StringBuilder hex = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  private PersistenceManagerFactory open(boolean createSchema) {
+    Map<String, Object> props = new HashMap<>(overrides);
+    props.put("datanucleus.schema.generateDatabase.mode", "none");
+    props.put("datanucleus.schema.autoCreateAll", String.valueOf(createSchema));
+    if (!createSchema) {
+      // The checksum already tells that the tables match the mapping
+      props.put("datanucleus.schema.validateTables", "false");
+      props.put("datanucleus.schema.validateColumns", "false");
+      props.put("datanucleus.schema.validateConstraints", "false");
+    }
+    return PersistenceUnits.getPersistenceManagerFactory(unitName, props);
+  }
+
+  /** Initializes all classes, so that their missing tables and columns are added now. */
+  private void createSchema(PersistenceManagerFactory pmf) {
+    PersistenceManager pm = pmf.getPersistenceManager();
+    try {
+      for (Class<?> pcClass : classes) {
+        Boolean embeddedOnly = pmf.getMetadata(pcClass.getName()).getEmbeddedOnly();
+        if (embeddedOnly == null || !embeddedOnly) {
+          pm.getExtent(pcClass, false).closeAll();
+        }
+      }
+    } finally {
+      pm.close();
+    }
+  }
+
+  private String readChecksum(PersistenceManagerFactory pmf) {
+    return withConnection(
+        pmf,
+        connection -> {
+          try (ResultSet rs =
+              connection.getMetaData().getTables(null, null, CHECKSUM_TABLE, null)) {
+            if (!rs.next()) {
+              return null;
+            }
+          }
+          try (PreparedStatement ps =
+              connection.prepareStatement(
+                  "SELECT CHECKSUM FROM " + CHECKSUM_TABLE + " WHERE UNIT_NAME = ?")) {
+            ps.setString(1, unitName);
+            try (ResultSet rs = ps.executeQuery()) {
+              return rs.next() ? rs.getString(1) : null;
+            }
+          }
+        });
+  }
+
+  private void writeChecksum(PersistenceManagerFactory pmf, String value) {
+    withConnection(
+        pmf,
+        connection -> {
+          try (Statement st = connection.createStatement()) {
+            st.execute(
+                "CREATE TABLE IF NOT EXISTS " + CHECKSUM_TABLE
+                    + " (UNIT_NAME VARCHAR(255) PRIMARY KEY, CHECKSUM VARCHAR(64) NOT NULL)");
+          }
+          try (PreparedStatement ps =
+              connection.prepareStatement(
+                  "MERGE INTO " + CHECKSUM_TABLE + " (UNIT_NAME, CHECKSUM) KEY (UNIT_NAME)"
+                      + " VALUES (?, ?)")) {
+            ps.setString(1, unitName);
+            ps.setString(2, value);
+            ps.executeUpdate();
+          }
+          return null;
+        });
+  }
+
+  private interface ConnectionCallback<R> {
+    R run(Connection connection) throws SQLException;
+  }
+
+  private static <R> R withConnection(
+      PersistenceManagerFactory pmf, ConnectionCallback<R> callback) {
+    PersistenceManager pm = pmf.getPersistenceManager();
+    try {
+      pm.currentTransaction().begin();
+      JDOConnection jdoConnection = pm.getDataStoreConnection();
+      R result;
+      try {
+        result = callback.run((Connection) jdoConnection.getNativeConnection());
+      } finally {
+        jdoConnection.close();
+      }
+      pm.currentTransaction().commit();
+      return result;
+    } catch (SQLException ex) {
+      throw new IllegalStateException(ex);
+    } finally {
+      if (pm.currentTransaction().isActive()) {
+        pm.currentTransaction().rollback();
+      }
+      pm.close();
+    }
+  }
+
+  private static void append(StringBuilder sb, TypeMetadata type) {
+    sb.append("class ").append(type.getName())
+        .append(" table=").append(type.getTable())
+        .append(" identity=").append(type.getIdentityType())
+        .append(" oidClass=").append(type.getObjectIdClass())
+        .append(" embeddedOnly=").append(type.getEmbeddedOnly());
+    if (type.getInheritanceMetadata() != null) {
+      sb.append(" inheritance=").append(type.getInheritanceMetadata().getStrategy());
+    }
+    if (type.getVersionMetadata() != null) {
+      sb.append(" version=").append(type.getVersionMetadata().getStrategy())
+          .append('/').append(type.getVersionMetadata().getColumn());
+    }
+    if (type.getDatastoreIdentityMetadata() != null) {
+      sb.append(" datastoreId=").append(type.getDatastoreIdentityMetadata().getStrategy())
+          .append('/').append(type.getDatastoreIdentityMetadata().getColumn());
+    }
+    sb.append('\n');
+    append(sb, type.getColumns());
+    for (IndexMetadata index : sortByName(type.getIndices(), IndexMetadata::getName)) {
+      append(sb, index);
+    }
+    for (MemberMetadata member : sortByName(type.getMembers(), MemberMetadata::getName)) {
+      append(sb, member, "  ");
+    }
+  }
+
+  private static void append(StringBuilder sb, MemberMetadata member, String indent) {
+    sb.append(indent).append("member ").append(member.getName())
+        .append(" type=").append(member.getFieldType())
+        .append(" modifier=").append(member.getPersistenceModifier())
+        .append(" pk=").append(member.getPrimaryKey())
+        .append(" column=").append(member.getColumn())
+        .append(" table=").append(member.getTable())
+        .append(" nullValue=").append(member.getNullValue())
+        .append(" indexed=").append(member.getIndexed())
+        .append(" unique=").append(member.getUnique())
+        .append(" embedded=").append(member.getEmbedded())
+        .append(" serialized=").append(member.getSerialized())
+        .append(" valueStrategy=").append(member.getValueStrategy())
+        .append(" sequence=").append(member.getSequence())
+        .append(" mappedBy=").append(member.getMappedBy())
+        .append(" converter=")
+        .append(member.getConverter() == null ? null : member.getConverter().getClass().getName())
+        .append('\n');
+    append(sb, member.getColumns());
+    if (member.getIndexMetadata() != null) {
+      append(sb, member.getIndexMetadata());
+    }
+    EmbeddedMetadata embedded = member.getEmbeddedMetadata();
+    if (embedded != null) {
+      sb.append(indent).append(" embedded nullIndicator=")
+          .append(embedded.getNullIndicatorColumn()).append('/')
+          .append(embedded.getNullIndicatorValue()).append('\n');
+      for (MemberMetadata embeddedMember :
+          sortByName(embedded.getMembers(), MemberMetadata::getName)) {
+        append(sb, embeddedMember, indent + "  ");
+      }
+    }
+  }
+
+  private static void append(StringBuilder sb, IndexMetadata index) {
+    sb.append("  index ").append(index.getName())
+        .append(" table=").append(index.getTable())
+        .append(" unique=").append(index.getUnique())
+        .append('\n');
+    append(sb, index.getColumns());
+    if (index.getMembers() != null) {
+      for (MemberMetadata member : index.getMembers()) {
+        sb.append("   member ").append(member.getName()).append('\n');
+      }
+    }
+  }
+
+  private static void append(StringBuilder sb, ColumnMetadata[] columns) {
+    if (columns == null) {
+      return;
+    }
+    for (ColumnMetadata column : columns) {
+      sb.append("   column ").append(column.getName())
+          .append(" jdbcType=").append(column.getJDBCType())
+          .append(" sqlType=").append(column.getSQLType())
+          .append(" length=").append(column.getLength())
+          .append(" scale=").append(column.getScale())
+          .append(" allowsNull=").append(column.getAllowsNull())
+          .append(" default=").append(column.getDefaultValue())
+          .append(" target=").append(column.getTarget())
+          .append('\n');
+    }
+  }
+
+  private static <M> List<M> sortByName(M[] metadata, Function<M, String> name) {
+    if (metadata == null) {
+      return Collections.emptyList();
+    }
+    List<M> sorted = new ArrayList<>(Arrays.asList(metadata));
+    sorted.sort(Comparator.comparing(name, Comparator.nullsFirst(Comparator.naturalOrder())));
+    return sorted;
+  }
+}
@@ -0,0 +1,247 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tck.util;
+
+import javax.jdo.JDOFatalException;
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import javax.jdo.Query;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.ToLongFunction;
+
+/**
+ * Spreads the instances of one persistent class over several datastores. Every shard is a
+ * PersistenceManagerFactory of the same persistence unit with its own connection URL, so all
+ * shards share the mapping and differ only in the database.
+ *
+ * <p>An instance is stored in the shard selected by a hash of its key, e.g. the id of a rect.
+ * Writes to different shards run in parallel, each in its own transaction; a write spanning
+ * several shards is therefore not atomic. Queries are sent to all shards in parallel and their
+ * results are concatenated in shard order. Query results are made transient, so they stay usable
+ * after the PersistenceManagers of the shards are closed.
+ *
+ * @param <T> the persistent class
+ */
+public class ShardedPersistence<T> implements AutoCloseable {
+
+  /** Property of the persistence unit replaced for every shard. */
+  public static final String PROPERTY_CONNECTION_URL = "javax.jdo.option.ConnectionURL";
+
+  private final Class<T> pcClass;
+  private final ToLongFunction<? super T> shardKey;
+  private final List<PersistenceManagerFactory> shards = new ArrayList<>();
+  private final ExecutorService executor;
+
+  /**
+   * Creates one PersistenceManagerFactory per connection URL.
+   *
+   * @param unitName the persistence unit used as template for all shards
+   * @param connectionUrls the connection URL of each shard
+   * @param pcClass the persistent class
+   * @param shardKey returns the key of an instance that selects its shard
+   */
+  public ShardedPersistence(
+      String unitName,
+      List<String> connectionUrls,
+      Class<T> pcClass,
+      ToLongFunction<? super T> shardKey) {
+    if (connectionUrls.isEmpty()) {
+      throw new IllegalArgumentException("At least one shard required");
+    }
+    this.pcClass = pcClass;
+    this.shardKey = shardKey;
+    try {
+      for (String url : connectionUrls) {
+        shards.add(
+            PersistenceUnits.getPersistenceManagerFactory(
+                unitName, Collections.singletonMap(PROPERTY_CONNECTION_URL, url)));
+      }
+    } catch (RuntimeException ex) {
+      shards.forEach(PersistenceManagerFactory::close);
+      throw ex;
+    }
+    executor = Executors.newFixedThreadPool(shards.size());
+  }
+
+  /**
+   * Method returning the number of shards.
+   *
+   * @return number of shards
+   */
+  public int getNrOfShards() {
+    return shards.size();
+  }
+
+  /**
+   * Method returning the PersistenceManagerFactory of a shard.
+   *
+   * @param shard the shard number
+   * @return the PersistenceManagerFactory
+   */
+  public PersistenceManagerFactory getShard(int shard) {
+    return shards.get(shard);
+  }
+
+  /**
+   * Method returning the shard an instance is stored in.
+   *
+   * @param pc the instance
+   * @return the shard number
+   */
+  public int shardOf(T pc) {
+    // Spread sequential ids evenly over the shards
+    long hash = shardKey.applyAsLong(pc) * 0x9E3779B97F4A7C15L;
+    return Math.floorMod(hash ^ (hash >>> 32), shards.size());
+  }
+
+  /**
+   * Persists transient instances, writing to all shards in parallel. Every shard commits its part
+   * in its own transaction.
+   *
+   * @param pcs the transient instances
+   */
+  public void makePersistentAll(Collection<? extends T> pcs) {
+    List<List<T>> parts = new ArrayList<>(shards.size());
+    for (int i = 0; i < shards.size(); i++) {
+      parts.add(new ArrayList<>());
+    }
+    for (T pc : pcs) {
+      parts.get(shardOf(pc)).add(pc);
+    }
+    List<Callable<Void>> tasks = new ArrayList<>();
+    for (int i = 0; i < shards.size(); i++) {
+      List<T> part = parts.get(i);
+      if (!part.isEmpty()) {
+        PersistenceManagerFactory shard = shards.get(i);
+        tasks.add(
+            () -> {
+              PersistenceManager pm = shard.getPersistenceManager();
+              try {
+                pm.currentTransaction().begin();
+                pm.makePersistentAll(part);
+                pm.currentTransaction().commit();
+                return null;
+              } finally {
+                if (pm.currentTransaction().isActive()) {
+                  pm.currentTransaction().rollback();
+                }
+                pm.close();
+              }
+            });
+      }
+    }
+    invokeAll(tasks);
+  }
+
+  /**
+   * Runs a JDOQL filter on all shards in parallel and concatenates the results.
+   *
+   * @param filter the filter, e.g. "this.upperLeft == :point"
+   * @param params the parameter values, in the order of their declaration in the filter
+   * @return the matching instances of all shards, made transient
+   */
+  public List<T> executeList(String filter, Object... params) {
+    List<Callable<List<T>>> tasks = new ArrayList<>(shards.size());
+    for (PersistenceManagerFactory shard : shards) {
+      tasks.add(() -> executeList(shard, filter, params));
+    }
+    List<T> result = new ArrayList<>();
+    for (List<T> part : invokeAll(tasks)) {
+      result.addAll(part);
+    }
+    return result;
+  }
+
+  /**
+   * Counts the instances of all shards.
+   *
+   * @return the number of instances per shard
+   */
+  public long[] countPerShard() {
+    List<Callable<Long>> tasks = new ArrayList<>(shards.size());
+    for (PersistenceManagerFactory shard : shards) {
+      tasks.add(
+          () -> {
+            PersistenceManager pm = shard.getPersistenceManager();
+            try (Query<T> q = pm.newQuery(pcClass)) {
+              q.setResult("count(this)");
+              return (Long) q.executeResultUnique();
+            } finally {
+              pm.close();
+            }
+          });
+    }
+    List<Long> counts = invokeAll(tasks);
+    long[] result = new long[counts.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = counts.get(i);
+    }
+    return result;
+  }
+
+  /** Closes the PersistenceManagerFactories of all shards. */
+  @Override
+  public void close() {
+    executor.shutdown();
+    shards.forEach(PersistenceManagerFactory::close);
+  }
+
+  private List<T> executeList(PersistenceManagerFactory shard, String filter, Object[] params)
+      throws Exception {
+    PersistenceManager pm = shard.getPersistenceManager();
+    try (Query<T> q = pm.newQuery(pcClass, filter)) {
+      pm.currentTransaction().begin();
+      q.setParameters(params);
+      List<T> result = new ArrayList<>(q.executeList());
+      pm.makeTransientAll(result, true);
+      pm.currentTransaction().commit();
+      return result;
+    } finally {
+      if (pm.currentTransaction().isActive()) {
+        pm.currentTransaction().rollback();
+      }
+      pm.close();
+    }
+  }
+
+  private <R> List<R> invokeAll(List<Callable<R>> tasks) {
+    List<R> results = new ArrayList<>(tasks.size());
+    try {
+      for (Future<R> future : executor.invokeAll(tasks)) {
+        results.add(future.get());
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new JDOFatalException("Sharded operation interrupted", ex);
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      throw cause instanceof RuntimeException
+          ? (RuntimeException) cause
+          : new IllegalStateException(cause);
+    }
+    return results;
+  }
+}
@@ -0,0 +1,473 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tck.util;
+
+import org.datanucleus.util.NucleusLogger;
+import tck.model.Point;
+import tck.pc.IPCRect;
+
+import javax.jdo.JDOFatalException;
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+/**
+ * In-memory uniform grid over the bounds of IPCRect instances. The corners of a rect are stored as
+ * converted strings, so the datastore can only answer spatial questions by loading and converting
+ * every row; this index answers them from the bounds alone and returns the object ids of the
+ * matching rects.
+ *
+ * <p>Each rect is registered in every grid cell its bounds overlap. Rects overlapping more than
+ * {@value #MAX_CELLS_PER_RECT} cells are kept in a separate list checked by every query instead. A
+ * null y coordinate counts as 0, as in the converters.
+ *
+ * <p>The index follows the commits of the PersistenceManagers attached to its {@link
+ * CommitNotifier}: deleted rects are removed, and stored rects are read again after the commit.
+ * The changes are applied by a background thread of the index in commit order, so a committing
+ * thread does not wait for the reload, and queries see a commit shortly after it; {@link
+ * #awaitUpdates} waits for the commits reported so far. If applying changes fails, the index is
+ * marked {@link #isStale stale} and should be replaced by a newly loaded one. The index is
+ * thread-safe; queries run in parallel, updates exclusively.
+ */
+public class SpatialGridIndex implements CommitNotifier.Listener, AutoCloseable {
+
+  /** Maximum number of cells a rect is registered in. */
+  public static final int MAX_CELLS_PER_RECT = 256;
+
+  private final PersistenceManagerFactory pmf;
+  private final CommitNotifier notifier;
+  private final int cellSize;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final ExecutorService updater;
+  private volatile boolean stale;
+
+  private final Map<Object, Bounds> bounds = new HashMap<>();
+  private final Map<Long, List<Object>> cells = new HashMap<>();
+  private final Set<Object> large = new HashSet<>();
+
+  /** Range of the cells that held a rect, not shrunk on removal. */
+  private long minCellX = Long.MAX_VALUE;
+  private long minCellY = Long.MAX_VALUE;
+  private long maxCellX = Long.MIN_VALUE;
+  private long maxCellY = Long.MIN_VALUE;
+
+  /**
+   * Creates an empty index, registers it with the notifier and starts its update thread.
+   *
+   * @param pmf the PersistenceManagerFactory used to read stored rects after a commit
+   * @param notifier the notifier reporting the commits of the writing PersistenceManagers
+   * @param cellSize width and height of a grid cell
+   */
+  public SpatialGridIndex(PersistenceManagerFactory pmf, CommitNotifier notifier, int cellSize) {
+    if (cellSize < 1) {
+      throw new IllegalArgumentException("cellSize must be positive: " + cellSize);
+    }
+    this.pmf = pmf;
+    this.notifier = notifier;
+    this.cellSize = cellSize;
+    this.updater =
+        Executors.newSingleThreadExecutor(
+            r -> {
+              Thread t = new Thread(r, "SpatialGridIndex-updater");
+              t.setDaemon(true);
+              return t;
+            });
+    notifier.addListener(this);
+  }
+
+  /**
+   * Adds all persistent instances of a rect class to the index.
+   *
+   * @param rectClass the rect class
+   * @param <T> the rect class
+   * @return number of added rects
+   */
+  public <T extends IPCRect> int load(Class<T> rectClass) {
+    int nrOfRects = 0;
+    PersistenceManager pm = pmf.getPersistenceManager();
+    try {
+      pm.currentTransaction().begin();
+      try (Stream<T> rects = QueryStreams.stream(pm, rectClass)) {
+        Iterator<T> it = rects.iterator();
+        while (it.hasNext()) {
+          T rect = it.next();
+          put(pm.getObjectId(rect), rect);
+          nrOfRects++;
+        }
+      }
+      pm.currentTransaction().commit();
+    } finally {
+      if (pm.currentTransaction().isActive()) {
+        pm.currentTransaction().rollback();
+      }
+      pm.close();
+    }
+    return nrOfRects;
+  }
+
+  /**
+   * Adds a rect to the index or updates its bounds.
+   *
+   * @param oid the object id of the rect
+   * @param rect the rect
+   */
+  public void put(Object oid, IPCRect rect) {
+    Point upperLeft = rect.getUpperLeft();
+    Point lowerRight = rect.getLowerRight();
+    lock.writeLock().lock();
+    try {
+      removeLocked(oid);
+      if (upperLeft == null || lowerRight == null) {
+        // No bounds, cannot match any query
+        return;
+      }
+      Bounds b = Bounds.of(upperLeft, lowerRight);
+      bounds.put(oid, b);
+      if (b.nrOfCells(cellSize) > MAX_CELLS_PER_RECT) {
+        large.add(oid);
+        return;
+      }
+      for (long cx = cell(b.minX); cx <= cell(b.maxX); cx++) {
+        for (long cy = cell(b.minY); cy <= cell(b.maxY); cy++) {
+          cells.computeIfAbsent(key(cx, cy), k -> new ArrayList<>(4)).add(oid);
+        }
+      }
+      minCellX = Math.min(minCellX, cell(b.minX));
+      minCellY = Math.min(minCellY, cell(b.minY));
+      maxCellX = Math.max(maxCellX, cell(b.maxX));
+      maxCellY = Math.max(maxCellY, cell(b.maxY));
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Removes a rect from the index.
+   *
+   * @param oid the object id of the rect
+   */
+  public void remove(Object oid) {
+    lock.writeLock().lock();
+    try {
+      removeLocked(oid);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the rects containing a point, including rects with the point on their border.
+   *
+   * @param x the x coordinate of the point
+   * @param y the y coordinate of the point
+   * @return the object ids of the rects
+   */
+  public List<Object> contains(int x, int y) {
+    return intersects(x, y, x, y);
+  }
+
+  /**
+   * Returns the rects intersecting a window, including rects touching its border.
+   *
+   * @param minX the smallest x coordinate of the window
+   * @param minY the smallest y coordinate of the window
+   * @param maxX the largest x coordinate of the window
+   * @param maxY the largest y coordinate of the window
+   * @return the object ids of the rects
+   */
+  public List<Object> intersects(int minX, int minY, int maxX, int maxY) {
+    Bounds window = new Bounds(minX, minY, maxX, maxY);
+    List<Object> result = new ArrayList<>();
+    lock.readLock().lock();
+    try {
+      if (window.nrOfCells(cellSize) > bounds.size()) {
+        // Cheaper to check every rect than every cell of the window
+        for (Map.Entry<Object, Bounds> entry : bounds.entrySet()) {
+          if (entry.getValue().intersects(window)) {
+            result.add(entry.getKey());
+          }
+        }
+        return result;
+      }
+      Set<Object> seen = new HashSet<>();
+      for (long cx = cell(minX); cx <= cell(maxX); cx++) {
+        for (long cy = cell(minY); cy <= cell(maxY); cy++) {
+          for (Object oid : cells.getOrDefault(key(cx, cy), Collections.emptyList())) {
+            if (seen.add(oid) && bounds.get(oid).intersects(window)) {
+              result.add(oid);
+            }
+          }
+        }
+      }
+      for (Object oid : large) {
+        if (bounds.get(oid).intersects(window)) {
+          result.add(oid);
+        }
+      }
+      return result;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the k rects nearest to a point, nearest first. The distance of a rect is 0 if it
+   * contains the point, and the distance to its nearest border otherwise.
+   *
+   * @param x the x coordinate of the point
+   * @param y the y coordinate of the point
+   * @param k maximum number of rects returned
+   * @return the object ids of the rects
+   */
+  public List<Object> nearest(int x, int y, int k) {
+    if (k < 1) {
+      return new ArrayList<>();
+    }
+    // Farthest candidate first, so it can be replaced by a nearer one
+    PriorityQueue<Candidate> candidates =
+        new PriorityQueue<>(k + 1, (c1, c2) -> Double.compare(c2.distance, c1.distance));
+    lock.readLock().lock();
+    try {
+      Set<Object> seen = new HashSet<>(large);
+      for (Object oid : large) {
+        offer(candidates, k, oid, bounds.get(oid).distance(x, y));
+      }
+      long cx = cell(x);
+      long cy = cell(y);
+      long maxRing = maxRing(cx, cy);
+      for (long ring = 0; ring <= maxRing; ring++) {
+        // The rings scanned so far hold every rect nearer than this
+        double coveredDistance = (double) (ring - 1) * cellSize;
+        if (candidates.size() == k && candidates.peek().distance <= coveredDistance) {
+          break;
+        }
+        for (long ix = cx - ring; ix <= cx + ring; ix++) {
+          boolean edgeColumn = ix == cx - ring || ix == cx + ring;
+          for (long iy = cy - ring; iy <= cy + ring; iy += edgeColumn ? 1 : 2 * ring) {
+            for (Object oid : cells.getOrDefault(key(ix, iy), Collections.emptyList())) {
+              if (seen.add(oid)) {
+                offer(candidates, k, oid, bounds.get(oid).distance(x, y));
+              }
+            }
+          }
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    List<Candidate> sorted = new ArrayList<>(candidates);
+    sorted.sort((c1, c2) -> Double.compare(c1.distance, c2.distance));
+    List<Object> result = new ArrayList<>(sorted.size());
+    for (Candidate candidate : sorted) {
+      result.add(candidate.oid);
+    }
+    return result;
+  }
+
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return bounds.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Method returning whether applying the changes of a commit failed, so that the index may miss
+   * or hold rects it should not.
+   *
+   * @return true if the index is stale
+   */
+  public boolean isStale() {
+    return stale;
+  }
+
+  /**
+   * Waits until the changes of all commits reported so far are applied.
+   *
+   * @throws JDOFatalException if interrupted
+   */
+  public void awaitUpdates() {
+    try {
+      updater.submit(() -> {}).get();
+    } catch (RejectedExecutionException ex) {
+      // Closed, nothing is applied any more
+    } catch (ExecutionException ex) {
+      throw new JDOFatalException("Waiting for the index updates failed", ex.getCause());
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new JDOFatalException("Interrupted while waiting for the index updates", ex);
+    }
+  }
+
+  /**
+   * Stops following the commits. Waits for the changes reported before to be applied.
+   */
+  @Override
+  public void close() {
+    notifier.removeListener(this);
+    updater.shutdown();
+    try {
+      updater.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void afterCommit(List<CommitNotifier.Change> changes) {
+    try {
+      updater.execute(() -> apply(changes));
+    } catch (RejectedExecutionException ex) {
+      // Closed meanwhile
+      stale = true;
+    }
+  }
+
+  private void apply(List<CommitNotifier.Change> changes) {
+    CommitNotifier.ClassChanges rects = new CommitNotifier.ClassChanges(changes, IPCRect.class);
+    try {
+      for (Object oid : rects.getDeleted()) {
+        remove(oid);
+      }
+      rects.reloadStored(
+          pmf,
+          (oids, instances) -> {
+            for (int i = 0; i < oids.size(); i++) {
+              if (instances.get(i) == null) {
+                remove(oids.get(i));
+              } else {
+                put(oids.get(i), (IPCRect) instances.get(i));
+              }
+            }
+          });
+    } catch (RuntimeException ex) {
+      stale = true;
+      NucleusLogger.GENERAL.error("SpatialGridIndex update failed, the index is stale", ex);
+    }
+  }
+
+  private void removeLocked(Object oid) {
+    Bounds b = bounds.remove(oid);
+    if (b == null || large.remove(oid)) {
+      return;
+    }
+    for (long cx = cell(b.minX); cx <= cell(b.maxX); cx++) {
+      for (long cy = cell(b.minY); cy <= cell(b.maxY); cy++) {
+        Long key = key(cx, cy);
+        List<Object> cell = cells.get(key);
+        cell.remove(oid);
+        if (cell.isEmpty()) {
+          cells.remove(key);
+        }
+      }
+    }
+  }
+
+  /** Returns the number of rings around a cell needed to reach every cell that held a rect. */
+  private long maxRing(long cx, long cy) {
+    if (cells.isEmpty()) {
+      return 0;
+    }
+    return Math.max(
+        Math.max(Math.abs(cx - minCellX), Math.abs(cx - maxCellX)),
+        Math.max(Math.abs(cy - minCellY), Math.abs(cy - maxCellY)));
+  }
+
+  private static void offer(
+      PriorityQueue<Candidate> candidates, int k, Object oid, double distance) {
+    if (candidates.size() < k) {
+      candidates.add(new Candidate(oid, distance));
+    } else if (distance < candidates.peek().distance) {
+      candidates.poll();
+      candidates.add(new Candidate(oid, distance));
+    }
+  }
+
+  private long cell(int coordinate) {
+    return Math.floorDiv(coordinate, cellSize);
+  }
+
+  private static long key(long cx, long cy) {
+    return (cx << 32) | (cy & 0xffffffffL);
+  }
+
+  private static final class Bounds {
+    final int minX;
+    final int minY;
+    final int maxX;
+    final int maxY;
+
+    Bounds(int minX, int minY, int maxX, int maxY) {
+      this.minX = minX;
+      this.minY = minY;
+      this.maxX = maxX;
+      this.maxY = maxY;
+    }
+
+    static Bounds of(Point upperLeft, Point lowerRight) {
+      int x1 = upperLeft.x;
+      int y1 = upperLeft.y == null ? 0 : upperLeft.y;
+      int x2 = lowerRight.x;
+      int y2 = lowerRight.y == null ? 0 : lowerRight.y;
+      return new Bounds(Math.min(x1, x2), Math.min(y1, y2), Math.max(x1, x2), Math.max(y1, y2));
+    }
+
+    long nrOfCells(int cellSize) {
+      long width = Math.floorDiv(maxX, cellSize) - Math.floorDiv(minX, cellSize) + 1L;
+      long height = Math.floorDiv(maxY, cellSize) - Math.floorDiv(minY, cellSize) + 1L;
+      return width * height;
+    }
+
+    boolean intersects(Bounds other) {
+      return minX <= other.maxX && other.minX <= maxX && minY <= other.maxY && other.minY <= maxY;
+    }
+
+    double distance(int x, int y) {
+      long dx = Math.max(0, Math.max((long) minX - x, (long) x - maxX));
+      long dy = Math.max(0, Math.max((long) minY - y, (long) y - maxY));
+      return Math.sqrt((double) dx * dx + (double) dy * dy);
+    }
+  }
+
+  private static final class Candidate {
+    final Object oid;
+    final double distance;
+
+    Candidate(Object oid, double distance) {
+      this.oid = oid;
+      this.distance = distance;
+    }
+  }
+}
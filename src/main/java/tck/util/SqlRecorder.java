@@ -0,0 +1,498 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tck.util;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Records the SQL statements a PersistenceManagerFactory sends to the datastore, so tests can
+ * assert how many statements an operation issues, e.g. that reading an instance issues exactly one
+ * SELECT and that an unchanged instance issues no UPDATE.
+ *
+ * <p>The connections of a unit with datanucleus.connectionPool.recordSql=true are wrapped by
+ * {@link #wrap(DataSource)}. While recording, every executed statement is recorded with its SQL,
+ * {@link Type}, execution time, row count and the operation of the executing thread. The execution
+ * time is the time of the execute call, reading a result set is not included. Operations are
+ * named by the tests:
+ *
+ * <pre>
+ * try (SqlRecorder.Operation op = SqlRecorder.operation("readRect")) {
+ *   pm.getObjectById(oid);
+ * }
+ * SqlRecorder.expect("readRect", SqlRecorder.Type.SELECT, 1);
+ * </pre>
+ *
+ * <p>The recorder is global, so recording tests must not run concurrently in the same JVM.
+ */
+public final class SqlRecorder {
+
+  /** Kind of a statement, from its first keyword. */
+  public enum Type {
+    SELECT,
+    INSERT,
+    UPDATE,
+    DELETE,
+    DDL,
+    OTHER
+  }
+
+  /** Operation of statements issued outside of any operation. */
+  public static final String NO_OPERATION = "(none)";
+
+  /** Maximum number of recorded statements, further statements are only counted. */
+  public static final int MAX_STATEMENTS = 100_000;
+
+  private static final ThreadLocal<String> CURRENT_OPERATION = new ThreadLocal<>();
+  private static final ConcurrentLinkedQueue<Recorded> STATEMENTS = new ConcurrentLinkedQueue<>();
+  private static final AtomicInteger NR_OF_STATEMENTS = new AtomicInteger();
+  private static final LongAdder NR_OF_DROPPED = new LongAdder();
+  private static final Map<String, OperationStats> OPERATIONS = new ConcurrentHashMap<>();
+  private static volatile boolean recording;
+
+  private SqlRecorder() {}
+
+  /** Starts recording, discarding the statements and operations recorded so far. */
+  public static void start() {
+    clear();
+    recording = true;
+  }
+
+  /** Stops recording, the recorded statements are kept. */
+  public static void stop() {
+    recording = false;
+  }
+
+  /**
+   * Method returning whether statements are recorded.
+   *
+   * @return true between start and stop
+   */
+  public static boolean isRecording() {
+    return recording;
+  }
+
+  /** Discards the recorded statements and operations. */
+  public static void clear() {
+    STATEMENTS.clear();
+    NR_OF_STATEMENTS.set(0);
+    NR_OF_DROPPED.reset();
+    OPERATIONS.clear();
+  }
+
+  /**
+   * Names the operation of the statements of this thread until the returned scope is closed.
+   * Operations may be nested, the innermost one is recorded.
+   *
+   * @param name the name of the operation
+   * @return the scope, to be closed at the end of the operation
+   */
+  public static Operation operation(String name) {
+    return new Operation(name);
+  }
+
+  /**
+   * Method returning the recorded statements.
+   *
+   * @return the statements in the order of their execution
+   */
+  public static List<Recorded> getStatements() {
+    return new ArrayList<>(STATEMENTS);
+  }
+
+  /**
+   * Method returning the recorded statements of an operation.
+   *
+   * @param operation the name of the operation, or NO_OPERATION
+   * @return the statements in the order of their execution
+   */
+  public static List<Recorded> getStatements(String operation) {
+    return STATEMENTS.stream()
+        .filter(s -> s.getOperation().equals(operation))
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Method returning the number of recorded statements of an operation and type.
+   *
+   * @param operation the name of the operation, or NO_OPERATION
+   * @param type the type of the statements
+   * @return number of statements
+   */
+  public static int count(String operation, Type type) {
+    return (int)
+        STATEMENTS.stream()
+            .filter(s -> s.getOperation().equals(operation) && s.getType() == type)
+            .count();
+  }
+
+  /**
+   * Checks the number of recorded statements of an operation and type.
+   *
+   * @param operation the name of the operation, or NO_OPERATION
+   * @param type the type of the statements
+   * @param expected the expected number of statements
+   * @throws AssertionError listing the statements of the operation if the number differs
+   */
+  public static void expect(String operation, Type type, int expected) {
+    int actual = count(operation, type);
+    if (actual != expected) {
+      StringBuilder msg = new StringBuilder();
+      msg.append("Operation ").append(operation).append(" issued ").append(actual).append(' ');
+      msg.append(type).append(" statements instead of ").append(expected).append(':');
+      for (Recorded s : getStatements(operation)) {
+        msg.append("\n  ").append(s.getSql());
+      }
+      throw new AssertionError(msg.toString());
+    }
+  }
+
+  /**
+   * Method returning the number of statements executed while recording but not recorded, because
+   * MAX_STATEMENTS were recorded already.
+   *
+   * @return number of dropped statements
+   */
+  public static long getNrOfDropped() {
+    return NR_OF_DROPPED.sum();
+  }
+
+  /**
+   * Returns a report with one line per operation: the number of runs, the number of statements
+   * per type, and the SQL execution time compared with the total time of the operation.
+   *
+   * @return the report
+   */
+  public static String report() {
+    Map<String, long[]> perOperation = new TreeMap<>();
+    for (Recorded s : STATEMENTS) {
+      long[] sums =
+          perOperation.computeIfAbsent(s.getOperation(), k -> new long[Type.values().length + 1]);
+      sums[s.getType().ordinal()]++;
+      sums[Type.values().length] += s.getNanos();
+    }
+    for (String name : OPERATIONS.keySet()) {
+      perOperation.computeIfAbsent(name, k -> new long[Type.values().length + 1]);
+    }
+    StringBuilder report = new StringBuilder("SQL per operation");
+    for (Map.Entry<String, long[]> e : perOperation.entrySet()) {
+      long[] sums = e.getValue();
+      long sqlMicros = sums[Type.values().length] / 1000;
+      report.append("\n  ").append(e.getKey()).append(':');
+      OperationStats stats = OPERATIONS.get(e.getKey());
+      if (stats != null) {
+        report.append(' ').append(stats.nrOfRuns.sum()).append(" runs,");
+      }
+      for (Type type : Type.values()) {
+        if (sums[type.ordinal()] > 0) {
+          report.append(' ').append(sums[type.ordinal()]).append(' ').append(type).append(',');
+        }
+      }
+      report.append(" SQL ").append(sqlMicros).append(" us");
+      if (stats != null) {
+        long totalMicros = stats.totalNanos.sum() / 1000;
+        report.append(" of ").append(totalMicros).append(" us");
+        if (totalMicros > 0) {
+          report.append(String.format(Locale.ROOT, " (%.1f%%)", 100.0 * sqlMicros / totalMicros));
+        }
+      }
+    }
+    if (getNrOfDropped() > 0) {
+      report.append("\n  ").append(getNrOfDropped()).append(" statements not recorded");
+    }
+    return report.toString();
+  }
+
+  /**
+   * Returns a DataSource whose connections record their statements while recording.
+   *
+   * @param dataSource the DataSource
+   * @return the wrapping DataSource
+   */
+  public static DataSource wrap(DataSource dataSource) {
+    return proxy(
+        DataSource.class,
+        dataSource,
+        (method, args, result) ->
+            result instanceof Connection ? wrapConnection((Connection) result) : result);
+  }
+
+  private static Connection wrapConnection(Connection connection) {
+    return proxy(
+        Connection.class,
+        connection,
+        (method, args, result) -> {
+          if (!(result instanceof Statement)) {
+            return result;
+          }
+          // prepareStatement and prepareCall take the SQL executed later
+          String sql = method.getName().startsWith("prepare") ? (String) args[0] : null;
+          Class<? extends Statement> iface =
+              result instanceof CallableStatement
+                  ? CallableStatement.class
+                  : result instanceof PreparedStatement ? PreparedStatement.class : Statement.class;
+          StatementHandler handler = new StatementHandler((Statement) result, sql);
+          return Proxy.newProxyInstance(iface.getClassLoader(), new Class<?>[] {iface}, handler);
+        });
+  }
+
+  private static Type typeOf(String sql) {
+    String s = sql.trim();
+    int end = 0;
+    while (end < s.length() && Character.isLetter(s.charAt(end))) {
+      end++;
+    }
+    switch (s.substring(0, end).toUpperCase(Locale.ROOT)) {
+      case "SELECT":
+      case "WITH":
+        return Type.SELECT;
+      case "INSERT":
+      case "MERGE":
+        return Type.INSERT;
+      case "UPDATE":
+        return Type.UPDATE;
+      case "DELETE":
+        return Type.DELETE;
+      case "CREATE":
+      case "ALTER":
+      case "DROP":
+      case "TRUNCATE":
+        return Type.DDL;
+      default:
+        return Type.OTHER;
+    }
+  }
+
+  private static void record(Recorded statement) {
+    if (NR_OF_STATEMENTS.incrementAndGet() > MAX_STATEMENTS) {
+      NR_OF_DROPPED.increment();
+      return;
+    }
+    STATEMENTS.add(statement);
+  }
+
+  private interface ResultWrapper {
+    Object wrap(Method method, Object[] args, Object result);
+  }
+
+  /** Proxy passing every call to the target and wrapping the results of the calls. */
+  private static <T> T proxy(Class<T> iface, T target, ResultWrapper wrapper) {
+    InvocationHandler handler =
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "equals":
+              return proxy == args[0];
+            case "hashCode":
+              return System.identityHashCode(proxy);
+            default:
+              break;
+          }
+          return wrapper.wrap(method, args, invoke(target, method, args));
+        };
+    return iface.cast(
+        Proxy.newProxyInstance(iface.getClassLoader(), new Class<?>[] {iface}, handler));
+  }
+
+  private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException ex) {
+      throw ex.getCause();
+    }
+  }
+
+  /** Statement recording its executions, and counting the rows of its result sets. */
+  private static final class StatementHandler implements InvocationHandler {
+    private final Statement statement;
+    private final String preparedSql;
+
+    StatementHandler(Statement statement, String preparedSql) {
+      this.statement = statement;
+      this.preparedSql = preparedSql;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      switch (name) {
+        case "equals":
+          return proxy == args[0];
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        default:
+          break;
+      }
+      if (!recording || !name.startsWith("execute")) {
+        return SqlRecorder.invoke(statement, method, args);
+      }
+      String sql =
+          args != null && args.length > 0 && args[0] instanceof String
+              ? (String) args[0]
+              : preparedSql;
+      long start = System.nanoTime();
+      Object result = SqlRecorder.invoke(statement, method, args);
+      long nanos = System.nanoTime() - start;
+      Recorded recorded = new Recorded(sql == null ? "" : sql, nanos);
+      if (result instanceof ResultSet) {
+        record(recorded);
+        return wrapResultSet((ResultSet) result, recorded, proxy);
+      }
+      if (result instanceof Integer || result instanceof Long) {
+        recorded.rowCount.addAndGet(((Number) result).intValue());
+      } else if (result instanceof int[]) {
+        for (int count : (int[]) result) {
+          recorded.rowCount.addAndGet(Math.max(count, 0));
+        }
+      } else if (result instanceof long[]) {
+        for (long count : (long[]) result) {
+          recorded.rowCount.addAndGet((int) Math.max(count, 0));
+        }
+      } else if (Boolean.FALSE.equals(result)) {
+        recorded.rowCount.addAndGet(Math.max(statement.getUpdateCount(), 0));
+      }
+      record(recorded);
+      return result;
+    }
+
+    private ResultSet wrapResultSet(ResultSet rs, Recorded recorded, Object statementProxy) {
+      InvocationHandler handler =
+          (proxy, method, args) -> {
+            switch (method.getName()) {
+              case "equals":
+                return proxy == args[0];
+              case "hashCode":
+                return System.identityHashCode(proxy);
+              case "getStatement":
+                return statementProxy;
+              default:
+                break;
+            }
+            Object result = SqlRecorder.invoke(rs, method, args);
+            if (method.getName().equals("next") && Boolean.TRUE.equals(result)) {
+              recorded.rowCount.incrementAndGet();
+            }
+            return result;
+          };
+      return (ResultSet)
+          Proxy.newProxyInstance(
+              ResultSet.class.getClassLoader(), new Class<?>[] {ResultSet.class}, handler);
+    }
+  }
+
+  /** A recorded statement. */
+  public static final class Recorded {
+    private final String sql;
+    private final Type type;
+    private final long nanos;
+    private final String operation;
+    private final AtomicInteger rowCount = new AtomicInteger();
+
+    Recorded(String sql, long nanos) {
+      this.sql = sql;
+      this.type = typeOf(sql);
+      this.nanos = nanos;
+      String current = CURRENT_OPERATION.get();
+      this.operation = current == null ? NO_OPERATION : current;
+    }
+
+    public String getSql() {
+      return sql;
+    }
+
+    public Type getType() {
+      return type;
+    }
+
+    public long getNanos() {
+      return nanos;
+    }
+
+    public String getOperation() {
+      return operation;
+    }
+
+    /**
+     * Method returning the number of rows read from the result set so far, or the number of rows
+     * changed by an update.
+     *
+     * @return number of rows
+     */
+    public int getRowCount() {
+      return rowCount.get();
+    }
+
+    @Override
+    public String toString() {
+      return type + " [" + operation + "] " + sql + " (" + rowCount + " rows, " + nanos + " ns)";
+    }
+  }
+
+  /** Scope of a named operation of the current thread. */
+  public static final class Operation implements AutoCloseable {
+    private final String name;
+    private final String previous;
+    private final long start = System.nanoTime();
+    private boolean closed;
+
+    Operation(String name) {
+      this.name = name;
+      this.previous = CURRENT_OPERATION.get();
+      CURRENT_OPERATION.set(name);
+    }
+
+    @Override
+    public void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (previous == null) {
+        CURRENT_OPERATION.remove();
+      } else {
+        CURRENT_OPERATION.set(previous);
+      }
+      if (recording) {
+        OperationStats stats = OPERATIONS.computeIfAbsent(name, k -> new OperationStats());
+        stats.nrOfRuns.increment();
+        stats.totalNanos.add(System.nanoTime() - start);
+      }
+    }
+  }
+
+  private static final class OperationStats {
+    private final LongAdder nrOfRuns = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+  }
+}
@@ -0,0 +1,231 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tck.util;
+
+import javax.jdo.JDOException;
+import javax.jdo.JDOFatalException;
+import javax.jdo.JDOOptimisticVerificationException;
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import javax.jdo.Transaction;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs units of work in their own PersistenceManager and transaction and retries them when they
+ * fail because of a conflict with a concurrent transaction. Person and the tck.pc classes carry a
+ * version number, so with {@link Mode#OPTIMISTIC} a conflicting update is detected at commit.
+ *
+ * <p>A conflict is an optimistic verification failure or an SQL exception signalling a lock
+ * timeout, deadlock or serialization failure. Before a retry the runner sleeps a random time
+ * between 0 and an exponentially growing bound ("full jitter"), so retrying transactions do not
+ * collide again. Other exceptions are not retried. The unit of work is run again from the start
+ * with a new PersistenceManager, so it must not keep state between attempts.
+ */
+public class UnitOfWorkRunner {
+
+  /** Transaction mode of the units of work. */
+  public enum Mode {
+    /** Optimistic transactions, versions are checked at commit. */
+    OPTIMISTIC,
+    /** Datastore transactions locking the read rows, i.e. SELECT ... FOR UPDATE. */
+    PESSIMISTIC
+  }
+
+  /**
+   * A unit of work, run within an active transaction.
+   *
+   * @param <R> the result
+   */
+  public interface UnitOfWork<R> {
+    R run(PersistenceManager pm);
+  }
+
+  /** H2 error code of a lock timeout. */
+  private static final int H2_LOCK_TIMEOUT = 50200;
+
+  private final PersistenceManagerFactory pmf;
+  private final Mode mode;
+  private final int maxAttempts;
+  private final long baseBackoffNanos;
+  private final long maxBackoffNanos;
+
+  private final LongAdder nrOfCommits = new LongAdder();
+  private final LongAdder nrOfConflicts = new LongAdder();
+  private final LongAdder nrOfRetries = new LongAdder();
+  private final LongAdder nrOfAborts = new LongAdder();
+
+  /**
+   * Creates a runner.
+   *
+   * @param pmf the PersistenceManagerFactory
+   * @param mode the transaction mode
+   * @param maxAttempts maximum number of attempts per unit of work, at least 1
+   * @param baseBackoff the bound of the backoff before the first retry
+   * @param maxBackoff the largest bound of the backoff
+   * @param unit the unit of the backoffs
+   */
+  public UnitOfWorkRunner(
+      PersistenceManagerFactory pmf,
+      Mode mode,
+      int maxAttempts,
+      long baseBackoff,
+      long maxBackoff,
+      TimeUnit unit) {
+    if (maxAttempts < 1 || baseBackoff < 0 || maxBackoff < baseBackoff) {
+      throw new IllegalArgumentException(
+          "Invalid retry settings: maxAttempts="
+              + maxAttempts
+              + ", baseBackoff="
+              + baseBackoff
+              + ", maxBackoff="
+              + maxBackoff);
+    }
+    this.pmf = pmf;
+    this.mode = mode;
+    this.maxAttempts = maxAttempts;
+    this.baseBackoffNanos = unit.toNanos(baseBackoff);
+    this.maxBackoffNanos = unit.toNanos(maxBackoff);
+  }
+
+  /**
+   * Runs a unit of work and commits it, retrying it after a conflict.
+   *
+   * @param work the unit of work
+   * @param <R> the result
+   * @return the result of the committed attempt
+   * @throws RuntimeException the exception of the last attempt, if it was no conflict or the
+   *     maximum number of attempts is reached
+   */
+  public <R> R run(UnitOfWork<R> work) {
+    for (int attempt = 1; ; attempt++) {
+      PersistenceManager pm = pmf.getPersistenceManager();
+      Transaction tx = pm.currentTransaction();
+      try {
+        tx.setOptimistic(mode == Mode.OPTIMISTIC);
+        tx.setSerializeRead(mode == Mode.PESSIMISTIC);
+        tx.begin();
+        R result = work.run(pm);
+        tx.commit();
+        nrOfCommits.increment();
+        return result;
+      } catch (RuntimeException ex) {
+        if (!isConflict(ex)) {
+          nrOfAborts.increment();
+          throw ex;
+        }
+        nrOfConflicts.increment();
+        if (attempt >= maxAttempts) {
+          nrOfAborts.increment();
+          throw ex;
+        }
+      } finally {
+        if (tx.isActive()) {
+          tx.rollback();
+        }
+        pm.close();
+      }
+      nrOfRetries.increment();
+      backoff(attempt);
+    }
+  }
+
+  /**
+   * Method returning whether an exception was caused by a conflict with another transaction.
+   *
+   * @param ex the exception
+   * @return true for optimistic verification failures, lock timeouts and deadlocks
+   */
+  public static boolean isConflict(Throwable ex) {
+    for (Throwable t = ex; t != null; t = t.getCause()) {
+      if (t instanceof JDOOptimisticVerificationException) {
+        return true;
+      }
+      if (t instanceof SQLException) {
+        SQLException sqlEx = (SQLException) t;
+        String state = sqlEx.getSQLState();
+        // 40001 serialization failure or deadlock
+        if ((state != null && state.startsWith("40")) || sqlEx.getErrorCode() == H2_LOCK_TIMEOUT) {
+          return true;
+        }
+      }
+      if (t instanceof JDOException && ((JDOException) t).getNestedExceptions() != null) {
+        // A failed flush may report the exception of every failed instance
+        for (Throwable nested : ((JDOException) t).getNestedExceptions()) {
+          if (nested != t && nested != t.getCause() && isConflict(nested)) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  private void backoff(int attempt) {
+    int shift = Math.min(attempt - 1, 30);
+    long bound =
+        baseBackoffNanos > maxBackoffNanos >> shift ? maxBackoffNanos : baseBackoffNanos << shift;
+    if (bound <= 0) {
+      return;
+    }
+    try {
+      TimeUnit.NANOSECONDS.sleep(ThreadLocalRandom.current().nextLong(bound + 1));
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new JDOFatalException("Unit of work interrupted", ex);
+    }
+  }
+
+  /**
+   * Method returning the number of committed units of work.
+   *
+   * @return number of commits
+   */
+  public long getNrOfCommits() {
+    return nrOfCommits.sum();
+  }
+
+  /**
+   * Method returning the number of attempts that failed because of a conflict.
+   *
+   * @return number of conflicts
+   */
+  public long getNrOfConflicts() {
+    return nrOfConflicts.sum();
+  }
+
+  /**
+   * Method returning the number of retried attempts.
+   *
+   * @return number of retries
+   */
+  public long getNrOfRetries() {
+    return nrOfRetries.sum();
+  }
+
+  /**
+   * Method returning the number of units of work given up, because of an exception that was no
+   * conflict or after the maximum number of attempts.
+   *
+   * @return number of aborts
+   */
+  public long getNrOfAborts() {
+    return nrOfAborts.sum();
+  }
+}
@@ -0,0 +1,310 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tck.util;
+
+import org.datanucleus.util.NucleusLogger;
+
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.JDOUserException;
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import javax.jdo.Transaction;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * Write-behind queue accepting upserts from any thread and writing them to the datastore in
+ * batched transactions on a background thread. Upserts of the same key that are still pending are
+ * merged, only the most recent value is written.
+ *
+ * <p>A flush is started when the number of pending keys reaches the batch size, and otherwise every
+ * flush interval. {@link #close()} stops accepting upserts and flushes all pending values before
+ * returning. Values of a failed flush are queued again unless a newer value for the same key has
+ * been submitted in the meantime.
+ *
+ * @param <K> the type of the key identifying a persistent instance
+ * @param <V> the type of the submitted values
+ */
+public class WriteBehindQueue<K, V> implements AutoCloseable {
+
+  private final PersistenceManagerFactory pmf;
+  private final Function<V, K> keyFunction;
+  private final BiConsumer<PersistenceManager, V> writer;
+  private final int batchSize;
+
+  private final Map<K, V> pending = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService flusher;
+  private final AtomicBoolean flushRequested = new AtomicBoolean();
+  private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+  private boolean closed;
+
+  private final LongAdder nrOfSubmits = new LongAdder();
+  private final LongAdder nrOfCoalescedSubmits = new LongAdder();
+  private final LongAdder nrOfWrites = new LongAdder();
+  private final LongAdder nrOfFailedFlushes = new LongAdder();
+  private final LongAdder nrOfFlushes = new LongAdder();
+  private final LongAdder totalFlushNanos = new LongAdder();
+  private final AtomicLong maxFlushNanos = new AtomicLong();
+
+  /**
+   * Creates a write-behind queue and starts its background flush thread.
+   *
+   * @param pmf the PersistenceManagerFactory used for flushing
+   * @param keyFunction function returning the key of a submitted value
+   * @param writer function writing one value using the given PersistenceManager; it is called
+   *     within an active transaction and typically updates or creates the persistent instance
+   * @param batchSize maximum number of values written per transaction; reaching this number of
+   *     pending keys triggers a flush
+   * @param flushIntervalMillis time between two regular flushes
+   */
+  public WriteBehindQueue(
+      PersistenceManagerFactory pmf,
+      Function<V, K> keyFunction,
+      BiConsumer<PersistenceManager, V> writer,
+      int batchSize,
+      long flushIntervalMillis) {
+    if (batchSize < 1 || flushIntervalMillis < 1) {
+      throw new IllegalArgumentException(
+          "Invalid settings: batchSize=" + batchSize + ", flushInterval=" + flushIntervalMillis);
+    }
+    this.pmf = pmf;
+    this.keyFunction = keyFunction;
+    this.writer = writer;
+    this.batchSize = batchSize;
+    this.flusher =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread t = new Thread(r, "WriteBehindQueue-flusher");
+              t.setDaemon(true);
+              return t;
+            });
+    flusher.scheduleWithFixedDelay(
+        this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Returns a writer updating the persistent instance with the key of a value, or persisting a copy
+   * of the value if there is none. The key is the single field identity of the persistent class.
+   *
+   * @param pcClass the persistent class
+   * @param keyFunction function returning the key of a value
+   * @param update function copying the fields of a value (second argument) into the persistent
+   *     instance (first argument)
+   * @param copy function returning a transient copy of a value
+   * @param <K> the type of the key
+   * @param <V> the persistent class
+   * @return the writer, to be passed to the constructor
+   */
+  public static <K, V> BiConsumer<PersistenceManager, V> upsert(
+      Class<V> pcClass,
+      Function<V, K> keyFunction,
+      BiConsumer<V, V> update,
+      UnaryOperator<V> copy) {
+    return (pm, value) -> {
+      V existing;
+      try {
+        existing = pm.getObjectById(pcClass, keyFunction.apply(value));
+      } catch (JDOObjectNotFoundException ex) {
+        pm.makePersistent(copy.apply(value));
+        return;
+      }
+      update.accept(existing, value);
+    };
+  }
+
+  /**
+   * Submits a value to be written. A pending value with the same key is replaced.
+   *
+   * @param value the value to be written
+   * @throws JDOUserException if the queue is closed
+   */
+  public void submit(V value) {
+    K key = keyFunction.apply(value);
+    closeLock.readLock().lock();
+    try {
+      if (closed) {
+        throw new JDOUserException("WriteBehindQueue is closed");
+      }
+      nrOfSubmits.increment();
+      if (pending.put(key, value) != null) {
+        nrOfCoalescedSubmits.increment();
+      }
+      // Under the read lock, so that close() cannot shut the flusher down meanwhile
+      if (pending.size() >= batchSize && flushRequested.compareAndSet(false, true)) {
+        flusher.execute(this::flush);
+      }
+    } finally {
+      closeLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Stops accepting values and writes all pending values. Waits for a running flush to finish.
+   */
+  @Override
+  public void close() {
+    closeLock.writeLock().lock();
+    try {
+      closed = true;
+    } finally {
+      closeLock.writeLock().unlock();
+    }
+    flusher.shutdown();
+    try {
+      flusher.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    // The flusher has terminated, so the final flush runs alone
+    flush();
+    if (!pending.isEmpty()) {
+      NucleusLogger.PERSISTENCE.error(
+          "WriteBehindQueue closed with " + pending.size() + " values that could not be written");
+    }
+  }
+
+  private void flush() {
+    flushRequested.set(false);
+    while (!pending.isEmpty()) {
+      List<V> batch = takeBatch();
+      if (batch.isEmpty() || !writeBatch(batch)) {
+        return;
+      }
+    }
+  }
+
+  private List<V> takeBatch() {
+    List<V> batch = new ArrayList<>(batchSize);
+    Iterator<K> keys = pending.keySet().iterator();
+    while (keys.hasNext() && batch.size() < batchSize) {
+      V value = pending.remove(keys.next());
+      if (value != null) {
+        batch.add(value);
+      }
+    }
+    return batch;
+  }
+
+  private boolean writeBatch(List<V> batch) {
+    long start = System.nanoTime();
+    PersistenceManager pm = pmf.getPersistenceManager();
+    Transaction tx = pm.currentTransaction();
+    try {
+      tx.begin();
+      for (V value : batch) {
+        writer.accept(pm, value);
+      }
+      tx.commit();
+      nrOfWrites.add(batch.size());
+      return true;
+    } catch (RuntimeException ex) {
+      NucleusLogger.PERSISTENCE.error("WriteBehindQueue flush of " + batch.size() + " failed", ex);
+      nrOfFailedFlushes.increment();
+      for (V value : batch) {
+        pending.putIfAbsent(keyFunction.apply(value), value);
+      }
+      return false;
+    } finally {
+      if (tx.isActive()) {
+        tx.rollback();
+      }
+      pm.close();
+      long nanos = System.nanoTime() - start;
+      nrOfFlushes.increment();
+      totalFlushNanos.add(nanos);
+      maxFlushNanos.accumulateAndGet(nanos, Math::max);
+    }
+  }
+
+  /**
+   * Method returning the number of keys waiting to be written.
+   *
+   * @return current queue depth
+   */
+  public int getQueueDepth() {
+    return pending.size();
+  }
+
+  /**
+   * Method returning the number of submitted values.
+   *
+   * @return number of submit calls
+   */
+  public long getNrOfSubmits() {
+    return nrOfSubmits.sum();
+  }
+
+  /**
+   * Method returning the number of submitted values that replaced a pending value.
+   *
+   * @return number of merged submits
+   */
+  public long getNrOfCoalescedSubmits() {
+    return nrOfCoalescedSubmits.sum();
+  }
+
+  /**
+   * Method returning the number of values written to the datastore.
+   *
+   * @return number of written values
+   */
+  public long getNrOfWrites() {
+    return nrOfWrites.sum();
+  }
+
+  /**
+   * Method returning the number of flush transactions that failed.
+   *
+   * @return number of failed flushes
+   */
+  public long getNrOfFailedFlushes() {
+    return nrOfFailedFlushes.sum();
+  }
+
+  /**
+   * Method returning the average latency of a flush transaction.
+   *
+   * @return average flush latency in nanoseconds
+   */
+  public long getAverageFlushNanos() {
+    long flushes = nrOfFlushes.sum();
+    return flushes == 0 ? 0 : totalFlushNanos.sum() / flushes;
+  }
+
+  /**
+   * Method returning the maximum latency of a flush transaction.
+   *
+   * @return maximum flush latency in nanoseconds
+   */
+  public long getMaxFlushNanos() {
+    return maxFlushNanos.get();
+  }
+}
@@ -23,8 +23,12 @@ import tck.model.ConvertiblePoint;
 import tck.model.Point;
 import tck.pc.IPCRect;
 import tck.pc.PCRectAnnotated;
+import tck.pc.PCRectEmbedded;
 import tck.pc.PCRectPointTypeAnnotated;
+import tck.util.NamedQueries;
+import tck.util.PersistenceUnits;
 import tck.util.PointConversionCounter;
+import tck.util.SqlRecorder;
 
 import javax.jdo.*;
 import java.lang.reflect.InvocationTargetException;
@@ -32,6 +36,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import static org.junit.Assert.*;
 
@@ -44,21 +49,22 @@ import static org.junit.Assert.*;
  */
 public class AnnotationTestHelper {
 
-    private static final int UL_X = 1;
-    private static final int UL_Y = 10;
-    private static final int LR_X = 10;
-    private static final int LR_Y = 1;
+    protected static final int UL_X = 1;
+    protected static final int UL_Y = 10;
+    protected static final int LR_X = 10;
+    protected static final int LR_Y = 1;
 
-    private static final Collection<Class<?>> tearDownClasses = new LinkedList<>();
+    private final Collection<Class<?>> tearDownClasses = new LinkedList<>();
 
     private PersistenceManager pm;
     private PersistenceManagerFactory pmf;
 
-    private PersistenceManager getPM() {
+    protected PersistenceManager getPM() {
         if (pmf == null) {
             //PMFPropertiesObject = loadProperties(PMFProperties); // will exit here if no properties
             //pmf = JDOHelper.getPersistenceManagerFactory(PMFPropertiesObject);
-            pmf = JDOHelper.getPersistenceManagerFactory("MyTest");
+            pmf = PersistenceUnits.getPersistenceManagerFactory(getPersistenceManagerFactoryOverrides());
+            NamedQueries.warmUp(pmf, PCRectAnnotated.class, PCRectPointTypeAnnotated.class);
         }
         if (pm == null) {
             pm = pmf.getPersistenceManager();
@@ -66,11 +72,21 @@ public class AnnotationTestHelper {
         return pm;
     }
 
+    /**
+     * Properties overriding those of the persistence unit for the PMF of the test.
+     *
+     * @return the overriding properties, none by default
+     */
+    protected Map<?, ?> getPersistenceManagerFactoryOverrides() {
+        return Collections.emptyMap();
+    }
+
     @Before
     public void localSetUp() {
 //    tearDownClasses.add(PCRect.class); // TODO
         tearDownClasses.add(PCRectAnnotated.class);
         tearDownClasses.add(PCRectPointTypeAnnotated.class);
+        tearDownClasses.add(PCRectEmbedded.class);
     }
 
     @After
@@ -110,7 +126,7 @@ public class AnnotationTestHelper {
         return query.executeList();
     }
 
-    private void cleanupPM() {
+    protected void cleanupPM() {
         cleanupPM(pm);
         pm = null;
     }
@@ -165,12 +181,16 @@ public class AnnotationTestHelper {
         nrOfDbCalls = PointConversionCounter.getNrOfConvertToDatastoreCalls();
         nrOfAttrCalls = PointConversionCounter.getNrOfConvertToAttributeCalls();
         pm = getPM();
-        pm.currentTransaction().begin();
-        // Read the IPCRect instance from the datastore, this should call convertToAttribute
-        rect = (IPCRect) pm.getObjectById(oid);
-        Point ul = rect.getUpperLeft();
-        Point lr = rect.getLowerRight();
-        pm.currentTransaction().commit();
+        Point ul;
+        Point lr;
+        try (SqlRecorder.Operation op = SqlRecorder.operation("runReadIPCRectInstance")) {
+            pm.currentTransaction().begin();
+            // Read the IPCRect instance from the datastore, this should call convertToAttribute
+            rect = (IPCRect) pm.getObjectById(oid);
+            ul = rect.getUpperLeft();
+            lr = rect.getLowerRight();
+            pm.currentTransaction().commit();
+        }
 
         // convertToDatastore should not be called
         assertEquals(0, PointConversionCounter.getNrOfConvertToDatastoreCalls() - nrOfDbCalls);
@@ -206,17 +226,19 @@ public class AnnotationTestHelper {
         nrOfAttrCalls = PointConversionCounter.getNrOfConvertToAttributeCalls();
         pm = getPM();
         tx = pm.currentTransaction();
-        tx.begin();
-        rect = (IPCRect) pm.getObjectById(oid);
-        // should trigger convertToAttribute
-        rect.getLowerRight();
-        rect.getUpperLeft();
-        // Update IPCRect instance, this should call convertToDatastore
-        rect.setUpperLeft(new Point(UL_X + 1, UL_Y + 1));
-        rect.setLowerRight(new Point(LR_X + 1, LR_Y + 1));
-        // IPCRect instance should be dirty
-        assertTrue(JDOHelper.isDirty(rect));
-        tx.commit();
+        try (SqlRecorder.Operation op = SqlRecorder.operation("runModifyIPCRectInstance")) {
+            tx.begin();
+            rect = (IPCRect) pm.getObjectById(oid);
+            // should trigger convertToAttribute
+            rect.getLowerRight();
+            rect.getUpperLeft();
+            // Update IPCRect instance, this should call convertToDatastore
+            rect.setUpperLeft(new Point(UL_X + 1, UL_Y + 1));
+            rect.setLowerRight(new Point(LR_X + 1, LR_Y + 1));
+            // IPCRect instance should be dirty
+            assertTrue(JDOHelper.isDirty(rect));
+            tx.commit();
+        }
 
         // convertToDatastore should be called twice
         assertEquals(2, PointConversionCounter.getNrOfConvertToDatastoreCalls() - nrOfDbCalls);
@@ -224,6 +246,51 @@ public class AnnotationTestHelper {
         assertEquals(2, PointConversionCounter.getNrOfConvertToAttributeCalls() - nrOfAttrCalls);
     }
 
+    /**
+     * Helper method setting equal Point values on a loaded IPCRect instance. The instance should not
+     * become dirty, so neither AttributeConverter method should be called and no UPDATE should be
+     * issued.
+     */
+    protected <T extends IPCRect> void runNoOpModifyIPCRectInstance(Class<T> pcrectClass) {
+        Transaction tx;
+        IPCRect rect;
+        Object oid;
+        int nrOfDbCalls;
+        int nrOfAttrCalls;
+
+        // Create a persistent IPCRect instance and store its oid
+        oid = createIPCRectInstances(pcrectClass, 1);
+
+        // Cleanup the 2nd-level cache and close the pm to make sure PCRect instances are not cached
+        pm.getPersistenceManagerFactory().getDataStoreCache().evictAll(false, pcrectClass);
+        pm.close();
+        pm = null;
+
+        pm = getPM();
+        tx = pm.currentTransaction();
+        try (SqlRecorder.Operation op = SqlRecorder.operation("runNoOpModifyIPCRectInstance")) {
+            tx.begin();
+            rect = (IPCRect) pm.getObjectById(oid);
+            // Load both fields, this triggers convertToAttribute
+            rect.getLowerRight();
+            rect.getUpperLeft();
+
+            nrOfDbCalls = PointConversionCounter.getNrOfConvertToDatastoreCalls();
+            nrOfAttrCalls = PointConversionCounter.getNrOfConvertToAttributeCalls();
+            // Set equal values, this should neither convert nor dirty the fields
+            rect.setUpperLeft(new Point(UL_X, UL_Y));
+            rect.setLowerRight(new Point(LR_X, LR_Y));
+            // IPCRect instance should not be dirty, so commit does not issue an UPDATE
+            assertFalse(JDOHelper.isDirty(rect));
+            tx.commit();
+        }
+
+        // convertToDatastore should not be called
+        assertEquals(0, PointConversionCounter.getNrOfConvertToDatastoreCalls() - nrOfDbCalls);
+        // convertToAttribute should not be called
+        assertEquals(0, PointConversionCounter.getNrOfConvertToAttributeCalls() - nrOfAttrCalls);
+    }
+
     /**
      * Helper method running a query with a Point parameter. The parameter value is converted using
      * the AttributeConverter.
@@ -252,7 +319,9 @@ public class AnnotationTestHelper {
         nrOfAttrCalls = PointConversionCounter.getNrOfConvertToAttributeCalls();
         pm = getPM();
         pm.currentTransaction().begin();
-        try (Query<T> q = pm.newQuery(pcrectClass, "this.upperLeft == :point")) {
+        // Named query declared in package.jdo, compiled once per PMF by NamedQueries.warmUp
+        String queryName = pcrectClass.getSimpleName() + ".byUpperLeft";
+        try (Query<T> q = pm.newNamedQuery(pcrectClass, queryName)) {
             if (useConvertiblePoint) {
                 q.setParameters(new ConvertiblePoint(UL_X + 1, UL_Y + 1));
             } else {
@@ -344,7 +413,7 @@ public class AnnotationTestHelper {
      * @param nrOfObjects number of IPCRect instances to be created
      * @return ObjectId of the first IPCRect instance
      */
-    private <T extends IPCRect> Object createIPCRectInstances(Class<T> pcrectClass, int nrOfObjects) {
+    protected <T extends IPCRect> Object createIPCRectInstances(Class<T> pcrectClass, int nrOfObjects) {
         IPCRect rect;
         Object oid = null;
 
@@ -0,0 +1,220 @@
+package org.datanucleus.test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.*;
+import javax.jdo.*;
+
+import static org.junit.Assert.*;
+import mydomain.model.*;
+import org.datanucleus.util.NucleusLogger;
+import tck.model.Point;
+import tck.pc.PCRectAnnotated;
+import tck.util.AsyncRepository;
+import tck.util.PersistenceUnits;
+
+public class AsyncRepositoryTest
+{
+    private static final int NR_OF_BENCHMARK_THREADS = 64;
+    private static final int NR_OF_BENCHMARK_OPERATIONS = 100;
+
+    private PersistenceManagerFactory pmf;
+
+    @Before
+    public void setUp()
+    {
+        pmf = PersistenceUnits.getPersistenceManagerFactory();
+    }
+
+    @After
+    public void tearDown()
+    {
+        PersistenceManager pm = pmf.getPersistenceManager();
+        try
+        {
+            pm.currentTransaction().begin();
+            pm.newQuery(Person.class).deletePersistentAll();
+            pm.newQuery(PCRectAnnotated.class).deletePersistentAll();
+            pm.currentTransaction().commit();
+        }
+        finally
+        {
+            if (pm.currentTransaction().isActive())
+            {
+                pm.currentTransaction().rollback();
+            }
+            pm.close();
+        }
+        pmf.close();
+    }
+
+    @Test
+    public void testPersonOperations() throws Exception
+    {
+        try (AsyncRepository<Person> repository = new AsyncRepository<>(pmf, Person.class, 4, 100))
+        {
+            List<CompletableFuture<Object>> persisted = new ArrayList<>();
+            for (int i = 0; i < 10; i++)
+            {
+                persisted.add(repository.persistAsync(new Person(i, "Person " + i)));
+            }
+            CompletableFuture.allOf(persisted.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+
+            Person person = repository.findByIdAsync(persisted.get(3).get()).get(10, TimeUnit.SECONDS);
+            assertEquals("Person 3", person.getName());
+            assertNull(JDOHelper.getPersistenceManager(person));
+
+            List<Person> found = repository.queryAsync("this.name == :name", "Person 7").get(10, TimeUnit.SECONDS);
+            assertEquals(1, found.size());
+            assertEquals(7L, (long) found.get(0).getId());
+
+            try
+            {
+                repository.persistAsync(new Person(3, "Duplicate")).get(10, TimeUnit.SECONDS);
+                fail("Persisting a duplicate id");
+            }
+            catch (ExecutionException e)
+            {
+                assertTrue(e.getCause() instanceof JDOException);
+            }
+            assertEquals(13, repository.getNrOfSubmitted());
+            assertEquals(12, repository.getNrOfCompleted());
+            assertEquals(1, repository.getNrOfFailed());
+            assertEquals(13, Arrays.stream(repository.getLatencyHistogram()).sum());
+            assertTrue(repository.getLatencyPercentileMicros(50) > 0);
+        }
+    }
+
+    @Test
+    public void testRectOperations() throws Exception
+    {
+        try (AsyncRepository<PCRectAnnotated> repository = new AsyncRepository<>(pmf, PCRectAnnotated.class, 2, 10))
+        {
+            PCRectAnnotated rect = new PCRectAnnotated();
+            rect.setUpperLeft(new Point(1, 10));
+            rect.setLowerRight(new Point(10, 1));
+            Object oid = repository.persistAsync(rect).get(10, TimeUnit.SECONDS);
+
+            PCRectAnnotated found = repository.findByIdAsync(oid).get(10, TimeUnit.SECONDS);
+            assertEquals(new Point(1, 10), found.getUpperLeft());
+            assertEquals(new Point(10, 1), found.getLowerRight());
+            assertEquals(1, repository.queryAsync(null).get(10, TimeUnit.SECONDS).size());
+        }
+    }
+
+    @Test
+    public void testBackpressureAndCancellation() throws Exception
+    {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try (AsyncRepository<Person> repository = new AsyncRepository<>(pmf, Person.class, 1, 2))
+        {
+            CompletableFuture<Object> blocking = repository.submit(pm ->
+            {
+                started.countDown();
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                return null;
+            });
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            CompletableFuture<Object> queued = repository.persistAsync(new Person(1, "Cancelled"));
+
+            CompletableFuture<Object> rejected = repository.persistAsync(new Person(2, "Rejected"));
+            assertTrue(rejected.isCompletedExceptionally());
+            try
+            {
+                rejected.get();
+                fail("Too many pending operations");
+            }
+            catch (ExecutionException e)
+            {
+                assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+            assertEquals(1, repository.getNrOfRejected());
+            assertEquals(2, repository.getNrOfPending());
+
+            assertTrue(queued.cancel(false));
+            release.countDown();
+            blocking.get(10, TimeUnit.SECONDS);
+            assertEquals(1, repository.getNrOfCancelled());
+        }
+
+        PersistenceManager pm = pmf.getPersistenceManager();
+        try
+        {
+            assertEquals(0, ((Collection<?>) pm.newQuery(Person.class).execute()).size());
+        }
+        finally
+        {
+            pm.close();
+        }
+    }
+
+    /**
+     * Benchmark comparing one blocking thread per caller, as in MultithreadTest, with the callers
+     * submitting their operations to the async repository and waiting only for the results.
+     */
+    // Enable this if using this test
+//    @Test
+    public void testThroughput() throws Exception
+    {
+        long start = System.nanoTime();
+        Thread[] threads = new Thread[NR_OF_BENCHMARK_THREADS];
+        for (int i = 0; i < threads.length; i++)
+        {
+            final int threadNo = i;
+            threads[i] = new Thread(() ->
+            {
+                for (int j = 0; j < NR_OF_BENCHMARK_OPERATIONS; j++)
+                {
+                    PersistenceManager pm = pmf.getPersistenceManager();
+                    Transaction tx = pm.currentTransaction();
+                    try
+                    {
+                        tx.begin();
+                        pm.makePersistent(new Person(threadNo * NR_OF_BENCHMARK_OPERATIONS + j, "Blocking"));
+                        tx.commit();
+                    }
+                    finally
+                    {
+                        if (tx.isActive())
+                        {
+                            tx.rollback();
+                        }
+                        pm.close();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+        long blockingMillis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+
+        int nrOfOperations = NR_OF_BENCHMARK_THREADS * NR_OF_BENCHMARK_OPERATIONS;
+        int nrOfWorkers = Runtime.getRuntime().availableProcessors();
+        try (AsyncRepository<Person> repository = new AsyncRepository<>(pmf, Person.class, nrOfWorkers, nrOfOperations))
+        {
+            start = System.nanoTime();
+            List<CompletableFuture<Object>> futures = new ArrayList<>(nrOfOperations);
+            for (int i = 0; i < nrOfOperations; i++)
+            {
+                futures.add(repository.persistAsync(new Person(nrOfOperations + i, "Async")));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+            long asyncMillis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+            NucleusLogger.GENERAL.info(">> Persists/s: " + NR_OF_BENCHMARK_THREADS + " blocking threads "
+                    + nrOfOperations * 1000L / blockingMillis + ", async with " + nrOfWorkers + " workers "
+                    + nrOfOperations * 1000L / asyncMillis + ", p99 latency "
+                    + repository.getLatencyPercentileMicros(99) + " us");
+        }
+    }
+}
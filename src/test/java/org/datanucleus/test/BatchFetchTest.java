@@ -0,0 +1,253 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.datanucleus.test;
+
+import org.datanucleus.util.NucleusLogger;
+import org.junit.After;
+import org.junit.Test;
+import tck.model.Point;
+import tck.pc.IPCRect;
+import tck.pc.PCRectAnnotated;
+import tck.pc.PCRectPointTypeAnnotated;
+import tck.util.MeteredConnectionPoolFactory;
+import tck.util.ObjectIdBatchFetcher;
+import tck.util.PointConversionCounter;
+import tck.util.SqlRecorder;
+
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for resolving object ids in batches with ObjectIdBatchFetcher.
+ */
+public class BatchFetchTest extends AnnotationTestHelper {
+
+    private static final int NR_OF_BENCHMARK_OBJECTS = 10_000;
+
+    /**
+     * Records the SQL of every persistence unit, so that the round trips are counted in the
+     * datastore, including the loads DataNucleus issues itself.
+     */
+    @Override
+    protected Map<?, ?> getPersistenceManagerFactoryOverrides() {
+        return Collections.singletonMap(MeteredConnectionPoolFactory.PROPERTY_RECORD_SQL, "true");
+    }
+
+    @After
+    public void stopRecording() {
+        SqlRecorder.stop();
+        SqlRecorder.clear();
+    }
+
+    /**
+     * Test method resolving ids of two classes. Each class and batch should need one query, and the
+     * instances should be returned in input order.
+     */
+    @Test
+    public void testGetObjectsById() {
+        List<Object> oids = new ArrayList<>();
+        oids.addAll(createRects(PCRectAnnotated.class, 25));
+        oids.addAll(createRects(PCRectPointTypeAnnotated.class, 5));
+        Collections.shuffle(oids, new Random(42));
+        List<Integer> expectedX = readUpperLeftX(oids);
+
+        PersistenceManager pm = newPMWithEmptyCaches();
+        int nrOfAttrCalls = PointConversionCounter.getNrOfConvertToAttributeCalls();
+        ObjectIdBatchFetcher fetcher = new ObjectIdBatchFetcher(10);
+        SqlRecorder.clear();
+        SqlRecorder.start();
+        pm.currentTransaction().begin();
+        List<Object> rects = fetcher.getObjectsById(pm, oids);
+        List<Integer> actualX = new ArrayList<>();
+        for (Object rect : rects) {
+            actualX.add(((IPCRect) rect).getUpperLeft().getX());
+        }
+        pm.currentTransaction().commit();
+        SqlRecorder.stop();
+
+        assertEquals(expectedX, actualX);
+        // 3 batches of 10 ids, at most two classes per batch, and no SELECT for single instances
+        int nrOfSelects = countSelects();
+        assertTrue(nrOfSelects >= 3);
+        assertTrue(nrOfSelects <= 6);
+        assertEquals(fetcher.getNrOfQueries(), nrOfSelects);
+        // Every instance is loaded exactly once, both Point fields are converted with it
+        assertEquals(60, PointConversionCounter.getNrOfConvertToAttributeCalls() - nrOfAttrCalls);
+    }
+
+    /**
+     * Test method resolving ids in an optimistic transaction, where loaded instances report the
+     * same state as hollow ones.
+     */
+    @Test
+    public void testGetObjectsByIdOptimistic() {
+        List<Object> oids = createRects(PCRectAnnotated.class, 25);
+        List<Integer> expectedX = readUpperLeftX(oids);
+
+        PersistenceManager pm = newPMWithEmptyCaches();
+        ObjectIdBatchFetcher fetcher = new ObjectIdBatchFetcher(10);
+        pm.currentTransaction().setOptimistic(true);
+        pm.currentTransaction().begin();
+        for (int i = 0; i < 2; i++) {
+            // The second time all instances are loaded already
+            List<Integer> actualX = new ArrayList<>();
+            for (Object rect : fetcher.getObjectsById(pm, oids)) {
+                actualX.add(((IPCRect) rect).getUpperLeft().getX());
+            }
+            assertEquals(expectedX, actualX);
+        }
+        pm.currentTransaction().commit();
+
+        pm.currentTransaction().begin();
+        pm.deletePersistent(pm.getObjectById(oids.get(0)));
+        pm.currentTransaction().commit();
+        pm.currentTransaction().begin();
+        try {
+            fetcher.getObjectsById(pm, oids);
+            fail("A deleted id should not be found");
+        } catch (JDOObjectNotFoundException ex) {
+            assertEquals(oids.get(0), ex.getFailedObject());
+        } finally {
+            if (pm.currentTransaction().isActive()) {
+                pm.currentTransaction().rollback();
+            }
+        }
+    }
+
+    /**
+     * Test method iterating over ids while the next batch is prefetched.
+     */
+    @Test
+    public void testPrefetchingIterator() {
+        List<Object> oids = createRects(PCRectAnnotated.class, 35);
+        List<Integer> expectedX = readUpperLeftX(oids);
+
+        PersistenceManager pm = newPMWithEmptyCaches();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            SqlRecorder.clear();
+            SqlRecorder.start();
+            pm.currentTransaction().begin();
+            List<Integer> actualX = new ArrayList<>();
+            Iterator<Object> rects = new ObjectIdBatchFetcher(10).iterator(pm, oids, executor);
+            while (rects.hasNext()) {
+                actualX.add(((IPCRect) rects.next()).getUpperLeft().getX());
+            }
+            pm.currentTransaction().commit();
+            SqlRecorder.stop();
+            assertEquals(expectedX, actualX);
+            // 4 batches, each loaded once, either by the caller or by the prefetch into the L2 cache
+            assertEquals(4, countSelects());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Benchmark comparing one getObjectById per id with batched resolution.
+     */
+    // Enable this if using this test
+//    @Test
+    public void testBatchFetchLatency() {
+        List<Object> oids = createRects(PCRectAnnotated.class, NR_OF_BENCHMARK_OBJECTS);
+
+        PersistenceManager pm = newPMWithEmptyCaches();
+        long start = System.nanoTime();
+        pm.currentTransaction().begin();
+        for (Object oid : oids) {
+            ((IPCRect) pm.getObjectById(oid)).getUpperLeft();
+        }
+        pm.currentTransaction().commit();
+        long singleMillis = (System.nanoTime() - start) / 1_000_000;
+
+        for (int batchSize : new int[] {10, 100, 1000}) {
+            pm = newPMWithEmptyCaches();
+            ObjectIdBatchFetcher fetcher = new ObjectIdBatchFetcher(batchSize);
+            start = System.nanoTime();
+            pm.currentTransaction().begin();
+            for (Object rect : fetcher.getObjectsById(pm, oids)) {
+                ((IPCRect) rect).getUpperLeft();
+            }
+            pm.currentTransaction().commit();
+            NucleusLogger.GENERAL.info(">> Resolved " + oids.size() + " ids: getObjectById "
+                    + singleMillis + " ms, batch size " + batchSize + " "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms with "
+                    + fetcher.getNrOfQueries() + " queries");
+        }
+    }
+
+    private <T extends IPCRect> List<Object> createRects(Class<T> pcrectClass, int nrOfObjects) {
+        List<Object> oids = new ArrayList<>();
+        PersistenceManager pm = getPM();
+        pm.currentTransaction().begin();
+        try {
+            for (int i = 0; i < nrOfObjects; i++) {
+                T rect = pcrectClass.getConstructor().newInstance();
+                rect.setUpperLeft(new Point(i, UL_Y));
+                rect.setLowerRight(new Point(LR_X, LR_Y));
+                pm.makePersistent(rect);
+                oids.add(pm.getObjectId(rect));
+            }
+            pm.currentTransaction().commit();
+        } catch (ReflectiveOperationException ex) {
+            fail("Error creating IPCRect instance: " + ex.getMessage());
+        } finally {
+            if (pm.currentTransaction().isActive()) {
+                pm.currentTransaction().rollback();
+            }
+        }
+        return oids;
+    }
+
+    private List<Integer> readUpperLeftX(List<Object> oids) {
+        PersistenceManager pm = getPM();
+        List<Integer> xs = new ArrayList<>();
+        pm.currentTransaction().begin();
+        for (Object oid : oids) {
+            xs.add(((IPCRect) pm.getObjectById(oid)).getUpperLeft().getX());
+        }
+        pm.currentTransaction().commit();
+        return xs;
+    }
+
+    /** Counts the recorded SELECTs of all threads, e.g. also those of the prefetching thread. */
+    private static int countSelects() {
+        int count = 0;
+        for (SqlRecorder.Recorded statement : SqlRecorder.getStatements()) {
+            if (statement.getType() == SqlRecorder.Type.SELECT) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private PersistenceManager newPMWithEmptyCaches() {
+        getPM().getPersistenceManagerFactory().getDataStoreCache().evictAll();
+        cleanupPM();
+        return getPM();
+    }
+}
@@ -0,0 +1,201 @@
+package org.datanucleus.test;
+
+import java.sql.*;
+import java.util.*;
+import org.junit.*;
+import javax.jdo.*;
+
+import static org.junit.Assert.*;
+import mydomain.model.*;
+import org.datanucleus.util.NucleusLogger;
+import tck.util.MeteredConnectionPool;
+import tck.util.MeteredConnectionPoolFactory;
+import tck.util.PersistenceUnits;
+
+public class ConnectionPoolTest
+{
+    private static final int[] BENCHMARK_POOL_SIZES = {1, 2, 4, 8, 16, 32};
+    private static final int[] BENCHMARK_THREAD_COUNTS = {4, 16, 64, 256};
+    private static final int NR_OF_BENCHMARK_UNITS = 200;
+
+    @Test
+    public void testUnitUsesMeteredPool()
+    {
+        PersistenceManagerFactory pmf = PersistenceUnits.getPersistenceManagerFactory();
+        try
+        {
+            for (int i = 0; i < 10; i++)
+            {
+                PersistenceManager pm = pmf.getPersistenceManager();
+                try
+                {
+                    pm.currentTransaction().begin();
+                    pm.makePersistent(new Person(i, "Person " + i));
+                    pm.currentTransaction().commit();
+                    pm.currentTransaction().begin();
+                    pm.newQuery(Person.class, "this.name == :name").execute("Person " + i);
+                    pm.currentTransaction().commit();
+                }
+                finally
+                {
+                    pm.close();
+                }
+            }
+
+            MeteredConnectionPool pool = MeteredConnectionPool.forUrl(pmf.getConnectionURL());
+            assertNotNull(pool);
+            assertEquals(20, pool.getMaxSize());
+            assertTrue(pool.getNrOfAcquired() >= 20);
+            assertEquals(0, pool.getNrOfActive());
+            assertTrue(pool.getNrOfIdle() > 0);
+            assertTrue(pool.getNrOfCreated() <= pool.getMaxSize());
+            assertTrue(pool.getNrOfStatementCacheHits() > 0);
+            assertEquals(pool.getNrOfAcquired() + pool.getNrOfTimeouts(), Arrays.stream(pool.getWaitHistogram()).sum());
+
+            PersistenceManager pm = pmf.getPersistenceManager();
+            pm.currentTransaction().begin();
+            pm.newQuery(Person.class).deletePersistentAll();
+            pm.currentTransaction().commit();
+            pm.close();
+        }
+        finally
+        {
+            pmf.close();
+        }
+    }
+
+    @Test
+    public void testAcquireTimeout() throws SQLException
+    {
+        Properties props = new Properties();
+        props.setProperty("user", "sa");
+        props.setProperty("password", "");
+        MeteredConnectionPool pool = new MeteredConnectionPool("jdbc:h2:mem:poolTimeout", props, 1, 50, 1, 0, false);
+        try
+        {
+            Connection connection = pool.getConnection();
+            connection.setAutoCommit(false);
+            try
+            {
+                pool.getConnection();
+                fail("The only connection is in use");
+            }
+            catch (SQLTransientConnectionException e)
+            {
+                // expected
+            }
+            assertEquals(1, pool.getNrOfTimeouts());
+            assertEquals(0, pool.getNrOfPending());
+            assertTrue(pool.getWaitPercentileMicros(100) >= 50_000);
+            connection.close();
+
+            // Reused, and reset to auto-commit
+            Connection reused = pool.getConnection();
+            assertTrue(reused.getAutoCommit());
+            assertEquals(1, pool.getNrOfCreated());
+            reused.close();
+        }
+        finally
+        {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testCachedStatementSettingsReset() throws SQLException
+    {
+        Properties props = new Properties();
+        props.setProperty("user", "sa");
+        props.setProperty("password", "");
+        MeteredConnectionPool pool = new MeteredConnectionPool("jdbc:h2:mem:poolStatements", props, 1, 50, 1, 4, false);
+        try (Connection connection = pool.getConnection())
+        {
+            PreparedStatement ps = connection.prepareStatement("SELECT 1");
+            int fetchSize = ps.getFetchSize();
+            ps.setFetchSize(fetchSize + 10);
+            ps.setMaxRows(5);
+            ps.setQueryTimeout(3);
+            ps.close();
+
+            // The same statement, with the settings of a new one
+            ps = connection.prepareStatement("SELECT 1");
+            assertEquals(1, pool.getNrOfStatementCacheHits());
+            assertEquals(fetchSize, ps.getFetchSize());
+            assertEquals(0, ps.getMaxRows());
+            assertEquals(0, ps.getQueryTimeout());
+            ps.close();
+        }
+        finally
+        {
+            pool.close();
+        }
+    }
+
+    /**
+     * Benchmark running short queries with different pool sizes and numbers of threads, to find
+     * the pool size after which throughput no longer grows.
+     */
+    // Enable this if using this test
+//    @Test
+    public void testPoolSizeSweep() throws Exception
+    {
+        StringBuilder report = new StringBuilder(">> Pool size sweep (queries/s, p99 wait)");
+        for (int threadCount : BENCHMARK_THREAD_COUNTS)
+        {
+            report.append("\n   ").append(threadCount).append(" threads:");
+            for (int poolSize : BENCHMARK_POOL_SIZES)
+            {
+                // A database of its own, so the pool is not shared with PMFs of other tests
+                Map<String, Object> overrides = new HashMap<>();
+                overrides.put("javax.jdo.option.ConnectionURL", "jdbc:h2:mem:poolSweep");
+                overrides.put(MeteredConnectionPoolFactory.PROPERTY_MAX_POOL_SIZE, String.valueOf(poolSize));
+                overrides.put(MeteredConnectionPoolFactory.PROPERTY_MAX_WAIT, "60000");
+                PersistenceManagerFactory pmf = PersistenceUnits.getPersistenceManagerFactory(overrides);
+                try
+                {
+                    long start = System.nanoTime();
+                    Thread[] threads = new Thread[threadCount];
+                    for (int i = 0; i < threads.length; i++)
+                    {
+                        threads[i] = new Thread(() ->
+                        {
+                            for (int j = 0; j < NR_OF_BENCHMARK_UNITS; j++)
+                            {
+                                PersistenceManager pm = pmf.getPersistenceManager();
+                                try
+                                {
+                                    pm.currentTransaction().begin();
+                                    pm.newNamedQuery(Person.class, "Person.byName").execute("Nobody");
+                                    pm.currentTransaction().commit();
+                                }
+                                finally
+                                {
+                                    if (pm.currentTransaction().isActive())
+                                    {
+                                        pm.currentTransaction().rollback();
+                                    }
+                                    pm.close();
+                                }
+                            }
+                        });
+                        threads[i].start();
+                    }
+                    for (Thread thread : threads)
+                    {
+                        thread.join();
+                    }
+                    long millis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+                    MeteredConnectionPool pool = MeteredConnectionPool.forUrl(pmf.getConnectionURL());
+                    report.append("  size ").append(poolSize).append(": ")
+                            .append(threadCount * NR_OF_BENCHMARK_UNITS * 1000L / millis).append(", ")
+                            .append(pool.getWaitPercentileMicros(99)).append(" us");
+                }
+                finally
+                {
+                    pmf.close();
+                }
+            }
+        }
+        NucleusLogger.GENERAL.info(report);
+    }
+}
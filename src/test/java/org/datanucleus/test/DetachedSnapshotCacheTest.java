@@ -0,0 +1,170 @@
+package org.datanucleus.test;
+
+import java.util.*;
+import org.junit.*;
+import javax.jdo.*;
+
+import static org.junit.Assert.*;
+import mydomain.model.*;
+import org.datanucleus.util.NucleusLogger;
+import tck.util.CommitNotifier;
+import tck.util.DetachedSnapshotCache;
+import tck.util.PersistenceUnits;
+
+public class DetachedSnapshotCacheTest
+{
+    private static final int NR_OF_BENCHMARK_READS = 100_000;
+
+    private PersistenceManagerFactory pmf;
+    private CommitNotifier notifier;
+
+    @Before
+    public void setUp()
+    {
+        pmf = PersistenceUnits.getPersistenceManagerFactory();
+        notifier = new CommitNotifier();
+        PersistenceManager pm = pmf.getPersistenceManager();
+        try
+        {
+            pm.currentTransaction().begin();
+            for (long id = 0; id < 10; id++)
+            {
+                pm.makePersistent(new Person(id, "Name " + id));
+            }
+            pm.currentTransaction().commit();
+        }
+        finally
+        {
+            close(pm);
+        }
+    }
+
+    @After
+    public void tearDown()
+    {
+        PersistenceManager pm = pmf.getPersistenceManager();
+        try
+        {
+            pm.currentTransaction().begin();
+            pm.newQuery(Person.class).deletePersistentAll();
+            pm.currentTransaction().commit();
+        }
+        finally
+        {
+            close(pm);
+        }
+        pmf.close();
+    }
+
+    @Test
+    public void testHitAndMiss()
+    {
+        DetachedSnapshotCache<Person> cache = newCache(10);
+        Person first = cache.get(1L);
+        assertFalse(JDOHelper.isPersistent(first));
+        assertEquals("Name 1", first.getName());
+        // Every caller gets an instance of its own
+        first.setName("Changed");
+        Person second = cache.get(1L);
+        assertNotSame(first, second);
+        assertEquals("Name 1", second.getName());
+        assertNull(cache.get(100L));
+
+        assertEquals(1, cache.getNrOfHits());
+        assertEquals(2, cache.getNrOfMisses());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testRefreshOnCommit()
+    {
+        DetachedSnapshotCache<Person> cache = newCache(10);
+        assertEquals("Name 1", cache.get(1L).getName());
+        assertEquals("Name 2", cache.get(2L).getName());
+
+        PersistenceManager pm = pmf.getPersistenceManager();
+        notifier.attach(pm);
+        try
+        {
+            pm.currentTransaction().begin();
+            pm.getObjectById(Person.class, 1L).setName("Changed");
+            pm.currentTransaction().rollback();
+            assertEquals(2, cache.size());
+
+            pm.currentTransaction().begin();
+            pm.getObjectById(Person.class, 1L).setName("Changed");
+            pm.currentTransaction().commit();
+        }
+        finally
+        {
+            close(pm);
+        }
+
+        assertEquals(1, cache.getNrOfInvalidations());
+        assertEquals("Changed", cache.get(1L).getName());
+        assertEquals("Name 2", cache.get(2L).getName());
+    }
+
+    @Test
+    public void testLruEviction()
+    {
+        DetachedSnapshotCache<Person> cache = newCache(2);
+        cache.get(1L);
+        cache.get(2L);
+        cache.get(1L);
+        cache.get(3L);
+        assertEquals(2, cache.size());
+        // 2 was the least recently used entry
+        cache.get(1L);
+        assertEquals(2, cache.getNrOfHits());
+        cache.get(2L);
+        assertEquals(2, cache.getNrOfHits());
+    }
+
+    // Enable this if using this test
+//    @Test
+    public void testReadLatency()
+    {
+        Random random = new Random(42);
+        long start = System.nanoTime();
+        for (int i = 0; i < NR_OF_BENCHMARK_READS; i++)
+        {
+            PersistenceManager pm = pmf.getPersistenceManager();
+            try
+            {
+                pm.currentTransaction().begin();
+                Person p = pm.detachCopy(pm.getObjectById(Person.class, (long) random.nextInt(10)));
+                pm.currentTransaction().commit();
+                assertNotNull(p.getName());
+            }
+            finally
+            {
+                close(pm);
+            }
+        }
+        long detachNanos = (System.nanoTime() - start) / NR_OF_BENCHMARK_READS;
+
+        DetachedSnapshotCache<Person> cache = newCache(100);
+        start = System.nanoTime();
+        for (int i = 0; i < NR_OF_BENCHMARK_READS; i++)
+        {
+            assertNotNull(cache.get((long) random.nextInt(10)).getName());
+        }
+        long cacheNanos = (System.nanoTime() - start) / NR_OF_BENCHMARK_READS;
+        NucleusLogger.GENERAL.info(">> Person read: detach per request " + detachNanos + " ns, snapshot cache " + cacheNanos + " ns");
+    }
+
+    private DetachedSnapshotCache<Person> newCache(int maxEntries)
+    {
+        return new DetachedSnapshotCache<>(pmf, Person.class, notifier, maxEntries, p -> new Person(p.getId(), p.getName()));
+    }
+
+    private static void close(PersistenceManager pm)
+    {
+        if (pm.currentTransaction().isActive())
+        {
+            pm.currentTransaction().rollback();
+        }
+        pm.close();
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.datanucleus.test;
+
+import org.datanucleus.util.NucleusLogger;
+import org.junit.Test;
+import tck.model.Point;
+import tck.pc.IPCRect;
+import tck.pc.PCRectAnnotated;
+import tck.pc.PCRectEmbedded;
+import tck.util.PointConversionCounter;
+import tck.util.QueryStreams;
+
+import javax.jdo.JDOHelper;
+import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+import javax.jdo.datastore.JDOConnection;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for PCRectEmbedded, which maps its Point fields to INTEGER columns instead of converting
+ * them to strings.
+ */
+public class EmbeddedPointTest extends AnnotationTestHelper {
+
+    private static final int NR_OF_BENCHMARK_OBJECTS = 100_000;
+
+    /**
+     * Test method storing and reading a PCRectEmbedded instance without any Point conversion.
+     */
+    @Test
+    public void testStoreAndRead() {
+        int nrOfDbCalls = PointConversionCounter.getNrOfConvertToDatastoreCalls();
+        int nrOfAttrCalls = PointConversionCounter.getNrOfConvertToAttributeCalls();
+        PersistenceManager pm = getPM();
+        pm.currentTransaction().begin();
+        PCRectEmbedded rect = new PCRectEmbedded();
+        rect.setUpperLeft(new Point(UL_X, UL_Y));
+        rect.setLowerRight(new Point(LR_X, null));
+        pm.makePersistent(rect);
+        Object oid = pm.getObjectId(rect);
+        pm.currentTransaction().commit();
+
+        pm.getPersistenceManagerFactory().getDataStoreCache().evictAll(false, PCRectEmbedded.class);
+        cleanupPM();
+        pm = getPM();
+        pm.currentTransaction().begin();
+        IPCRect read = (IPCRect) pm.getObjectById(oid);
+        assertEquals(UL_X, read.getUpperLeft().x);
+        assertEquals(Integer.valueOf(UL_Y), read.getUpperLeft().y);
+        assertEquals(LR_X, read.getLowerRight().x);
+        assertNull(read.getLowerRight().y);
+
+        // Setting equal values does not dirty the instance
+        read.setUpperLeft(new Point(UL_X, UL_Y));
+        assertFalse(JDOHelper.isDirty(read));
+        pm.currentTransaction().commit();
+
+        assertEquals(0, PointConversionCounter.getNrOfConvertToDatastoreCalls() - nrOfDbCalls);
+        assertEquals(0, PointConversionCounter.getNrOfConvertToAttributeCalls() - nrOfAttrCalls);
+    }
+
+    /**
+     * Test method running a range filter on an embedded coordinate, which is evaluated in SQL.
+     */
+    @Test
+    public void testRangeQuery() {
+        createIPCRectInstances(PCRectEmbedded.class, 10);
+        PersistenceManager pm = getPM();
+        pm.currentTransaction().begin();
+        try (Query<PCRectEmbedded> q =
+                     pm.newQuery(PCRectEmbedded.class, "this.upperLeft.x < :maxX && this.lowerRight.y >= :minY")) {
+            q.setParameters(UL_X + 5, LR_Y + 2);
+            List<PCRectEmbedded> res = q.executeList();
+            Set<Integer> xs = new HashSet<>();
+            for (PCRectEmbedded rect : res) {
+                xs.add(rect.getUpperLeft().x);
+            }
+            assertEquals(new HashSet<>(List.of(UL_X + 2, UL_X + 3, UL_X + 4)), xs);
+        } catch (Exception ex) {
+            fail(ex.getMessage());
+        }
+        try (Query<PCRectEmbedded> q =
+                     pm.newNamedQuery(PCRectEmbedded.class, "PCRectEmbedded.byUpperLeft")) {
+            q.setParameters(UL_X + 7, UL_Y + 7);
+            assertEquals(1, q.executeList().size());
+        } catch (Exception ex) {
+            fail(ex.getMessage());
+        }
+        pm.currentTransaction().commit();
+    }
+
+    /**
+     * Test method checking that the coordinate columns are indexed.
+     */
+    @Test
+    public void testCoordinateIndexes() throws SQLException {
+        createIPCRectInstances(PCRectEmbedded.class, 1);
+        PersistenceManager pm = getPM();
+        Set<String> indexedColumns = new HashSet<>();
+        JDOConnection jdoConnection = pm.getDataStoreConnection();
+        try {
+            Connection connection = (Connection) jdoConnection.getNativeConnection();
+            try (ResultSet rs = connection.getMetaData()
+                    .getIndexInfo(null, null, "PCRECTEMBEDDED", false, false)) {
+                while (rs.next()) {
+                    indexedColumns.add(rs.getString("COLUMN_NAME"));
+                }
+            }
+        } finally {
+            jdoConnection.close();
+        }
+        assertTrue(indexedColumns.toString(), indexedColumns.containsAll(
+                List.of("UPPER_LEFT_X", "UPPER_LEFT_Y", "LOWER_RIGHT_X", "LOWER_RIGHT_Y")));
+    }
+
+    /**
+     * Benchmark comparing a range filter on the embedded mapping, run in SQL, with the converter
+     * mapping, where every rect has to be loaded and converted.
+     */
+    // Enable this if using this test
+//    @Test
+    public void testRangeQueryLatency() {
+        PersistenceManager pm = getPM();
+        pm.currentTransaction().begin();
+        for (int i = 0; i < NR_OF_BENCHMARK_OBJECTS; i++) {
+            PCRectEmbedded embedded = new PCRectEmbedded();
+            embedded.setUpperLeft(new Point(i, i + 10));
+            embedded.setLowerRight(new Point(i + 10, i));
+            pm.makePersistent(embedded);
+            PCRectAnnotated converted = new PCRectAnnotated();
+            converted.setUpperLeft(new Point(i, i + 10));
+            converted.setLowerRight(new Point(i + 10, i));
+            pm.makePersistent(converted);
+            if ((i + 1) % 10_000 == 0) {
+                pm.currentTransaction().commit();
+                pm.evictAll();
+                pm.currentTransaction().begin();
+            }
+        }
+        pm.currentTransaction().commit();
+
+        pm.currentTransaction().begin();
+        long start = System.nanoTime();
+        long embeddedCount;
+        try (Query<PCRectEmbedded> q = pm.newQuery(PCRectEmbedded.class, "this.upperLeft.x < :maxX")) {
+            q.setParameters(100);
+            embeddedCount = q.executeList().size();
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+        long embeddedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        start = System.nanoTime();
+        long convertedCount;
+        try (Stream<PCRectAnnotated> rects = QueryStreams.stream(pm, PCRectAnnotated.class)) {
+            convertedCount = rects.filter(r -> r.getUpperLeft().x < 100).count();
+        }
+        long convertedMillis = (System.nanoTime() - start) / 1_000_000;
+        pm.currentTransaction().commit();
+        assertEquals(embeddedCount, convertedCount);
+        NucleusLogger.GENERAL.info(">> upperLeft.x < 100 over " + NR_OF_BENCHMARK_OBJECTS + " rects: embedded "
+                + embeddedMillis + " ms, converted " + convertedMillis + " ms");
+    }
+}
@@ -7,6 +7,7 @@ import javax.jdo.*;
 import static org.junit.Assert.*;
 import mydomain.model.*;
 import org.datanucleus.util.NucleusLogger;
+import tck.util.PersistenceUnits;
 
 public class MultithreadTest
 {
@@ -15,7 +16,7 @@ public class MultithreadTest
     public void testMulti()
     {
         NucleusLogger.GENERAL.info(">> test START");
-        final PersistenceManagerFactory pmf = JDOHelper.getPersistenceManagerFactory("MyTest");
+        final PersistenceManagerFactory pmf = PersistenceUnits.getPersistenceManagerFactory();
 
         try
         {
@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.datanucleus.test;
+
+import mydomain.model.Person;
+import org.datanucleus.util.NucleusLogger;
+import org.junit.Test;
+import tck.model.ConvertiblePoint;
+import tck.model.Point;
+import tck.pc.PCRectAnnotated;
+import tck.pc.PCRectPointTypeAnnotated;
+import tck.util.NamedQueries;
+
+import javax.jdo.JDOUserException;
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import javax.jdo.Query;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the named queries declared in package.jdo and on Person.
+ */
+public class NamedQueryTest extends AnnotationTestHelper {
+
+    private static final int NR_OF_BENCHMARK_RUNS = 10_000;
+
+    /**
+     * Test method compiling the named queries of all persistent classes.
+     */
+    @Test
+    public void testWarmUp() {
+        PersistenceManagerFactory pmf = getPM().getPersistenceManagerFactory();
+        assertEquals(5, NamedQueries.warmUp(pmf,
+                PCRectAnnotated.class, PCRectPointTypeAnnotated.class, Person.class));
+    }
+
+    /**
+     * Test method running the named Point queries of both annotated rect classes.
+     */
+    @Test
+    public void testRectQueries() {
+        createIPCRectInstances(PCRectAnnotated.class, 5);
+        createIPCRectInstances(PCRectPointTypeAnnotated.class, 5);
+        PersistenceManager pm = getPM();
+        pm.currentTransaction().begin();
+        try (Query<PCRectAnnotated> q =
+                     pm.newNamedQuery(PCRectAnnotated.class, "PCRectAnnotated.byLowerRight")) {
+            q.setParameters(new Point(LR_X + 2, LR_Y + 2));
+            List<PCRectAnnotated> res = q.executeList();
+            assertEquals(1, res.size());
+            assertEquals(UL_X + 2, res.get(0).getUpperLeft().getX());
+        } catch (Exception ex) {
+            fail(ex.getMessage());
+        }
+        try (Query<PCRectPointTypeAnnotated> q = pm.newNamedQuery(
+                PCRectPointTypeAnnotated.class, "PCRectPointTypeAnnotated.byUpperLeft")) {
+            q.setParameters(new ConvertiblePoint(UL_X + 3, UL_Y + 3));
+            List<PCRectPointTypeAnnotated> res = q.executeList();
+            assertEquals(1, res.size());
+            assertEquals(LR_X + 3, res.get(0).getLowerRight().getX());
+        } catch (Exception ex) {
+            fail(ex.getMessage());
+        }
+        pm.currentTransaction().commit();
+    }
+
+    /**
+     * Test method running the named query of Person and checking that named queries cannot be
+     * modified.
+     */
+    @Test
+    public void testPersonQuery() {
+        PersistenceManager pm = getPM();
+        pm.currentTransaction().begin();
+        pm.makePersistent(new Person(1, "First"));
+        pm.makePersistent(new Person(2, "Second"));
+        pm.currentTransaction().commit();
+
+        pm.currentTransaction().begin();
+        try (Query<Person> q = pm.newNamedQuery(Person.class, "Person.byName")) {
+            q.setParameters("Second");
+            List<Person> res = q.executeList();
+            assertEquals(1, res.size());
+            assertEquals(Long.valueOf(2), res.get(0).getId());
+            try {
+                q.setFilter("this.id == 1");
+                fail("Named queries should be unmodifiable");
+            } catch (JDOUserException ex) {
+                // expected
+            }
+        } catch (Exception ex) {
+            fail(ex.getMessage());
+        } finally {
+            pm.newQuery(Person.class).deletePersistentAll();
+            pm.currentTransaction().commit();
+        }
+    }
+
+    /**
+     * Benchmark comparing compile and execute latency of ad-hoc queries, with and without the
+     * compilation cache, and named queries.
+     */
+    // Enable this if using this test
+//    @Test
+    public void testCompileLatency() {
+        createIPCRectInstances(PCRectAnnotated.class, 5);
+        PersistenceManager pm = getPM();
+        Point point = new Point(UL_X + 1, UL_Y + 1);
+        pm.currentTransaction().begin();
+        long uncachedNanos = run(pm, point, "uncached");
+        long adHocNanos = run(pm, point, "adhoc");
+        long namedNanos = run(pm, point, "named");
+        pm.currentTransaction().commit();
+        NucleusLogger.GENERAL.info(">> Point query: ad-hoc without compilation cache "
+                + uncachedNanos + " ns, ad-hoc " + adHocNanos + " ns, named " + namedNanos + " ns");
+    }
+
+    private long run(PersistenceManager pm, Point point, String mode) {
+        long start = System.nanoTime();
+        for (int i = 0; i < NR_OF_BENCHMARK_RUNS; i++) {
+            Query<PCRectAnnotated> q = "named".equals(mode)
+                    ? pm.newNamedQuery(PCRectAnnotated.class, "PCRectAnnotated.byUpperLeft")
+                    : pm.newQuery(PCRectAnnotated.class, "this.upperLeft == :point");
+            if ("uncached".equals(mode)) {
+                q.extension("datanucleus.query.compilation.cached", "false");
+            }
+            q.setParameters(point);
+            assertEquals(1, q.executeList().size());
+            q.closeAll();
+        }
+        return (System.nanoTime() - start) / NR_OF_BENCHMARK_RUNS;
+    }
+}
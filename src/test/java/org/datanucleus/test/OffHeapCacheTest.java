@@ -0,0 +1,224 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.datanucleus.test;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import org.datanucleus.api.jdo.JDODataStoreCache;
+import org.datanucleus.cache.Level2Cache;
+import org.datanucleus.util.NucleusLogger;
+import org.junit.Test;
+import tck.model.Point;
+import tck.pc.IPCRect;
+import tck.pc.PCRectAnnotated;
+import tck.util.OffHeapLevel2Cache;
+import tck.util.OffHeapSlabStore;
+import tck.util.PersistenceUnits;
+import tck.util.PointConversionCounter;
+
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the off-heap level 2 cache and its slab store.
+ */
+public class OffHeapCacheTest {
+
+    private static final int NR_OF_BENCHMARK_OBJECTS = 1_000_000;
+    private static final long CAPACITY_BYTES = 4L * 1024 * 1024;
+    private static final long BENCHMARK_CAPACITY_BYTES = 512L * 1024 * 1024;
+
+    /**
+     * Test method storing values spanning several slots and evicting the least recently used ones.
+     */
+    @Test
+    public void testSlabStoreLruEviction() {
+        // 8 slots of 16 bytes, 12 bytes payload each
+        OffHeapSlabStore<String> store = new OffHeapSlabStore<>(128, 16, 0);
+        store.put("a", new byte[30], "tag"); // 3 slots
+        store.put("b", new byte[12], "tag"); // 1 slot
+        store.put("c", new byte[40], "tag"); // 4 slots
+        assertEquals(3, store.size());
+        assertEquals(128, store.getUsedBytes());
+
+        // access "a" so that "b" is the least recently used entry
+        assertEquals(30, store.get("a").length);
+        store.put("d", new byte[5], "other");
+        assertNull(store.get("b"));
+        assertEquals(1, store.getEvictions());
+
+        byte[] value = new byte[40];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = (byte) i;
+        }
+        store.put("c", value, "tag");
+        assertArrayEquals(value, store.get("c"));
+
+        store.removeIf("other"::equals);
+        assertFalse(store.containsKey("d"));
+        assertEquals(2, store.size());
+    }
+
+    /**
+     * Test method checking that a second read is served from the off-heap cache without converting
+     * the Point fields again.
+     */
+    @Test
+    public void testReadFromOffHeapCache() {
+        PersistenceManagerFactory pmf = newPMF("offheap", CAPACITY_BYTES);
+        try {
+            PersistenceManager pm = pmf.getPersistenceManager();
+            pm.currentTransaction().begin();
+            PCRectAnnotated rect = new PCRectAnnotated();
+            rect.setUpperLeft(new Point(1, 10));
+            rect.setLowerRight(new Point(10, null));
+            pm.makePersistent(rect);
+            Object oid = pm.getObjectId(rect);
+            pm.currentTransaction().commit();
+            pm.close();
+
+            OffHeapLevel2Cache cache =
+                    (OffHeapLevel2Cache) ((JDODataStoreCache) pmf.getDataStoreCache()).getLevel2Cache();
+            assertTrue(cache.containsOid(oid));
+
+            int nrOfAttrCalls = PointConversionCounter.getNrOfConvertToAttributeCalls();
+            pm = pmf.getPersistenceManager();
+            pm.currentTransaction().begin();
+            IPCRect read = (IPCRect) pm.getObjectById(oid, false);
+            Point ul = read.getUpperLeft();
+            Point lr = read.getLowerRight();
+            pm.currentTransaction().commit();
+            pm.close();
+
+            assertEquals(0, PointConversionCounter.getNrOfConvertToAttributeCalls() - nrOfAttrCalls);
+            assertEquals(1, ul.getX());
+            assertEquals(Integer.valueOf(10), ul.getY());
+            assertEquals(10, lr.getX());
+            assertNull(lr.getY());
+            assertTrue(cache.getHits() > 0);
+        } finally {
+            pmf.close();
+        }
+    }
+
+    /**
+     * Benchmark comparing the GC pauses for a L2 cache holding 10^6 rects, for the default cache
+     * and the off-heap cache. The longest collection of each collector is reported, as the total
+     * collection time hides whether the cache causes few long or many short pauses.
+     */
+    // Enable this if using this test
+//    @Test
+    public void testGcPauses() {
+        for (String cacheType : new String[] {"soft", "offheap"}) {
+            PersistenceManagerFactory pmf = newPMF(cacheType, BENCHMARK_CAPACITY_BYTES);
+            try (GcPauses pauses = new GcPauses()) {
+                long start = System.nanoTime();
+                PersistenceManager pm = pmf.getPersistenceManager();
+                pm.currentTransaction().begin();
+                for (int i = 0; i < NR_OF_BENCHMARK_OBJECTS; i++) {
+                    PCRectAnnotated rect = new PCRectAnnotated();
+                    rect.setUpperLeft(new Point(i, i));
+                    rect.setLowerRight(new Point(i + 1, i + 1));
+                    pm.makePersistent(rect);
+                    if ((i + 1) % 10_000 == 0) {
+                        pm.currentTransaction().commit();
+                        pm.evictAll();
+                        // Allocate garbage while the cache is full to trigger collections
+                        byte[][] garbage = new byte[1_000][];
+                        for (int j = 0; j < garbage.length; j++) {
+                            garbage[j] = new byte[10_000];
+                        }
+                        pm.currentTransaction().begin();
+                    }
+                }
+                pm.currentTransaction().commit();
+                pm.close();
+                Level2Cache cache = ((JDODataStoreCache) pmf.getDataStoreCache()).getLevel2Cache();
+                NucleusLogger.GENERAL.info(">> L2 cache " + cacheType + ": "
+                        + cache.getClass().getSimpleName() + " filled in "
+                        + (System.nanoTime() - start) / 1_000_000 + " ms, longest GC " + pauses);
+            } finally {
+                pmf.close();
+            }
+        }
+    }
+
+    private static PersistenceManagerFactory newPMF(String level2CacheType, long capacityBytes) {
+        Map<String, Object> overrides = new HashMap<>();
+        overrides.put("datanucleus.cache.level2.type", level2CacheType);
+        overrides.put(OffHeapLevel2Cache.PROPERTY_CAPACITY, String.valueOf(capacityBytes));
+        return PersistenceUnits.getPersistenceManagerFactory(overrides);
+    }
+
+    /**
+     * Records the longest collection of each collector, from the GC notifications. The duration of
+     * a stop-the-world collection is its pause.
+     */
+    private static final class GcPauses implements NotificationListener, AutoCloseable {
+        private final Map<String, Long> maxMillis = new TreeMap<>();
+        private final Map<String, Integer> counts = new TreeMap<>();
+
+        GcPauses() {
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                ((NotificationEmitter) gc).addNotificationListener(this, null, null);
+            }
+        }
+
+        @Override
+        public synchronized void handleNotification(Notification notification, Object handback) {
+            if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                return;
+            }
+            GarbageCollectionNotificationInfo info =
+                    GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+            maxMillis.merge(info.getGcName(), info.getGcInfo().getDuration(), Math::max);
+            counts.merge(info.getGcName(), 1, Integer::sum);
+        }
+
+        @Override
+        public void close() {
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                try {
+                    ((NotificationEmitter) gc).removeNotificationListener(this);
+                } catch (ListenerNotFoundException e) {
+                    // not registered with this collector
+                }
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, Long> entry : maxMillis.entrySet()) {
+                sb.append(sb.length() == 0 ? "" : ", ").append(entry.getKey()).append(" ")
+                        .append(entry.getValue()).append(" ms in ").append(counts.get(entry.getKey())).append(" collections");
+            }
+            return sb.length() == 0 ? "none" : sb.toString();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.datanucleus.test;
+
+import org.datanucleus.util.NucleusLogger;
+import org.junit.Test;
+import tck.model.Point;
+import tck.pc.PCRect;
+import tck.util.ParallelCandidateQuery;
+
+import javax.jdo.PersistenceManagerFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the parallel in-memory evaluation of queries over candidate collections.
+ */
+public class ParallelCandidateQueryTest extends AnnotationTestHelper {
+
+    private static final String FILTER = "this.id >= :min && this.id < :max";
+    private static final int NR_OF_BENCHMARK_OBJECTS = 1_000_000;
+
+    /**
+     * Test method comparing the parallel evaluation with a sequential filter of the candidates.
+     */
+    @Test
+    public void testSameResultAsSequential() {
+        List<PCRect> candidates = createCandidates(1000);
+        PersistenceManagerFactory pmf = getPM().getPersistenceManagerFactory();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            ParallelCandidateQuery<PCRect> query =
+                    new ParallelCandidateQuery<>(pmf, PCRect.class, FILTER, null, pool, 50);
+            List<PCRect> expected = candidates.stream()
+                    .filter(r -> r.getId() >= 100 && r.getId() < 600)
+                    .collect(Collectors.toList());
+            // The order of the candidates, in every run
+            assertEquals(expected, query.execute(candidates, 100L, 600L));
+            assertEquals(expected, query.execute(candidates, 100L, 600L));
+
+            ParallelCandidateQuery<PCRect> ordered =
+                    new ParallelCandidateQuery<>(pmf, PCRect.class, FILTER, "this.id descending", pool, 50);
+            expected.sort(Comparator.comparingLong(PCRect::getId).reversed());
+            assertEquals(expected, ordered.execute(candidates, 100L, 600L));
+
+            // Fewer candidates than a chunk, evaluated by one query
+            List<PCRect> few = candidates.subList(0, 40);
+            assertEquals(expected.stream().filter(few::contains).collect(Collectors.toList()),
+                    ordered.execute(few, 100L, 600L));
+            assertTrue(query.execute(candidates, 2000L, 3000L).isEmpty());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Benchmark of an ordered query over 10^6 in-memory candidates with 1 to N threads.
+     */
+    // Enable this if using this test
+//    @Test
+    public void testParallelism() {
+        List<PCRect> candidates = createCandidates(NR_OF_BENCHMARK_OBJECTS);
+        PersistenceManagerFactory pmf = getPM().getPersistenceManagerFactory();
+        StringBuilder report = new StringBuilder(">> Parallel candidate query");
+        int nrOfCores = Runtime.getRuntime().availableProcessors();
+        for (int parallelism = 1; parallelism <= nrOfCores;
+                parallelism = parallelism < nrOfCores ? Math.min(2 * parallelism, nrOfCores) : nrOfCores + 1) {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                ParallelCandidateQuery<PCRect> query = new ParallelCandidateQuery<>(pmf, PCRect.class,
+                        FILTER, "this.id ascending", pool, ParallelCandidateQuery.DEFAULT_CHUNK_SIZE);
+                // Warm up
+                query.execute(candidates, 0L, (long) NR_OF_BENCHMARK_OBJECTS / 10);
+                long start = System.nanoTime();
+                int size = query.execute(candidates, 0L, (long) NR_OF_BENCHMARK_OBJECTS / 10).size();
+                report.append("\n   ").append(parallelism).append(" threads: ").append(size)
+                        .append(" matches in ").append((System.nanoTime() - start) / 1_000_000).append(" ms");
+            } finally {
+                pool.shutdown();
+            }
+        }
+        NucleusLogger.GENERAL.info(report);
+    }
+
+    private List<PCRect> createCandidates(int nrOfObjects) {
+        List<PCRect> candidates = new ArrayList<>(nrOfObjects);
+        for (int i = 0; i < nrOfObjects; i++) {
+            PCRect rect = new PCRect();
+            rect.setId(i);
+            rect.setUpperLeft(new Point(i, i + 10));
+            rect.setLowerRight(new Point(i + 10, i));
+            candidates.add(rect);
+        }
+        Collections.shuffle(candidates, new Random(0));
+        return candidates;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.datanucleus.test;
+
+import org.datanucleus.util.NucleusLogger;
+import org.junit.Test;
+import tck.model.Point;
+import tck.pc.PCRectAnnotated;
+import tck.util.ParallelIngest;
+import tck.util.ParallelIngest.FailurePolicy;
+
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import javax.jdo.Query;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the parallel bulk ingest of IPCRect instances.
+ */
+public class ParallelIngestTest extends AnnotationTestHelper {
+
+    private static final int NR_OF_BENCHMARK_OBJECTS = 100_000;
+
+    /**
+     * Test method ingesting PCRectAnnotated instances with several workers.
+     */
+    @Test
+    public void testIngest() {
+        PersistenceManagerFactory pmf = getPM().getPersistenceManagerFactory();
+        ParallelIngest<PCRectAnnotated> ingest =
+                new ParallelIngest<>(pmf, 4, 50, FailurePolicy.ABORT, 0);
+
+        ParallelIngest.Result result = ingest.ingest(newRects(1_003));
+
+        assertEquals(1_003, result.getNrOfObjects());
+        assertEquals(21, result.getNrOfPartitions());
+        assertEquals(0, result.getNrOfRetries());
+        assertEquals(1_003, countRects(getPM()));
+    }
+
+    /**
+     * Test method checking that a failing partition is retried and then aborts the ingest.
+     */
+    @Test
+    public void testRetryThenAbort() {
+        PersistenceManagerFactory pmf = getPM().getPersistenceManagerFactory();
+        ParallelIngest<Object> ingest =
+                new ParallelIngest<>(pmf, 2, 10, FailurePolicy.RETRY_PARTITION, 2);
+        List<Object> input = new ArrayList<>();
+        newRects(10).forEachRemaining(input::add);
+        // Not persistence-capable, so the second partition can never be committed
+        input.add(new Object());
+
+        try {
+            ingest.ingest(input.iterator());
+            fail("Ingest of a non persistence-capable object should abort");
+        } catch (ParallelIngest.AbortedException ex) {
+            assertEquals(2, ex.getResult().getNrOfRetries());
+            assertEquals(1, ex.getResult().getNrOfPartitions());
+            assertEquals(10, ex.getResult().getNrOfObjects());
+        }
+        assertEquals(10, countRects(getPM()));
+    }
+
+    /**
+     * Test method checking that an exception thrown by the input stops the workers and is
+     * rethrown.
+     */
+    @Test
+    public void testFailingInput() {
+        PersistenceManagerFactory pmf = getPM().getPersistenceManagerFactory();
+        ParallelIngest<PCRectAnnotated> ingest =
+                new ParallelIngest<>(pmf, 2, 10, FailurePolicy.ABORT, 0);
+        Iterator<PCRectAnnotated> rects = newRects(25);
+        IllegalStateException inputFailure = new IllegalStateException("Input failed");
+        Iterator<PCRectAnnotated> input = new Iterator<PCRectAnnotated>() {
+            @Override
+            public boolean hasNext() {
+                return true;
+            }
+
+            @Override
+            public PCRectAnnotated next() {
+                if (!rects.hasNext()) {
+                    throw inputFailure;
+                }
+                return rects.next();
+            }
+        };
+
+        try {
+            ingest.ingest(input);
+            fail("Ingest of a failing input should fail");
+        } catch (IllegalStateException ex) {
+            assertSame(inputFailure, ex);
+        }
+        // The full partitions read before the failure may or may not have been committed
+        assertTrue(countRects(getPM()) <= 20);
+    }
+
+    /**
+     * Benchmark ingesting rects with 1 to N workers, where N is the number of available cores.
+     * The throughput per number of workers is written to the log.
+     */
+    // Enable this if using this test
+//    @Test
+    public void testIngestScaling() {
+        PersistenceManagerFactory pmf = getPM().getPersistenceManagerFactory();
+        int maxWorkers = Runtime.getRuntime().availableProcessors();
+        StringBuilder chart = new StringBuilder("\nworkers | objects/s\n");
+        for (int workers = 1; workers <= maxWorkers; workers++) {
+            ParallelIngest<PCRectAnnotated> ingest =
+                    new ParallelIngest<>(pmf, workers, 1_000, FailurePolicy.RETRY_PARTITION, 3);
+            ParallelIngest.Result result = ingest.ingest(newRects(NR_OF_BENCHMARK_OBJECTS));
+            chart.append(String.format("%7d | %9.0f%n", workers, result.getObjectsPerSecond()));
+
+            PersistenceManager pm = getPM();
+            pm.currentTransaction().begin();
+            pm.newQuery(PCRectAnnotated.class).deletePersistentAll();
+            pm.currentTransaction().commit();
+        }
+        NucleusLogger.GENERAL.info(">> Ingest scaling on H2:" + chart);
+    }
+
+    private static Iterator<PCRectAnnotated> newRects(int nrOfObjects) {
+        return IntStream.range(0, nrOfObjects).mapToObj(i -> {
+            PCRectAnnotated rect = new PCRectAnnotated();
+            rect.setUpperLeft(new Point(UL_X + i, UL_Y + i));
+            rect.setLowerRight(new Point(LR_X + i, LR_Y + i));
+            return rect;
+        }).iterator();
+    }
+
+    private static long countRects(PersistenceManager pm) {
+        pm.currentTransaction().begin();
+        try (Query<PCRectAnnotated> q = pm.newQuery(PCRectAnnotated.class)) {
+            q.setResult("count(this)");
+            return (Long) q.executeResultUnique();
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex);
+        } finally {
+            pm.currentTransaction().commit();
+        }
+    }
+}
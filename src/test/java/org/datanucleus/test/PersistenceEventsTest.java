@@ -0,0 +1,117 @@
+package org.datanucleus.test;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Collectors;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.*;
+import javax.jdo.*;
+
+import static org.junit.Assert.*;
+import mydomain.model.*;
+import tck.model.Point;
+import tck.pc.PCRectAnnotated;
+import tck.util.PersistenceEvents;
+import tck.util.PersistenceUnits;
+
+public class PersistenceEventsTest
+{
+    private static final String[] EVENT_NAMES = {"tck.PersistenceManager", "tck.Transaction", "tck.Flush",
+        "tck.Query", "tck.GetObjectById", "tck.Conversion"};
+
+    @Test
+    public void testEventsRecorded() throws IOException
+    {
+        PersistenceManagerFactory pmf = PersistenceEvents.wrap(PersistenceUnits.getPersistenceManagerFactory());
+        Path file = Files.createTempFile("tck", ".jfr");
+        try (Recording recording = new Recording())
+        {
+            for (String name : EVENT_NAMES)
+            {
+                recording.enable(name).withoutThreshold();
+            }
+            recording.start();
+
+            PersistenceManager pm = pmf.getPersistenceManager();
+            assertSame(pmf, pm.getPersistenceManagerFactory());
+            try
+            {
+                pm.currentTransaction().begin();
+                pm.makePersistent(new Person(1, "First"));
+                PCRectAnnotated rect = new PCRectAnnotated();
+                rect.setUpperLeft(new Point(1, 10));
+                rect.setLowerRight(new Point(10, 1));
+                pm.makePersistent(rect);
+                pm.flush();
+                pm.currentTransaction().commit();
+
+                pm.currentTransaction().begin();
+                assertEquals("First", pm.getObjectById(Person.class, 1L).getName());
+                Query<Person> query = pm.newQuery(Person.class, "this.name == :name");
+                assertEquals(1, query.setParameters("First").executeList().size());
+                pm.newQuery(Person.class).deletePersistentAll();
+                pm.newQuery(PCRectAnnotated.class).deletePersistentAll();
+                pm.currentTransaction().rollback();
+
+                pm.currentTransaction().begin();
+                pm.newQuery(Person.class).deletePersistentAll();
+                pm.newQuery(PCRectAnnotated.class).deletePersistentAll();
+                pm.currentTransaction().commit();
+            }
+            finally
+            {
+                if (pm.currentTransaction().isActive())
+                {
+                    pm.currentTransaction().rollback();
+                }
+                pm.close();
+            }
+
+            recording.stop();
+            recording.dump(file);
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            Map<String, List<RecordedEvent>> byName = events.stream()
+                    .collect(Collectors.groupingBy(e -> e.getEventType().getName()));
+
+            assertEquals(1, byName.get("tck.PersistenceManager").size());
+            List<String> txOperations = byName.get("tck.Transaction").stream()
+                    .map(e -> e.getString("operation")).collect(Collectors.toList());
+            assertEquals(Arrays.asList("begin", "commit", "begin", "rollback", "begin", "commit"), txOperations);
+            assertEquals(1, byName.get("tck.Flush").size());
+            assertEquals(1, byName.get("tck.GetObjectById").size());
+            assertEquals(Person.class.getName(),
+                    byName.get("tck.GetObjectById").get(0).getClass("objectClass").getName());
+            RecordedEvent query = byName.get("tck.Query").get(0);
+            assertEquals("executeList", query.getString("method"));
+            assertTrue(query.getString("filter").contains("this.name == :name"));
+            assertEquals(5, byName.get("tck.Query").size());
+            // Two Points converted when persisting
+            assertTrue(byName.get("tck.Conversion").size() >= 2);
+        }
+        finally
+        {
+            Files.deleteIfExists(file);
+            pmf.close();
+        }
+    }
+
+    @Test
+    public void testSettingsFileEnablesEvents() throws Exception
+    {
+        try (Reader reader = new InputStreamReader(
+                getClass().getClassLoader().getResourceAsStream("tck-persistence.jfc"), StandardCharsets.UTF_8))
+        {
+            Map<String, String> settings = Configuration.create(reader).getSettings();
+            for (String name : EVENT_NAMES)
+            {
+                assertEquals(name, "true", settings.get(name + "#enabled"));
+            }
+            assertEquals("true", settings.get("jdk.ExecutionSample#enabled"));
+        }
+    }
+}
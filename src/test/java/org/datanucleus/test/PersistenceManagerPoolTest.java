@@ -0,0 +1,323 @@
+package org.datanucleus.test;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.junit.*;
+import javax.jdo.*;
+import javax.jdo.listener.*;
+import javax.transaction.Synchronization;
+
+import static org.junit.Assert.*;
+import mydomain.model.*;
+import org.datanucleus.util.NucleusLogger;
+import tck.util.PersistenceManagerPool;
+import tck.util.PersistenceUnits;
+
+public class PersistenceManagerPoolTest
+{
+    private static final int NR_OF_BENCHMARK_THREADS = 500;
+    private static final int NR_OF_BENCHMARK_UNITS = 100;
+
+    private PersistenceManagerFactory pmf;
+
+    @Before
+    public void setUp()
+    {
+        pmf = PersistenceUnits.getPersistenceManagerFactory();
+    }
+
+    @After
+    public void tearDown()
+    {
+        PersistenceManager pm = pmf.getPersistenceManager();
+        try
+        {
+            pm.currentTransaction().begin();
+            pm.newQuery(Person.class).deletePersistentAll();
+            pm.currentTransaction().commit();
+        }
+        finally
+        {
+            if (pm.currentTransaction().isActive())
+            {
+                pm.currentTransaction().rollback();
+            }
+            pm.close();
+        }
+        pmf.close();
+    }
+
+    @Test
+    public void testReuseAndReset() throws Exception
+    {
+        try (PersistenceManagerPool pool = new PersistenceManagerPool(pmf, 2, 1, TimeUnit.MINUTES))
+        {
+            PersistenceManager pm = pool.borrow(1, TimeUnit.SECONDS);
+            pm.currentTransaction().setOptimistic(true);
+            pm.getFetchPlan().setGroup(FetchPlan.ALL);
+            pm.currentTransaction().begin();
+            pm.makePersistent(new Person(1, "First"));
+            pm.currentTransaction().commit();
+            pm.currentTransaction().begin();
+            pm.makePersistent(new Person(2, "Second"));
+            // Released with an active transaction
+            pool.release(pm);
+
+            PersistenceManager reused = pool.borrow(1, TimeUnit.SECONDS);
+            assertSame(pm, reused);
+            assertFalse(reused.currentTransaction().isActive());
+            assertEquals(pmf.getOptimistic(), reused.currentTransaction().getOptimistic());
+            assertEquals(Collections.singleton(FetchPlan.DEFAULT), reused.getFetchPlan().getGroups());
+            assertTrue(reused.getManagedObjects().isEmpty());
+            // The rolled back Person was not stored
+            reused.currentTransaction().begin();
+            assertNull(findPerson(reused, 2));
+            assertNotNull(findPerson(reused, 1));
+            reused.currentTransaction().commit();
+            pool.release(reused);
+
+            assertEquals(1, pool.getNrOfCreated());
+            assertEquals(2, pool.getNrOfBorrows());
+            assertEquals(1, pool.getNrOfIdle());
+        }
+    }
+
+    @Test
+    public void testReleaseCleansBorrowerState() throws Exception
+    {
+        try (PersistenceManagerPool pool = new PersistenceManagerPool(pmf, 1, 1, TimeUnit.MINUTES))
+        {
+            PersistenceManager pm = pool.borrow(1, TimeUnit.SECONDS);
+            pm.currentTransaction().begin();
+            pm.makePersistent(new Person(1, "First"));
+            pm.currentTransaction().commit();
+            Person held = pm.getObjectById(Person.class, 1L);
+            final int[] nrOfStores = new int[1];
+            pm.addInstanceLifecycleListener(new StoreLifecycleListener()
+            {
+                public void preStore(InstanceLifecycleEvent event)
+                {
+                }
+
+                public void postStore(InstanceLifecycleEvent event)
+                {
+                    nrOfStores[0]++;
+                }
+            }, (Class[]) null);
+            pm.putUserObject("key", "value");
+            pm.setUserObject("user");
+            pm.currentTransaction().setSynchronization(new Synchronization()
+            {
+                public void beforeCompletion()
+                {
+                }
+
+                public void afterCompletion(int status)
+                {
+                }
+            });
+            pool.release(pm);
+
+            PersistenceManager reused = pool.borrow(1, TimeUnit.SECONDS);
+            assertSame(pm, reused);
+            assertFalse(JDOHelper.isPersistent(held));
+            assertNull(reused.getUserObject("key"));
+            assertNull(reused.getUserObject());
+            assertNull(reused.currentTransaction().getSynchronization());
+            reused.currentTransaction().begin();
+            Person found = reused.getObjectById(Person.class, 1L);
+            assertNotSame(held, found);
+            found.setName("Changed");
+            reused.currentTransaction().commit();
+            assertEquals(0, nrOfStores[0]);
+            pool.release(reused);
+        }
+    }
+
+    @Test
+    public void testReleaseNotBorrowed() throws Exception
+    {
+        try (PersistenceManagerPool pool = new PersistenceManagerPool(pmf, 1, 1, TimeUnit.MINUTES))
+        {
+            PersistenceManager pm = pool.borrow(1, TimeUnit.SECONDS);
+            pool.release(pm);
+            try
+            {
+                pool.release(pm);
+                fail("Releasing twice");
+            }
+            catch (JDOUserException ue)
+            {
+                // expected
+            }
+            PersistenceManager other = pmf.getPersistenceManager();
+            try
+            {
+                pool.release(other);
+                fail("Releasing a PersistenceManager not borrowed from the pool");
+            }
+            catch (JDOUserException ue)
+            {
+                // expected
+            }
+            finally
+            {
+                other.close();
+            }
+            // Still limited to one
+            pm = pool.borrow(1, TimeUnit.SECONDS);
+            try
+            {
+                pool.borrow(50, TimeUnit.MILLISECONDS);
+                fail("Borrowing more than the maximum number should time out");
+            }
+            catch (JDOUserException ue)
+            {
+                // expected
+            }
+            pool.release(pm);
+        }
+    }
+
+    @Test
+    public void testMaxSize() throws Exception
+    {
+        try (PersistenceManagerPool pool = new PersistenceManagerPool(pmf, 1, 1, TimeUnit.MINUTES))
+        {
+            PersistenceManager pm = pool.borrow(1, TimeUnit.SECONDS);
+            try
+            {
+                pool.borrow(50, TimeUnit.MILLISECONDS);
+                fail("Borrowing more than the maximum number should time out");
+            }
+            catch (JDOUserException ue)
+            {
+                // expected
+            }
+            pool.release(pm);
+            pool.release(pool.borrow(1, TimeUnit.SECONDS));
+            assertEquals(1, pool.getNrOfCreated());
+        }
+    }
+
+    @Test
+    public void testIdleTimeout() throws Exception
+    {
+        try (PersistenceManagerPool pool = new PersistenceManagerPool(pmf, 2, 10, TimeUnit.MILLISECONDS))
+        {
+            PersistenceManager pm = pool.borrow(1, TimeUnit.SECONDS);
+            pool.release(pm);
+            Thread.sleep(50);
+
+            PersistenceManager other = pool.borrow(1, TimeUnit.SECONDS);
+            assertNotSame(pm, other);
+            assertTrue(pm.isClosed());
+            pool.release(other);
+            assertEquals(2, pool.getNrOfCreated());
+            assertEquals(1, pool.getNrOfIdleClosed());
+        }
+    }
+
+    /**
+     * Benchmark comparing opening a PM per unit of work, as MultithreadTest.performTest does, with
+     * borrowing it from a pool, using 500 threads.
+     */
+    // Enable this if using this test
+//    @Test
+    public void testPoolThroughput() throws Exception
+    {
+        long start = System.nanoTime();
+        runThreads(() ->
+        {
+            PersistenceManager pm = pmf.getPersistenceManager();
+            try
+            {
+                unitOfWork(pm);
+            }
+            finally
+            {
+                pm.close();
+            }
+        });
+        long openCloseMillis = (System.nanoTime() - start) / 1_000_000;
+
+        try (PersistenceManagerPool pool = new PersistenceManagerPool(pmf, 50, 1, TimeUnit.MINUTES))
+        {
+            start = System.nanoTime();
+            runThreads(() ->
+            {
+                PersistenceManager pm;
+                try
+                {
+                    pm = pool.borrow(1, TimeUnit.MINUTES);
+                }
+                catch (InterruptedException e)
+                {
+                    throw new JDOFatalException(e.getMessage(), e);
+                }
+                try
+                {
+                    unitOfWork(pm);
+                }
+                finally
+                {
+                    pool.release(pm);
+                }
+            });
+            long poolMillis = (System.nanoTime() - start) / 1_000_000;
+            NucleusLogger.GENERAL.info(">> " + NR_OF_BENCHMARK_THREADS * NR_OF_BENCHMARK_UNITS + " units of work: open/close "
+                    + openCloseMillis + " ms, pool " + poolMillis + " ms, " + pool.getNrOfCreated() + " PMs, average borrow wait "
+                    + pool.getAverageBorrowWaitNanos() / 1000 + " us, max " + pool.getMaxBorrowWaitNanos() / 1000 + " us");
+        }
+    }
+
+    private static void unitOfWork(PersistenceManager pm)
+    {
+        Transaction tx = pm.currentTransaction();
+        try
+        {
+            tx.begin();
+            pm.newQuery(Person.class).executeList();
+            tx.commit();
+        }
+        finally
+        {
+            if (tx.isActive())
+            {
+                tx.rollback();
+            }
+        }
+    }
+
+    private static void runThreads(Runnable unitOfWork) throws InterruptedException
+    {
+        Thread[] threads = new Thread[NR_OF_BENCHMARK_THREADS];
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i] = new Thread(() ->
+            {
+                for (int j = 0; j < NR_OF_BENCHMARK_UNITS; j++)
+                {
+                    unitOfWork.run();
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+    }
+
+    private static Person findPerson(PersistenceManager pm, long id)
+    {
+        try
+        {
+            return pm.getObjectById(Person.class, id);
+        }
+        catch (JDOObjectNotFoundException onfe)
+        {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package org.datanucleus.test;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.*;
+import org.junit.*;
+import javax.jdo.*;
+
+import static org.junit.Assert.*;
+import mydomain.model.*;
+import tck.util.PersistenceEvents;
+import tck.util.PersistenceMetrics;
+import tck.util.PersistenceUnits;
+
+public class PersistenceMetricsTest
+{
+    private PersistenceMetrics metrics;
+    private PersistenceManagerFactory pmf;
+
+    @Before
+    public void setUp()
+    {
+        metrics = new PersistenceMetrics(PersistenceUnits.getName());
+        pmf = PersistenceEvents.wrap(PersistenceUnits.getPersistenceManagerFactory(), metrics);
+    }
+
+    @After
+    public void tearDown()
+    {
+        PersistenceManager pm = pmf.getPersistenceManager();
+        try
+        {
+            pm.currentTransaction().begin();
+            pm.newQuery(Person.class).deletePersistentAll();
+            pm.currentTransaction().commit();
+        }
+        finally
+        {
+            if (pm.currentTransaction().isActive())
+            {
+                pm.currentTransaction().rollback();
+            }
+            pm.close();
+        }
+        pmf.close();
+    }
+
+    @Test
+    public void testSnapshot()
+    {
+        PersistenceManager pm = pmf.getPersistenceManager();
+        try
+        {
+            pm.currentTransaction().begin();
+            pm.makePersistent(new Person(1, "First"));
+            pm.makePersistent(new Person(2, "Second"));
+            pm.currentTransaction().commit();
+
+            pm.currentTransaction().begin();
+            assertEquals("First", pm.getObjectById(Person.class, 1L).getName());
+            pm.currentTransaction().commit();
+        }
+        finally
+        {
+            pm.close();
+        }
+
+        pm = pmf.getPersistenceManager();
+        try
+        {
+            assertEquals(1, metrics.snapshot().getNrOfActivePersistenceManagers());
+            pm.currentTransaction().begin();
+            // Put into the L2 cache by the first commit
+            Person second = pm.getObjectById(Person.class, 2L);
+            for (int i = 0; i < 2; i++)
+            {
+                Query<Person> query = pm.newQuery(Person.class, "this.name == :name");
+                assertEquals(1, query.setParameters("Second").executeList().size());
+            }
+            second.setName("Modified");
+            pm.currentTransaction().rollback();
+
+            pmf.getDataStoreCache().evictAll();
+            pm.currentTransaction().begin();
+            pm.getObjectById(Person.class, 1L);
+            pm.currentTransaction().commit();
+        }
+        finally
+        {
+            if (pm.currentTransaction().isActive())
+            {
+                pm.currentTransaction().rollback();
+            }
+            pm.close();
+        }
+
+        PersistenceMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(0, snapshot.getNrOfActivePersistenceManagers());
+        assertEquals(2, snapshot.getNrOfPersistenceManagers());
+        assertEquals(3, snapshot.getNrOfCommits());
+        assertEquals(1, snapshot.getNrOfRollbacks());
+        assertEquals(4, Arrays.stream(snapshot.getTransactionLatencyHistogram()).sum());
+        assertTrue(snapshot.getTransactionLatencyPercentileMicros(99) > 0);
+        assertTrue(snapshot.getCommitsPerSecond() > 0);
+        assertEquals(2, snapshot.getNrOfObjectsFlushed());
+
+        assertEquals(1, snapshot.getNrOfLevel1Hits());
+        assertEquals(1, snapshot.getNrOfLevel2Hits());
+        assertEquals(1, snapshot.getNrOfCacheMisses());
+        assertEquals(1.0 / 3, snapshot.getLevel1HitRate(), 1e-9);
+        assertEquals(0.5, snapshot.getLevel2HitRate(), 1e-9);
+
+        String queryKey = null;
+        for (String query : snapshot.getQueryStatistics().keySet())
+        {
+            if (query.contains("this.name == :name"))
+            {
+                queryKey = query;
+            }
+        }
+        assertNotNull(queryKey);
+        PersistenceMetrics.QueryStatistics statistics = snapshot.getQueryStatistics().get(queryKey);
+        assertEquals(2, statistics.getNrOfExecutions());
+        assertTrue(statistics.getAverageMicros() > 0);
+        assertEquals(2, Arrays.stream(statistics.getLatencyHistogram()).sum());
+    }
+
+    @Test
+    public void testLevel1AfterEvictAll()
+    {
+        PersistenceManager pm = pmf.getPersistenceManager();
+        try
+        {
+            pm.currentTransaction().begin();
+            pm.makePersistent(new Person(1, "First"));
+            pm.makePersistent(new Person(2, "Second"));
+            pm.currentTransaction().commit();
+            pmf.getDataStoreCache().evictAll();
+
+            pm.currentTransaction().begin();
+            pm.getObjectById(Person.class, 1L);
+            pm.getObjectById(Person.class, 2L);
+            pm.evictAll();
+            pmf.getDataStoreCache().evictAll();
+            pm.getObjectById(Person.class, 1L);
+            pm.getObjectById(Person.class, 2L);
+            pm.currentTransaction().commit();
+        }
+        finally
+        {
+            if (pm.currentTransaction().isActive())
+            {
+                pm.currentTransaction().rollback();
+            }
+            pm.close();
+        }
+
+        PersistenceMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(2, snapshot.getNrOfLevel1Hits());
+        assertEquals(2, snapshot.getNrOfCacheMisses());
+    }
+
+    @Test
+    public void testMXBean() throws Exception
+    {
+        ObjectName name = metrics.register();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertTrue(server.isRegistered(name));
+
+        PersistenceManager pm = pmf.getPersistenceManager();
+        try
+        {
+            pm.currentTransaction().begin();
+            pm.makePersistent(new Person(1, "First"));
+            pm.currentTransaction().commit();
+            pm.newQuery(Person.class).executeList();
+            assertEquals(1L, server.getAttribute(name, "NrOfActivePersistenceManagers"));
+        }
+        finally
+        {
+            pm.close();
+        }
+
+        assertEquals(1L, server.getAttribute(name, "NrOfCommits"));
+        assertEquals(1.0, (Double) server.getAttribute(name, "ObjectsFlushedPerCommit"), 1e-9);
+        assertTrue((Long) server.getAttribute(name, "TransactionLatencyP99Micros") > 0);
+        CompositeData snapshot = (CompositeData) server.getAttribute(name, "Snapshot");
+        assertEquals(1L, snapshot.get("nrOfCommits"));
+        assertEquals(0L, snapshot.get("nrOfActivePersistenceManagers"));
+        TabularData queries = (TabularData) server.getAttribute(name, "QueryStatistics");
+        assertEquals(1, queries.size());
+
+        pmf.close();
+        assertFalse(server.isRegistered(name));
+        pmf = PersistenceEvents.wrap(PersistenceUnits.getPersistenceManagerFactory(), metrics);
+    }
+
+    @Test
+    public void testPersistenceUnitProperty() throws Exception
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName pattern = new ObjectName("tck:type=PersistenceMetrics,*");
+        int registered = server.queryNames(pattern, null).size();
+        String previous = System.setProperty(PersistenceUnits.PROPERTY_METRICS, "true");
+        PersistenceManagerFactory instrumented;
+        try
+        {
+            instrumented = PersistenceUnits.getPersistenceManagerFactory();
+        }
+        finally
+        {
+            if (previous == null)
+            {
+                System.clearProperty(PersistenceUnits.PROPERTY_METRICS);
+            }
+            else
+            {
+                System.setProperty(PersistenceUnits.PROPERTY_METRICS, previous);
+            }
+        }
+        assertEquals(registered + 1, server.queryNames(pattern, null).size());
+        instrumented.close();
+        assertEquals(registered, server.queryNames(pattern, null).size());
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.datanucleus.test;
+
+import org.datanucleus.util.NucleusLogger;
+import org.junit.Test;
+import tck.model.Point;
+import tck.pc.PCRectAnnotated;
+import tck.util.PersistenceUnits;
+
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import javax.jdo.Query;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the persistence units of META-INF/persistence.xml, see PersistenceUnits.
+ */
+public class PersistenceUnitProfileTest {
+
+    private static final int NR_OF_BENCHMARK_TRANSACTIONS = 2_000;
+    private static final int NR_OF_BENCHMARK_OBJECTS_PER_TRANSACTION = 10;
+    private static final int NR_OF_BENCHMARK_QUERIES = 5_000;
+
+    /**
+     * Test method storing and reading a rect with every persistence unit.
+     */
+    @Test
+    public void testAllUnitsStart() {
+        for (String unit : PersistenceUnits.getAll()) {
+            // The database of this fork, other forks may use the files of the unit concurrently
+            PersistenceManagerFactory pmf = PersistenceUnits.getPersistenceManagerFactory(unit, Collections.emptyMap());
+            try {
+                PersistenceManager pm = pmf.getPersistenceManager();
+                try {
+                    pm.currentTransaction().begin();
+                    PCRectAnnotated rect = new PCRectAnnotated();
+                    rect.setUpperLeft(new Point(1, 10));
+                    rect.setLowerRight(new Point(10, 1));
+                    pm.makePersistent(rect);
+                    pm.currentTransaction().commit();
+
+                    pm.currentTransaction().begin();
+                    assertEquals(unit, 1, queryByUpperLeft(pm, new Point(1, 10)));
+                    pm.newQuery(PCRectAnnotated.class).deletePersistentAll();
+                    pm.currentTransaction().commit();
+                } finally {
+                    if (pm.currentTransaction().isActive()) {
+                        pm.currentTransaction().rollback();
+                    }
+                    pm.close();
+                }
+            } finally {
+                pmf.close();
+            }
+        }
+    }
+
+    /**
+     * Test method checking the database names of the test forks.
+     */
+    @Test
+    public void testForkConnectionURL() {
+        String fork = System.getProperty(PersistenceUnits.PROPERTY_FORK);
+        try {
+            System.clearProperty(PersistenceUnits.PROPERTY_FORK);
+            assertEquals("jdbc:h2:mem:nucleus", PersistenceUnits.getConnectionURL(PersistenceUnits.MEMORY));
+            System.setProperty(PersistenceUnits.PROPERTY_FORK, "3");
+            assertEquals("jdbc:h2:mem:nucleus-fork3", PersistenceUnits.getConnectionURL(PersistenceUnits.MEMORY));
+            assertEquals("jdbc:h2:file:./target/h2/nucleus-fork3;CACHE_SIZE=65536",
+                    PersistenceUnits.getConnectionURL(PersistenceUnits.FILE));
+            assertNull(PersistenceUnits.getConnectionURL("Unknown"));
+        } finally {
+            if (fork == null) {
+                System.clearProperty(PersistenceUnits.PROPERTY_FORK);
+            } else {
+                System.setProperty(PersistenceUnits.PROPERTY_FORK, fork);
+            }
+        }
+    }
+
+    /**
+     * Benchmark comparing the persistence units with small persisting transactions and named
+     * queries, reporting throughput and latency percentiles.
+     */
+    // Enable this if using this test
+//    @Test
+    public void testCompareUnits() {
+        StringBuilder report = new StringBuilder(">> Persistence unit comparison");
+        for (String unit : PersistenceUnits.getAll()) {
+            PersistenceManagerFactory pmf = PersistenceUnits.getPersistenceManagerFactory(unit, Collections.emptyMap());
+            try {
+                PersistenceManager pm = pmf.getPersistenceManager();
+                long[] persistNanos = new long[NR_OF_BENCHMARK_TRANSACTIONS];
+                long start = System.nanoTime();
+                for (int i = 0; i < NR_OF_BENCHMARK_TRANSACTIONS; i++) {
+                    long txStart = System.nanoTime();
+                    pm.currentTransaction().begin();
+                    for (int j = 0; j < NR_OF_BENCHMARK_OBJECTS_PER_TRANSACTION; j++) {
+                        int n = i * NR_OF_BENCHMARK_OBJECTS_PER_TRANSACTION + j;
+                        PCRectAnnotated rect = new PCRectAnnotated();
+                        rect.setUpperLeft(new Point(n, n + 10));
+                        rect.setLowerRight(new Point(n + 10, n));
+                        pm.makePersistent(rect);
+                    }
+                    pm.currentTransaction().commit();
+                    persistNanos[i] = System.nanoTime() - txStart;
+                    if ((i + 1) % 100 == 0) {
+                        pm.evictAll();
+                    }
+                }
+                long persistMillis = (System.nanoTime() - start) / 1_000_000;
+
+                long[] queryNanos = new long[NR_OF_BENCHMARK_QUERIES];
+                int nrOfObjects = NR_OF_BENCHMARK_TRANSACTIONS * NR_OF_BENCHMARK_OBJECTS_PER_TRANSACTION;
+                start = System.nanoTime();
+                pm.currentTransaction().begin();
+                for (int i = 0; i < NR_OF_BENCHMARK_QUERIES; i++) {
+                    int n = (int) ((i * 7919L) % nrOfObjects);
+                    long queryStart = System.nanoTime();
+                    assertEquals(1, queryByUpperLeft(pm, new Point(n, n + 10)));
+                    queryNanos[i] = System.nanoTime() - queryStart;
+                }
+                pm.currentTransaction().commit();
+                long queryMillis = (System.nanoTime() - start) / 1_000_000;
+
+                pm.currentTransaction().begin();
+                pm.newQuery(PCRectAnnotated.class).deletePersistentAll();
+                pm.currentTransaction().commit();
+                pm.close();
+
+                report.append("\n   ").append(unit)
+                        .append(": persist ").append(nrOfObjects * 1000L / Math.max(1, persistMillis))
+                        .append(" objects/s, commit ").append(percentiles(persistNanos))
+                        .append("; query ").append(NR_OF_BENCHMARK_QUERIES * 1000L / Math.max(1, queryMillis))
+                        .append(" queries/s, ").append(percentiles(queryNanos));
+            } finally {
+                pmf.close();
+            }
+        }
+        NucleusLogger.GENERAL.info(report);
+    }
+
+    private static long queryByUpperLeft(PersistenceManager pm, Point point) {
+        try (Query<PCRectAnnotated> q =
+                     pm.newNamedQuery(PCRectAnnotated.class, "PCRectAnnotated.byUpperLeft")) {
+            q.setParameters(point);
+            return q.executeList().size();
+        } catch (Exception ex) {
+            throw ex instanceof RuntimeException ? (RuntimeException) ex : new IllegalStateException(ex);
+        }
+    }
+
+    private static String percentiles(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return "p50 " + sorted[sorted.length / 2] / 1000 + " us, p99 "
+                + sorted[(int) (sorted.length * 0.99)] / 1000 + " us, max "
+                + sorted[sorted.length - 1] / 1000 + " us";
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.datanucleus.test;
+
+import org.datanucleus.util.NucleusLogger;
+import org.junit.Test;
+import tck.model.Point;
+import tck.pc.PCRectAnnotated;
+import tck.util.CommitNotifier;
+import tck.util.PointConversionCounter;
+import tck.util.QueryResultCache;
+
+import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for caching the results of queries with a Point parameter in QueryResultCache.
+ */
+public class QueryResultCacheTest extends AnnotationTestHelper {
+
+    private static final String FILTER = "this.upperLeft == :point";
+    private static final int NR_OF_BENCHMARK_RUNS = 10_000;
+
+    /**
+     * Test method running the same query twice. The second run should neither query the datastore
+     * nor convert the Point fields of the result.
+     */
+    @Test
+    public void testCacheHit() {
+        createIPCRectInstances(PCRectAnnotated.class, 5);
+        QueryResultCache cache = newCache(10);
+        PersistenceManager pm = getPM();
+
+        pm.currentTransaction().begin();
+        List<PCRectAnnotated> res =
+                cache.executeList(pm, PCRectAnnotated.class, FILTER, new Point(UL_X + 1, UL_Y + 1));
+        assertEquals(1, res.size());
+        pm.currentTransaction().commit();
+
+        int nrOfAttrCalls = PointConversionCounter.getNrOfConvertToAttributeCalls();
+        int nrOfDatastoreCalls = PointConversionCounter.getNrOfConvertToDatastoreCalls();
+        pm.currentTransaction().begin();
+        res = cache.executeList(pm, PCRectAnnotated.class, FILTER, new Point(UL_X + 1, UL_Y + 1));
+        assertEquals(1, res.size());
+        assertEquals(UL_X + 1, res.get(0).getUpperLeft().getX());
+        pm.currentTransaction().commit();
+
+        assertEquals(0, PointConversionCounter.getNrOfConvertToAttributeCalls() - nrOfAttrCalls);
+        // Nor is the parameter converted to build the key
+        assertEquals(0, PointConversionCounter.getNrOfConvertToDatastoreCalls() - nrOfDatastoreCalls);
+        assertEquals(1, cache.getNrOfHits());
+        assertEquals(1, cache.getNrOfMisses());
+    }
+
+    /**
+     * Test method checking that committing a change to the candidate class drops the cached result,
+     * while a rolled back change does not.
+     */
+    @Test
+    public void testInvalidationOnCommit() {
+        createIPCRectInstances(PCRectAnnotated.class, 5);
+        QueryResultCache cache = newCache(10);
+        PersistenceManager pm = getPM();
+        Point point = new Point(UL_X + 1, UL_Y + 1);
+
+        pm.currentTransaction().begin();
+        PCRectAnnotated rect = cache.executeList(pm, PCRectAnnotated.class, FILTER, point).get(0);
+        pm.currentTransaction().commit();
+
+        pm.currentTransaction().begin();
+        rect.setUpperLeft(new Point(UL_X + 2, UL_Y + 2));
+        pm.currentTransaction().rollback();
+        assertEquals(1, cache.size());
+
+        pm.currentTransaction().begin();
+        rect.setUpperLeft(new Point(UL_X + 100, UL_Y + 100));
+        // Uncommitted changes of the candidate class bypass the cache
+        assertEquals(0, cache.executeList(pm, PCRectAnnotated.class, FILTER, point).size());
+        assertEquals(1, cache.size());
+        pm.currentTransaction().commit();
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getNrOfInvalidations());
+
+        pm.currentTransaction().begin();
+        assertEquals(0, cache.executeList(pm, PCRectAnnotated.class, FILTER, point).size());
+        pm.currentTransaction().commit();
+    }
+
+    /**
+     * Test method checking that the least recently used result is dropped when the cache is full.
+     */
+    @Test
+    public void testLruEviction() {
+        createIPCRectInstances(PCRectAnnotated.class, 5);
+        QueryResultCache cache = newCache(2);
+        PersistenceManager pm = getPM();
+
+        pm.currentTransaction().begin();
+        for (int i = 1; i <= 3; i++) {
+            cache.executeList(pm, PCRectAnnotated.class, FILTER, new Point(UL_X + i, UL_Y + i));
+        }
+        assertEquals(2, cache.size());
+        cache.executeList(pm, PCRectAnnotated.class, FILTER, new Point(UL_X + 3, UL_Y + 3));
+        assertEquals(1, cache.getNrOfHits());
+        cache.executeList(pm, PCRectAnnotated.class, FILTER, new Point(UL_X + 1, UL_Y + 1));
+        assertEquals(1, cache.getNrOfHits());
+        pm.currentTransaction().commit();
+    }
+
+    /**
+     * Benchmark comparing the latency of a plain query with a cache hit.
+     */
+    // Enable this if using this test
+//    @Test
+    public void testHitLatency() {
+        createIPCRectInstances(PCRectAnnotated.class, 5);
+        QueryResultCache cache = newCache(10);
+        PersistenceManager pm = getPM();
+        Point point = new Point(UL_X + 1, UL_Y + 1);
+
+        pm.currentTransaction().begin();
+        long start = System.nanoTime();
+        for (int i = 0; i < NR_OF_BENCHMARK_RUNS; i++) {
+            try (Query<PCRectAnnotated> q = pm.newQuery(PCRectAnnotated.class, FILTER)) {
+                q.setParameters(point);
+                q.executeList();
+            } catch (Exception ex) {
+                fail(ex.getMessage());
+            }
+        }
+        long queryNanos = (System.nanoTime() - start) / NR_OF_BENCHMARK_RUNS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < NR_OF_BENCHMARK_RUNS; i++) {
+            cache.executeList(pm, PCRectAnnotated.class, FILTER, point);
+        }
+        long cacheNanos = (System.nanoTime() - start) / NR_OF_BENCHMARK_RUNS;
+        pm.currentTransaction().commit();
+        NucleusLogger.GENERAL.info(">> Query with Point parameter: " + queryNanos + " ns, cache hit "
+                + cacheNanos + " ns (" + cache.getNrOfHits() + " hits)");
+    }
+
+    private QueryResultCache newCache(int maxEntries) {
+        CommitNotifier notifier = new CommitNotifier();
+        notifier.attach(getPM());
+        QueryResultCache cache = new QueryResultCache(notifier, maxEntries, 1, TimeUnit.MINUTES);
+        cache.registerKeyFunction(Point.class, p -> new Point(p.x, p.y));
+        return cache;
+    }
+}
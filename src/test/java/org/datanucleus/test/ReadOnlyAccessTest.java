@@ -0,0 +1,204 @@
+package org.datanucleus.test;
+
+import java.util.*;
+import java.util.function.Consumer;
+import org.junit.*;
+import javax.jdo.*;
+
+import static org.junit.Assert.*;
+import mydomain.model.*;
+import org.datanucleus.util.NucleusLogger;
+import tck.util.MeteredConnectionPool;
+import tck.util.PersistenceUnits;
+
+public class ReadOnlyAccessTest
+{
+    private static final int NR_OF_PERSONS = 10;
+    private static final int NR_OF_BENCHMARK_THREADS = 8;
+    private static final int NR_OF_BENCHMARK_READS = 20_000;
+
+    private PersistenceManagerFactory pmf;
+    private PersistenceManagerFactory readOnlyPmf;
+
+    @Before
+    public void setUp()
+    {
+        pmf = PersistenceUnits.getPersistenceManagerFactory();
+        PersistenceManager pm = pmf.getPersistenceManager();
+        try
+        {
+            pm.currentTransaction().begin();
+            for (int i = 0; i < NR_OF_PERSONS; i++)
+            {
+                pm.makePersistent(new Person(i, "Person " + i));
+            }
+            pm.currentTransaction().commit();
+        }
+        finally
+        {
+            pm.close();
+        }
+        readOnlyPmf = PersistenceUnits.getReadOnlyPersistenceManagerFactory();
+    }
+
+    @After
+    public void tearDown()
+    {
+        readOnlyPmf.close();
+        PersistenceManager pm = pmf.getPersistenceManager();
+        try
+        {
+            pm.currentTransaction().begin();
+            pm.newQuery(Person.class).deletePersistentAll();
+            pm.currentTransaction().commit();
+        }
+        finally
+        {
+            if (pm.currentTransaction().isActive())
+            {
+                pm.currentTransaction().rollback();
+            }
+            pm.close();
+        }
+        pmf.close();
+    }
+
+    @Test
+    public void testNontransactionalRead()
+    {
+        assertTrue(readOnlyPmf.getReadOnly());
+        PersistenceManager pm = readOnlyPmf.getPersistenceManager();
+        try
+        {
+            assertEquals("Person 3", pm.getObjectById(Person.class, 3L).getName());
+            List<Person> persons = (List<Person>) pm.newNamedQuery(Person.class, "Person.byName").execute("Person 5");
+            assertEquals(1, persons.size());
+            assertEquals(5L, (long) persons.get(0).getId());
+            assertFalse(pm.currentTransaction().isActive());
+        }
+        finally
+        {
+            pm.close();
+        }
+
+        MeteredConnectionPool pool = MeteredConnectionPool.forUrl(readOnlyPmf.getConnectionURL(), true);
+        assertNotNull(pool);
+        assertTrue(pool.isReadOnly());
+        assertTrue(pool.getNrOfAcquired() > 0);
+    }
+
+    @Test
+    public void testWritesFailFast()
+    {
+        PersistenceManager pm = readOnlyPmf.getPersistenceManager();
+        try
+        {
+            // In transactions, so that NontransactionalWrite=false does not reject them already
+            assertWriteRejected(pm, "Persisting", p -> p.makePersistent(new Person(100, "New")));
+            assertWriteRejected(pm, "Updating", p -> p.getObjectById(Person.class, 1L).setName("Changed"));
+            assertWriteRejected(pm, "Deleting", p -> p.deletePersistent(p.getObjectById(Person.class, 1L)));
+        }
+        finally
+        {
+            pm.close();
+        }
+
+        pm = pmf.getPersistenceManager();
+        try
+        {
+            assertEquals("Person 1", pm.getObjectById(Person.class, 1L).getName());
+            assertEquals(NR_OF_PERSONS, ((Collection<?>) pm.newQuery(Person.class).execute()).size());
+        }
+        finally
+        {
+            pm.close();
+        }
+    }
+
+    /**
+     * Runs a write in a transaction, and checks that the write or the commit is rejected because
+     * the datastore is read-only.
+     */
+    private static void assertWriteRejected(PersistenceManager pm, String what, Consumer<PersistenceManager> write)
+    {
+        Transaction tx = pm.currentTransaction();
+        try
+        {
+            tx.begin();
+            write.accept(pm);
+            tx.commit();
+            fail(what + " with a read-only PersistenceManager");
+        }
+        catch (JDOReadOnlyException e)
+        {
+            // expected
+        }
+        finally
+        {
+            if (tx.isActive())
+            {
+                tx.rollback();
+            }
+        }
+    }
+
+    /**
+     * Benchmark reading Persons by id and by name from several threads, in transactions of the
+     * read-write unit compared with non-transactional reads of the read-only unit.
+     */
+    // Enable this if using this test
+//    @Test
+    public void testReadThroughput() throws Exception
+    {
+        long transactional = measureReads(pmf, true);
+        long readOnly = measureReads(readOnlyPmf, false);
+        NucleusLogger.GENERAL.info(">> Reads/s: transactional " + transactional + ", read-only " + readOnly);
+    }
+
+    private long measureReads(PersistenceManagerFactory factory, boolean transactional) throws InterruptedException
+    {
+        long start = System.nanoTime();
+        Thread[] threads = new Thread[NR_OF_BENCHMARK_THREADS];
+        for (int i = 0; i < threads.length; i++)
+        {
+            final int threadNo = i;
+            threads[i] = new Thread(() ->
+            {
+                Random random = new Random(threadNo);
+                for (int j = 0; j < NR_OF_BENCHMARK_READS; j++)
+                {
+                    PersistenceManager pm = factory.getPersistenceManager();
+                    try
+                    {
+                        if (transactional)
+                        {
+                            pm.currentTransaction().begin();
+                        }
+                        long id = random.nextInt(NR_OF_PERSONS);
+                        pm.getObjectById(Person.class, id).getName();
+                        pm.newNamedQuery(Person.class, "Person.byName").execute("Person " + id);
+                        if (transactional)
+                        {
+                            pm.currentTransaction().commit();
+                        }
+                    }
+                    finally
+                    {
+                        if (pm.currentTransaction().isActive())
+                        {
+                            pm.currentTransaction().rollback();
+                        }
+                        pm.close();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+        long millis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+        return NR_OF_BENCHMARK_THREADS * NR_OF_BENCHMARK_READS * 1000L / millis;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.datanucleus.test;
+
+import org.datanucleus.util.NucleusLogger;
+import org.junit.Test;
+import tck.model.Point;
+import tck.pc.IPCRect;
+import tck.pc.PCRectAnnotated;
+import tck.pc.PCRectEmbedded;
+import tck.util.CommitNotifier;
+import tck.util.QueryStreams;
+import tck.util.RectColumnSnapshot;
+
+import javax.jdo.PersistenceManager;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the columnar snapshot of rect classes.
+ */
+public class RectColumnSnapshotTest extends AnnotationTestHelper {
+
+    private static final int NR_OF_BENCHMARK_OBJECTS = 1_000_000;
+
+    /**
+     * Test method running the aggregate scans over a loaded snapshot.
+     */
+    @Test
+    public void testLoadAndScan() {
+        createIPCRectInstances(PCRectAnnotated.class, 5);
+        PersistenceManager pm = getPM();
+        RectColumnSnapshot<PCRectAnnotated> snapshot =
+                new RectColumnSnapshot<>(pm.getPersistenceManagerFactory(), PCRectAnnotated.class, new CommitNotifier());
+        assertEquals(5, snapshot.load());
+        assertEquals(5, snapshot.size());
+        assertArrayEquals(new int[] {UL_X, LR_Y, LR_X + 4, UL_Y + 4}, snapshot.boundingBox());
+
+        // Every rect is 9 x 9
+        assertArrayEquals(new long[] {0, 0, 5, 0}, snapshot.areaHistogram(40, 4));
+        assertEquals(1, snapshot.countOverlaps(0, 0, 1, 1));
+        assertEquals(5, snapshot.countOverlaps(5, 5, 5, 5));
+        assertEquals(0, snapshot.countOverlaps(100, 100, 200, 200));
+    }
+
+    /**
+     * Test method checking that null y coordinates are kept apart from 0.
+     */
+    @Test
+    public void testNullY() {
+        PersistenceManager pm = getPM();
+        pm.currentTransaction().begin();
+        PCRectEmbedded rect = new PCRectEmbedded();
+        rect.setUpperLeft(new Point(UL_X, UL_Y));
+        rect.setLowerRight(new Point(LR_X, null));
+        pm.makePersistent(rect);
+        pm.currentTransaction().commit();
+
+        RectColumnSnapshot<PCRectEmbedded> snapshot =
+                new RectColumnSnapshot<>(pm.getPersistenceManagerFactory(), PCRectEmbedded.class, new CommitNotifier());
+        assertEquals(1, snapshot.load());
+        RectColumnSnapshot<PCRectEmbedded>.Columns c = snapshot.columns();
+        List<Integer> ys = snapshot.scan(ArrayList::new,
+                (list, row) -> {
+                    list.add(c.getUpperLeftY(row));
+                    list.add(c.getLowerRightY(row));
+                    list.add(c.getMinY(row));
+                },
+                List::addAll);
+        assertEquals(Integer.valueOf(UL_Y), ys.get(0));
+        assertNull(ys.get(1));
+        // Null is counted as 0 by the scans
+        assertEquals(Integer.valueOf(0), ys.get(2));
+    }
+
+    /**
+     * Test method checking that the snapshot follows committed updates and deletes.
+     */
+    @Test
+    public void testFollowsCommits() {
+        Object oid = createIPCRectInstances(PCRectAnnotated.class, 5);
+        PersistenceManager pm = getPM();
+        CommitNotifier notifier = new CommitNotifier();
+        notifier.attach(pm);
+        RectColumnSnapshot<PCRectAnnotated> snapshot =
+                new RectColumnSnapshot<>(pm.getPersistenceManagerFactory(), PCRectAnnotated.class, notifier);
+        snapshot.load();
+
+        pm.currentTransaction().begin();
+        IPCRect rect = (IPCRect) pm.getObjectById(oid);
+        rect.setUpperLeft(new Point(100, 110));
+        rect.setLowerRight(new Point(110, 100));
+        PCRectAnnotated added = new PCRectAnnotated();
+        added.setUpperLeft(new Point(-10, 0));
+        added.setLowerRight(new Point(0, -10));
+        pm.makePersistent(added);
+        pm.currentTransaction().commit();
+        assertEquals(6, snapshot.size());
+        assertArrayEquals(new int[] {-10, -10, 110, 110}, snapshot.boundingBox());
+        assertEquals(0, snapshot.countOverlaps(1, 1, 1, 1));
+
+        pm.currentTransaction().begin();
+        pm.deletePersistent(pm.getObjectById(oid));
+        pm.deletePersistent(added);
+        pm.currentTransaction().commit();
+        assertEquals(4, snapshot.size());
+        assertArrayEquals(new int[] {UL_X + 1, LR_Y + 1, LR_X + 4, UL_Y + 4}, snapshot.boundingBox());
+    }
+
+    /**
+     * Test method checking that the rows stay correct once the rows of deleted rects are compacted.
+     */
+    @Test
+    public void testCompactsDeletedRows() {
+        createIPCRectInstances(PCRectAnnotated.class, 5);
+        PersistenceManager pm = getPM();
+        CommitNotifier notifier = new CommitNotifier();
+        notifier.attach(pm);
+        RectColumnSnapshot<PCRectAnnotated> snapshot =
+                new RectColumnSnapshot<>(pm.getPersistenceManagerFactory(), PCRectAnnotated.class, notifier);
+        snapshot.load();
+
+        // More than a quarter of the rows dead, the other rows are moved
+        pm.currentTransaction().begin();
+        Set<Object> remaining = new HashSet<>();
+        PCRectAnnotated last = null;
+        for (PCRectAnnotated rect : pm.newQuery(PCRectAnnotated.class).executeList()) {
+            if (rect.getUpperLeft().getX() < UL_X + 3) {
+                pm.deletePersistent(rect);
+            } else {
+                remaining.add(pm.getObjectId(rect));
+                if (rect.getUpperLeft().getX() == UL_X + 4) {
+                    last = rect;
+                }
+            }
+        }
+        pm.currentTransaction().commit();
+        assertEquals(2, snapshot.size());
+        assertArrayEquals(new int[] {UL_X + 3, LR_Y + 3, LR_X + 4, UL_Y + 4}, snapshot.boundingBox());
+
+        pm.currentTransaction().begin();
+        last.setUpperLeft(new Point(100, 110));
+        last.setLowerRight(new Point(110, 100));
+        pm.currentTransaction().commit();
+        RectColumnSnapshot<PCRectAnnotated>.Columns c = snapshot.columns();
+        Set<Object> oids = snapshot.scan(HashSet::new, (set, row) -> set.add(c.getObjectId(row)), Set::addAll);
+        assertEquals(remaining, oids);
+        assertArrayEquals(new int[] {UL_X + 3, LR_Y + 3, 110, 110}, snapshot.boundingBox());
+    }
+
+    /**
+     * Benchmark comparing a bounding box and overlap count over the snapshot with streaming all
+     * rects.
+     */
+    // Enable this if using this test
+//    @Test
+    public void testSnapshotVersusStream() {
+        PersistenceManager pm = getPM();
+        pm.currentTransaction().begin();
+        for (int i = 0; i < NR_OF_BENCHMARK_OBJECTS; i++) {
+            PCRectAnnotated rect = new PCRectAnnotated();
+            rect.setUpperLeft(new Point(i, i + 10));
+            rect.setLowerRight(new Point(i + 10, i));
+            pm.makePersistent(rect);
+            if ((i + 1) % 10_000 == 0) {
+                pm.currentTransaction().commit();
+                pm.evictAll();
+                pm.currentTransaction().begin();
+            }
+        }
+        pm.currentTransaction().commit();
+
+        RectColumnSnapshot<PCRectAnnotated> snapshot =
+                new RectColumnSnapshot<>(pm.getPersistenceManagerFactory(), PCRectAnnotated.class, new CommitNotifier());
+        long start = System.nanoTime();
+        snapshot.load();
+        long loadMillis = (System.nanoTime() - start) / 1_000_000;
+
+        start = System.nanoTime();
+        int[] box = snapshot.boundingBox();
+        long snapshotCount = snapshot.countOverlaps(0, 0, 1000, 1000);
+        long snapshotMicros = (System.nanoTime() - start) / 1000;
+
+        start = System.nanoTime();
+        long streamCount;
+        pm.currentTransaction().begin();
+        try (Stream<PCRectAnnotated> rects = QueryStreams.stream(pm, PCRectAnnotated.class)) {
+            streamCount = rects.filter(r -> r.getUpperLeft().x <= 1000 && r.getLowerRight().y <= 1000).count();
+        }
+        pm.currentTransaction().commit();
+        long streamMicros = (System.nanoTime() - start) / 1000;
+        assertEquals(streamCount, snapshotCount);
+        assertEquals(NR_OF_BENCHMARK_OBJECTS + 9, box[2]);
+        NucleusLogger.GENERAL.info(">> Scan over " + NR_OF_BENCHMARK_OBJECTS + " rects: snapshot "
+                + snapshotMicros + " us (loaded in " + loadMillis + " ms), stream " + streamMicros + " us");
+    }
+}
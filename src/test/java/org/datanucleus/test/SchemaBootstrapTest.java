@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.datanucleus.test;
+
+import mydomain.model.Person;
+import org.datanucleus.util.NucleusLogger;
+import org.junit.After;
+import org.junit.Test;
+import tck.pc.EmbeddedPoint;
+import tck.pc.PCRect;
+import tck.pc.PCRectAnnotated;
+import tck.pc.PCRectEmbedded;
+import tck.pc.PCRectPointTypeAnnotated;
+import tck.util.PersistenceUnits;
+import tck.util.SchemaBootstrap;
+
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for starting a persistence unit with SchemaBootstrap instead of drop-and-create.
+ */
+public class SchemaBootstrapTest {
+
+    private static final String URL = "jdbc:h2:mem:schemaBootstrap;DB_CLOSE_DELAY=-1";
+    private static final int NR_OF_BENCHMARK_STARTS = 10;
+
+    private static final Class<?>[] CLASSES = {Person.class, PCRect.class, PCRectAnnotated.class,
+            PCRectPointTypeAnnotated.class, PCRectEmbedded.class, EmbeddedPoint.class};
+
+    @After
+    public void tearDown() throws SQLException {
+        try (Connection connection = DriverManager.getConnection(URL, "sa", "");
+             Statement st = connection.createStatement()) {
+            st.execute("DROP ALL OBJECTS");
+        }
+    }
+
+    /**
+     * Test method checking that the schema and its data are kept when the mapping is unchanged,
+     * and that only missing tables are added when it changed.
+     */
+    @Test
+    public void testReuseAndAdd() {
+        Map<String, String> overrides = Collections.singletonMap("javax.jdo.option.ConnectionURL", URL);
+
+        SchemaBootstrap bootstrap = new SchemaBootstrap(PersistenceUnits.MEMORY, overrides, Person.class);
+        PersistenceManagerFactory pmf = bootstrap.open();
+        assertFalse(bootstrap.isSchemaReused());
+        String checksum = bootstrap.getChecksum();
+        try {
+            PersistenceManager pm = pmf.getPersistenceManager();
+            pm.currentTransaction().begin();
+            pm.makePersistent(new Person(1, "First"));
+            pm.currentTransaction().commit();
+            pm.close();
+        } finally {
+            pmf.close();
+        }
+
+        pmf = bootstrap.open();
+        assertTrue(bootstrap.isSchemaReused());
+        assertEquals(checksum, bootstrap.getChecksum());
+        assertEquals(1, countPersons(pmf));
+        pmf.close();
+
+        // More classes: their tables are added, the Person table is kept
+        bootstrap = new SchemaBootstrap(PersistenceUnits.MEMORY, overrides, CLASSES);
+        pmf = bootstrap.open();
+        assertFalse(bootstrap.isSchemaReused());
+        assertNotEquals(checksum, bootstrap.getChecksum());
+        assertEquals(1, countPersons(pmf));
+        pmf.close();
+
+        pmf = bootstrap.open();
+        assertTrue(bootstrap.isSchemaReused());
+        assertEquals(1, countPersons(pmf));
+        pmf.close();
+    }
+
+    /**
+     * Benchmark comparing the startup time of the file-backed persistence unit with drop-and-create
+     * and with SchemaBootstrap, up to the first query.
+     */
+    // Enable this if using this test
+//    @Test
+    public void testStartupTime() {
+        long start = System.nanoTime();
+        for (int i = 0; i < NR_OF_BENCHMARK_STARTS; i++) {
+            PersistenceManagerFactory pmf = PersistenceUnits.getPersistenceManagerFactory(
+                    PersistenceUnits.FILE, Collections.emptyMap());
+            countPersons(pmf);
+            pmf.close();
+        }
+        long dropCreateMillis = (System.nanoTime() - start) / 1_000_000 / NR_OF_BENCHMARK_STARTS;
+
+        SchemaBootstrap bootstrap = new SchemaBootstrap(PersistenceUnits.FILE, Collections.emptyMap(), CLASSES);
+        bootstrap.open().close();
+        start = System.nanoTime();
+        for (int i = 0; i < NR_OF_BENCHMARK_STARTS; i++) {
+            PersistenceManagerFactory pmf = bootstrap.open();
+            assertTrue(bootstrap.isSchemaReused());
+            countPersons(pmf);
+            pmf.close();
+        }
+        long reuseMillis = (System.nanoTime() - start) / 1_000_000 / NR_OF_BENCHMARK_STARTS;
+        NucleusLogger.GENERAL.info(">> Startup of " + PersistenceUnits.FILE + ": drop-and-create "
+                + dropCreateMillis + " ms, schema reused " + reuseMillis + " ms");
+    }
+
+    private static int countPersons(PersistenceManagerFactory pmf) {
+        PersistenceManager pm = pmf.getPersistenceManager();
+        try {
+            pm.currentTransaction().begin();
+            int count = pm.newQuery(Person.class).executeList().size();
+            pm.currentTransaction().commit();
+            return count;
+        } finally {
+            if (pm.currentTransaction().isActive()) {
+                pm.currentTransaction().rollback();
+            }
+            pm.close();
+        }
+    }
+}
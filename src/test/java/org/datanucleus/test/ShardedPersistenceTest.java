@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.datanucleus.test;
+
+import org.datanucleus.util.NucleusLogger;
+import org.junit.Test;
+import tck.model.Point;
+import tck.pc.PCRectAnnotated;
+import tck.util.PersistenceUnits;
+import tck.util.ShardedPersistence;
+
+import javax.jdo.JDOHelper;
+import javax.jdo.PersistenceManager;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for spreading rects over several H2 databases.
+ */
+public class ShardedPersistenceTest {
+
+    private static final int NR_OF_BENCHMARK_OBJECTS = 200_000;
+    private static final int BENCHMARK_BATCH_SIZE = 2_000;
+
+    /**
+     * Test method checking that rects are spread over the shards and found by queries on all
+     * shards.
+     */
+    @Test
+    public void testRoutingAndScatterGather() {
+        try (ShardedPersistence<PCRectAnnotated> sharded = newSharded(PersistenceUnits.MEMORY, "mem:shard", 3)) {
+            List<PCRectAnnotated> rects = new ArrayList<>();
+            for (int i = 0; i < 30; i++) {
+                rects.add(newRect(i));
+            }
+            sharded.makePersistentAll(rects);
+
+            long[] counts = sharded.countPerShard();
+            long total = 0;
+            for (long count : counts) {
+                assertTrue(count > 0);
+                total += count;
+            }
+            assertEquals(30, total);
+
+            // Every rect is stored in the shard selected by its id
+            for (int shard = 0; shard < sharded.getNrOfShards(); shard++) {
+                PersistenceManager pm = sharded.getShard(shard).getPersistenceManager();
+                try {
+                    for (PCRectAnnotated rect : pm.getExtent(PCRectAnnotated.class, false)) {
+                        assertEquals(shard, sharded.shardOf(rect));
+                    }
+                } finally {
+                    pm.close();
+                }
+            }
+
+            List<PCRectAnnotated> found = sharded.executeList("this.upperLeft == :point", new Point(17, 27));
+            assertEquals(1, found.size());
+            assertEquals(new Point(27, 17), found.get(0).getLowerRight());
+            assertFalse(JDOHelper.isPersistent(found.get(0)));
+
+            assertEquals(30, sharded.executeList("this.upperLeft != null").size());
+        }
+    }
+
+    /**
+     * Benchmark persisting rects with 1, 2 and 4 file-backed shards.
+     */
+    // Enable this if using this test
+//    @Test
+    public void testWriteThroughput() {
+        for (int nrOfShards : new int[] {1, 2, 4}) {
+            try (ShardedPersistence<PCRectAnnotated> sharded =
+                         newSharded(PersistenceUnits.FILE, "file:./target/h2/shard", nrOfShards)) {
+                long start = System.nanoTime();
+                for (int i = 0; i < NR_OF_BENCHMARK_OBJECTS; i += BENCHMARK_BATCH_SIZE) {
+                    List<PCRectAnnotated> batch = new ArrayList<>(BENCHMARK_BATCH_SIZE);
+                    for (int j = i; j < i + BENCHMARK_BATCH_SIZE; j++) {
+                        batch.add(newRect(j));
+                    }
+                    sharded.makePersistentAll(batch);
+                }
+                long millis = (System.nanoTime() - start) / 1_000_000;
+                NucleusLogger.GENERAL.info(">> " + nrOfShards + " shards: " + NR_OF_BENCHMARK_OBJECTS
+                        + " rects in " + millis + " ms, " + NR_OF_BENCHMARK_OBJECTS * 1000L / Math.max(1, millis)
+                        + " rects/s");
+            }
+        }
+    }
+
+    private static ShardedPersistence<PCRectAnnotated> newSharded(String unit, String urlPrefix, int nrOfShards) {
+        List<String> urls = new ArrayList<>();
+        for (int i = 0; i < nrOfShards; i++) {
+            urls.add("jdbc:h2:" + urlPrefix + i);
+        }
+        return new ShardedPersistence<>(unit, urls, PCRectAnnotated.class, PCRectAnnotated::getId);
+    }
+
+    private static PCRectAnnotated newRect(int i) {
+        PCRectAnnotated rect = new PCRectAnnotated();
+        rect.setUpperLeft(new Point(i, i + 10));
+        rect.setLowerRight(new Point(i + 10, i));
+        return rect;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.datanucleus.test;
+
+import org.datanucleus.util.NucleusLogger;
+import org.junit.Test;
+import tck.model.Point;
+import tck.pc.IPCRect;
+import tck.pc.PCRectAnnotated;
+import tck.util.CommitNotifier;
+import tck.util.QueryStreams;
+import tck.util.SpatialGridIndex;
+
+import javax.jdo.PersistenceManager;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the spatial grid index over IPCRect bounds.
+ */
+public class SpatialIndexTest extends AnnotationTestHelper {
+
+    private static final int NR_OF_BENCHMARK_OBJECTS = 1_000_000;
+    private static final int NR_OF_BENCHMARK_QUERIES = 100;
+
+    /**
+     * Test method comparing the index queries with checking every rect, for random rects of very
+     * different sizes.
+     */
+    @Test
+    public void testQueriesMatchScan() {
+        Random random = new Random(42);
+        SpatialGridIndex index =
+                new SpatialGridIndex(getPM().getPersistenceManagerFactory(), new CommitNotifier(), 10);
+        // Filled by put only, there are no commits to follow
+        index.close();
+        List<int[]> rects = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            int x = random.nextInt(1000) - 500;
+            int y = random.nextInt(1000) - 500;
+            int size = i % 100 == 0 ? 300 : random.nextInt(30);
+            int[] r = {x, y, x + size, y + size};
+            rects.add(r);
+            index.put(i, newRect(r));
+        }
+        // Replace and remove some rects
+        for (int i = 0; i < 100; i++) {
+            int[] r = {i, i, i + 5, i + 5};
+            rects.set(i, r);
+            index.put(i, newRect(r));
+        }
+        for (int i = 100; i < 200; i++) {
+            rects.set(i, null);
+            index.remove(i);
+        }
+        assertEquals(1900, index.size());
+
+        for (int q = 0; q < 200; q++) {
+            int x = random.nextInt(1200) - 600;
+            int y = random.nextInt(1200) - 600;
+            int size = random.nextInt(100);
+            assertEquals(scan(rects, x, y, x, y), new HashSet<>(index.contains(x, y)));
+            assertEquals(scan(rects, x, y, x + size, y + size),
+                    new HashSet<>(index.intersects(x, y, x + size, y + size)));
+
+            List<Object> nearest = index.nearest(x, y, 5);
+            assertEquals(5, nearest.size());
+            List<Double> expected = new ArrayList<>();
+            for (int[] r : rects) {
+                if (r != null) {
+                    expected.add(distance(r, x, y));
+                }
+            }
+            Collections.sort(expected);
+            for (int i = 0; i < nearest.size(); i++) {
+                assertEquals(expected.get(i), distance(rects.get((Integer) nearest.get(i)), x, y), 0.0);
+            }
+        }
+    }
+
+    /**
+     * Test method checking that the index follows committed updates and deletes.
+     */
+    @Test
+    public void testFollowsCommits() {
+        Object oid = createIPCRectInstances(PCRectAnnotated.class, 5);
+        PersistenceManager pm = getPM();
+        CommitNotifier notifier = new CommitNotifier();
+        notifier.attach(pm);
+        try (SpatialGridIndex index =
+                     new SpatialGridIndex(pm.getPersistenceManagerFactory(), notifier, 4)) {
+            assertEquals(5, index.load(PCRectAnnotated.class));
+            assertEquals(Collections.singletonList(oid), index.contains(1, 1));
+            assertEquals(5, index.contains(5, 5).size());
+
+            pm.currentTransaction().begin();
+            IPCRect rect = (IPCRect) pm.getObjectById(oid);
+            rect.setUpperLeft(new Point(100, 110));
+            rect.setLowerRight(new Point(110, 100));
+            pm.currentTransaction().commit();
+            index.awaitUpdates();
+            assertTrue(index.contains(1, 1).isEmpty());
+            assertEquals(Collections.singletonList(oid), index.contains(105, 105));
+            assertEquals(oid, index.nearest(200, 200, 1).get(0));
+
+            pm.currentTransaction().begin();
+            pm.deletePersistent(pm.getObjectById(oid));
+            pm.currentTransaction().commit();
+            index.awaitUpdates();
+            assertEquals(4, index.size());
+            assertTrue(index.contains(105, 105).isEmpty());
+            assertFalse(index.isStale());
+        }
+    }
+
+    /**
+     * Benchmark comparing point containment queries with the index and with scanning all rects.
+     */
+    // Enable this if using this test
+//    @Test
+    public void testIndexVersusScan() {
+        PersistenceManager pm = getPM();
+        Random random = new Random(42);
+        pm.currentTransaction().begin();
+        for (int i = 0; i < NR_OF_BENCHMARK_OBJECTS; i++) {
+            int x = random.nextInt(100_000);
+            int y = random.nextInt(100_000);
+            PCRectAnnotated rect = new PCRectAnnotated();
+            rect.setUpperLeft(new Point(x, y + 100));
+            rect.setLowerRight(new Point(x + 100, y));
+            pm.makePersistent(rect);
+            if ((i + 1) % 10_000 == 0) {
+                pm.currentTransaction().commit();
+                pm.evictAll();
+                pm.currentTransaction().begin();
+            }
+        }
+        pm.currentTransaction().commit();
+
+        SpatialGridIndex index = new SpatialGridIndex(pm.getPersistenceManagerFactory(), new CommitNotifier(), 100);
+        long start = System.nanoTime();
+        index.load(PCRectAnnotated.class);
+        long loadMillis = (System.nanoTime() - start) / 1_000_000;
+
+        int found = 0;
+        start = System.nanoTime();
+        for (int q = 0; q < NR_OF_BENCHMARK_QUERIES; q++) {
+            found += index.contains(random.nextInt(100_000), random.nextInt(100_000)).size();
+        }
+        long indexNanos = (System.nanoTime() - start) / NR_OF_BENCHMARK_QUERIES;
+
+        start = System.nanoTime();
+        pm.currentTransaction().begin();
+        for (int q = 0; q < 3; q++) {
+            int x = random.nextInt(100_000);
+            int y = random.nextInt(100_000);
+            try (Stream<PCRectAnnotated> rects = QueryStreams.stream(pm, PCRectAnnotated.class)) {
+                found += rects.filter(r -> r.getUpperLeft().x <= x && x <= r.getLowerRight().x
+                        && r.getLowerRight().y <= y && y <= r.getUpperLeft().y).count();
+            }
+        }
+        pm.currentTransaction().commit();
+        long scanNanos = (System.nanoTime() - start) / 3;
+        index.close();
+        NucleusLogger.GENERAL.info(">> Point containment over " + NR_OF_BENCHMARK_OBJECTS + " rects: index "
+                + indexNanos / 1000 + " us (loaded in " + loadMillis + " ms), scan " + scanNanos / 1000
+                + " us, " + found + " matches");
+    }
+
+    private static IPCRect newRect(int[] r) {
+        PCRectAnnotated rect = new PCRectAnnotated();
+        rect.setUpperLeft(new Point(r[0], r[3]));
+        rect.setLowerRight(new Point(r[2], r[1]));
+        return rect;
+    }
+
+    private static HashSet<Object> scan(List<int[]> rects, int minX, int minY, int maxX, int maxY) {
+        HashSet<Object> result = new HashSet<>();
+        for (int i = 0; i < rects.size(); i++) {
+            int[] r = rects.get(i);
+            if (r != null && r[0] <= maxX && minX <= r[2] && r[1] <= maxY && minY <= r[3]) {
+                result.add(i);
+            }
+        }
+        return result;
+    }
+
+    private static double distance(int[] r, int x, int y) {
+        int dx = Math.max(0, Math.max(r[0] - x, x - r[2]));
+        int dy = Math.max(0, Math.max(r[1] - y, y - r[3]));
+        return Math.sqrt((double) dx * dx + (double) dy * dy);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.datanucleus.test;
+
+import org.datanucleus.util.NucleusLogger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import tck.model.Point;
+import tck.pc.IPCRect;
+import tck.pc.PCRectAnnotated;
+import tck.pc.PCRectEmbedded;
+import tck.pc.PCRectPointTypeAnnotated;
+import tck.util.MeteredConnectionPoolFactory;
+import tck.util.SqlRecorder;
+import tck.util.SqlRecorder.Type;
+
+import javax.jdo.JDOHelper;
+import javax.jdo.PersistenceManager;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests asserting the number of SQL statements issued by the IPCRect operations of
+ * AnnotationTestHelper, recorded by SqlRecorder.
+ */
+public class SqlStatementTest extends AnnotationTestHelper {
+
+    private static final int NR_OF_BENCHMARK_RUNS = 200;
+
+    /**
+     * Wraps the connections with SqlRecorder in every persistence unit, not only in MyTest.
+     */
+    @Override
+    protected Map<?, ?> getPersistenceManagerFactoryOverrides() {
+        return Collections.singletonMap(MeteredConnectionPoolFactory.PROPERTY_RECORD_SQL, "true");
+    }
+
+    @Before
+    public void startRecording() {
+        SqlRecorder.start();
+    }
+
+    @After
+    public void stopRecording() {
+        SqlRecorder.stop();
+        SqlRecorder.clear();
+    }
+
+    /**
+     * Test method checking that reading a rect without cached instances issues exactly one SELECT.
+     */
+    @Test
+    public void testReadIssuesOneSelect() {
+        runReadIPCRectInstance(PCRectAnnotated.class);
+        SqlRecorder.expect("runReadIPCRectInstance", Type.SELECT, 1);
+        SqlRecorder.expect("runReadIPCRectInstance", Type.UPDATE, 0);
+        List<SqlRecorder.Recorded> statements = SqlRecorder.getStatements("runReadIPCRectInstance");
+        assertEquals(1, statements.get(0).getRowCount());
+    }
+
+    /**
+     * Test method checking that a modified rect is written with one UPDATE, and an unchanged one
+     * not at all, whether its Points are converted or embedded.
+     */
+    @Test
+    public void testUpdates() {
+        runModifyIPCRectInstance(PCRectPointTypeAnnotated.class);
+        SqlRecorder.expect("runModifyIPCRectInstance", Type.SELECT, 1);
+        SqlRecorder.expect("runModifyIPCRectInstance", Type.UPDATE, 1);
+
+        for (Class<? extends IPCRect> pcrectClass : Arrays.asList(
+                PCRectAnnotated.class, PCRectPointTypeAnnotated.class, PCRectEmbedded.class)) {
+            SqlRecorder.clear();
+            runNoOpModifyIPCRectInstance(pcrectClass);
+            SqlRecorder.expect("runNoOpModifyIPCRectInstance", Type.SELECT, 1);
+            SqlRecorder.expect("runNoOpModifyIPCRectInstance", Type.UPDATE, 0);
+        }
+    }
+
+    /**
+     * Test method checking that setting equal Points on a hollow rect loads its fields for the
+     * comparison, with one SELECT, but does not write them.
+     */
+    @Test
+    public void testNoOpUpdateOfHollowInstance() {
+        Object oid = createIPCRectInstances(PCRectAnnotated.class, 1);
+        PersistenceManager pm = getPM();
+        pm.getPersistenceManagerFactory().getDataStoreCache().evictAll(false, PCRectAnnotated.class);
+        try (SqlRecorder.Operation op = SqlRecorder.operation("hollow")) {
+            pm.currentTransaction().begin();
+            IPCRect rect = (IPCRect) pm.getObjectById(oid, false);
+            rect.setUpperLeft(new Point(UL_X, UL_Y));
+            rect.setLowerRight(new Point(LR_X, LR_Y));
+            assertFalse(JDOHelper.isDirty(rect));
+            pm.currentTransaction().commit();
+        }
+        SqlRecorder.expect("hollow", Type.SELECT, 1);
+        SqlRecorder.expect("hollow", Type.UPDATE, 0);
+    }
+
+    /**
+     * Test method checking the row counts of a query and of a bulk delete.
+     */
+    @Test
+    public void testRowCounts() {
+        createIPCRectInstances(PCRectAnnotated.class, 5);
+        PersistenceManager pm = getPM();
+        try (SqlRecorder.Operation op = SqlRecorder.operation("query")) {
+            pm.currentTransaction().begin();
+            assertEquals(5, pm.newQuery(PCRectAnnotated.class).executeList().size());
+            pm.currentTransaction().commit();
+        }
+        SqlRecorder.expect("query", Type.SELECT, 1);
+        assertEquals(5, SqlRecorder.getStatements("query").get(0).getRowCount());
+
+        try (SqlRecorder.Operation op = SqlRecorder.operation("delete")) {
+            pm.currentTransaction().begin();
+            assertEquals(5, pm.newQuery(PCRectAnnotated.class).deletePersistentAll());
+            pm.currentTransaction().commit();
+        }
+        SqlRecorder.expect("delete", Type.DELETE, 1);
+        assertEquals(5, SqlRecorder.getStatements("delete").get(0).getRowCount());
+        assertTrue(SqlRecorder.report().contains("delete: 1 runs"));
+    }
+
+    /**
+     * Benchmark running the IPCRect operations repeatedly, reporting their SQL time compared with
+     * their total time.
+     */
+    // Enable this if using this test
+//    @Test
+    public void testSqlTimeReport() {
+        for (int i = 0; i < NR_OF_BENCHMARK_RUNS; i++) {
+            runReadIPCRectInstance(PCRectAnnotated.class);
+            runModifyIPCRectInstance(PCRectAnnotated.class);
+            runNoOpModifyIPCRectInstance(PCRectAnnotated.class);
+        }
+        NucleusLogger.GENERAL.info(">> " + SqlRecorder.report());
+    }
+}
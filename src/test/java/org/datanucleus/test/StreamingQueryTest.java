@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.datanucleus.test;
+
+import org.datanucleus.util.NucleusLogger;
+import org.junit.Test;
+import tck.model.Point;
+import tck.pc.PCRectAnnotated;
+import tck.util.QueryStreams;
+
+import javax.jdo.JDOHelper;
+import javax.jdo.ObjectState;
+import javax.jdo.PersistenceManager;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for streaming query results with QueryStreams.
+ */
+public class StreamingQueryTest extends AnnotationTestHelper {
+
+    private static final int NR_OF_BENCHMARK_OBJECTS = 1_000_000;
+    private static final long BENCHMARK_HEAP_CEILING = 64L * 1024 * 1024;
+
+    /**
+     * Test method streaming all PCRectAnnotated instances. Visited instances should be evicted.
+     */
+    @Test
+    public void testStreamAllInstances() {
+        createIPCRectInstances(PCRectAnnotated.class, 20);
+
+        PersistenceManager pm = getPM();
+        pm.currentTransaction().begin();
+        List<PCRectAnnotated> visited = new ArrayList<>();
+        try (Stream<PCRectAnnotated> rects =
+                     QueryStreams.stream(pm, PCRectAnnotated.class, null, 3)) {
+            int sum = rects.peek(visited::add).mapToInt(r -> r.getUpperLeft().getX()).sum();
+            // x coordinates are UL_X, UL_X + 1, ..., UL_X + 19
+            assertEquals(20 * UL_X + 190, sum);
+            // All visited instances should have been evicted while the transaction is active
+            assertEquals(20, visited.size());
+            for (PCRectAnnotated rect : visited) {
+                assertEquals(ObjectState.HOLLOW_PERSISTENT_NONTRANSACTIONAL,
+                        JDOHelper.getObjectState(rect));
+            }
+        } finally {
+            pm.currentTransaction().commit();
+        }
+    }
+
+    /**
+     * Test method streaming the result of a query with a Point parameter.
+     */
+    @Test
+    public void testStreamWithPointParameter() {
+        createIPCRectInstances(PCRectAnnotated.class, 5);
+
+        PersistenceManager pm = getPM();
+        pm.currentTransaction().begin();
+        try (Stream<PCRectAnnotated> rects = QueryStreams.stream(pm, PCRectAnnotated.class,
+                "this.upperLeft == :point", 2, new Point(UL_X + 1, UL_Y + 1))) {
+            assertEquals(1, rects.count());
+        } finally {
+            pm.currentTransaction().commit();
+        }
+    }
+
+    /**
+     * Benchmark scanning 10^6 PCRectAnnotated instances. The used heap must stay below a fixed
+     * ceiling above the heap used before the scan.
+     */
+    // Enable this if using this test
+//    @Test
+    public void testStreamHeapCeiling() {
+        PersistenceManager pm = getPM();
+        pm.currentTransaction().begin();
+        for (int i = 0; i < NR_OF_BENCHMARK_OBJECTS; i++) {
+            PCRectAnnotated rect = new PCRectAnnotated();
+            rect.setUpperLeft(new Point(i, i));
+            rect.setLowerRight(new Point(i + 1, i - 1));
+            pm.makePersistent(rect);
+            if ((i + 1) % 10_000 == 0) {
+                pm.currentTransaction().commit();
+                pm.evictAll();
+                pm.currentTransaction().begin();
+            }
+        }
+        pm.currentTransaction().commit();
+        pm.evictAll();
+
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long baseline = runtime.totalMemory() - runtime.freeMemory();
+        long maxUsed = 0;
+        long count = 0;
+        long start = System.nanoTime();
+        pm.currentTransaction().begin();
+        try (Stream<PCRectAnnotated> rects = QueryStreams.stream(pm, PCRectAnnotated.class)) {
+            for (PCRectAnnotated rect : (Iterable<PCRectAnnotated>) rects::iterator) {
+                rect.getUpperLeft();
+                if (++count % 50_000 == 0) {
+                    System.gc();
+                    maxUsed = Math.max(maxUsed, runtime.totalMemory() - runtime.freeMemory());
+                }
+            }
+        } finally {
+            pm.currentTransaction().commit();
+        }
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        NucleusLogger.GENERAL.info(">> Streamed " + count + " rects in " + millis + " ms, heap growth "
+                + (maxUsed - baseline) / 1024 + " KB");
+
+        assertEquals(NR_OF_BENCHMARK_OBJECTS, count);
+        assertTrue("Heap grew by " + (maxUsed - baseline) + " bytes",
+                maxUsed - baseline < BENCHMARK_HEAP_CEILING);
+
+        pm.currentTransaction().begin();
+        pm.newQuery(PCRectAnnotated.class).deletePersistentAll();
+        pm.currentTransaction().commit();
+    }
+}
@@ -52,6 +52,14 @@ public class StringAnnotatedTest extends AnnotationTestHelper {
         runModifyIPCRectInstance(PCRectAnnotated.class);
     }
 
+    /**
+     * Test method setting equal values on a PCRectStringAnnotated instance, which should not be stored again.
+     */
+    @Test
+    public void testNoOpModifyPCRectStringAnnotatedInstance() {
+        runNoOpModifyIPCRectInstance(PCRectAnnotated.class);
+    }
+
     /**
      * Test method running a PCRectStringAnnotated query with a query parameter of type String.
      */
@@ -49,6 +49,14 @@ public class TypeAnnotatedTest extends AnnotationTestHelper {
         runModifyIPCRectInstance(PCRectPointTypeAnnotated.class);
     }
 
+    /**
+     * Test method setting equal values on a PCRectPointTypeAnnotated instance, which should not be stored again.
+     */
+    @Test
+    public void testNoOpModifyPCRectPointTypeAnnotatedInstance() {
+        runNoOpModifyIPCRectInstance(PCRectPointTypeAnnotated.class);
+    }
+
     /**
      * Test method running a PCRectStringAnnotated query with a query parameter of type String.
      */
@@ -0,0 +1,220 @@
+package org.datanucleus.test;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.*;
+import javax.jdo.*;
+
+import static org.junit.Assert.*;
+import mydomain.model.*;
+import org.datanucleus.util.NucleusLogger;
+import tck.util.PersistenceUnits;
+import tck.util.UnitOfWorkRunner;
+import tck.util.UnitOfWorkRunner.Mode;
+
+public class UnitOfWorkRunnerTest
+{
+    private static final int NR_OF_BENCHMARK_THREADS = 50;
+    private static final int NR_OF_BENCHMARK_UNITS = 200;
+    private static final int NR_OF_BENCHMARK_PERSONS = 5;
+
+    private PersistenceManagerFactory pmf;
+
+    @Before
+    public void setUp()
+    {
+        pmf = PersistenceUnits.getPersistenceManagerFactory();
+        PersistenceManager pm = pmf.getPersistenceManager();
+        try
+        {
+            pm.currentTransaction().begin();
+            for (int i = 0; i < NR_OF_BENCHMARK_PERSONS; i++)
+            {
+                pm.makePersistent(new Person(i, "Person " + i));
+            }
+            pm.currentTransaction().commit();
+        }
+        finally
+        {
+            pm.close();
+        }
+    }
+
+    @After
+    public void tearDown()
+    {
+        PersistenceManager pm = pmf.getPersistenceManager();
+        try
+        {
+            pm.currentTransaction().begin();
+            pm.newQuery(Person.class).deletePersistentAll();
+            pm.currentTransaction().commit();
+        }
+        finally
+        {
+            if (pm.currentTransaction().isActive())
+            {
+                pm.currentTransaction().rollback();
+            }
+            pm.close();
+        }
+        pmf.close();
+    }
+
+    @Test
+    public void testRetryAfterConflict()
+    {
+        UnitOfWorkRunner runner = new UnitOfWorkRunner(pmf, Mode.OPTIMISTIC, 3, 1, 10, TimeUnit.MILLISECONDS);
+        AtomicInteger attempts = new AtomicInteger();
+        String name = runner.run(pm ->
+        {
+            Person person = pm.getObjectById(Person.class, 1L);
+            person.setName("Runner " + attempts.incrementAndGet());
+            if (attempts.get() == 1)
+            {
+                // A concurrent update of the same Person, committed first
+                rename(1L, "Concurrent");
+            }
+            return person.getName();
+        });
+        assertEquals("Runner 2", name);
+        assertEquals(1, runner.getNrOfConflicts());
+        assertEquals(1, runner.getNrOfRetries());
+        assertEquals(1, runner.getNrOfCommits());
+        assertEquals(0, runner.getNrOfAborts());
+        assertEquals("Runner 2", getName(1L));
+    }
+
+    @Test
+    public void testAbortAfterMaxAttempts()
+    {
+        UnitOfWorkRunner runner = new UnitOfWorkRunner(pmf, Mode.OPTIMISTIC, 2, 0, 0, TimeUnit.MILLISECONDS);
+        AtomicInteger attempts = new AtomicInteger();
+        try
+        {
+            runner.run(pm ->
+            {
+                Person person = pm.getObjectById(Person.class, 1L);
+                person.setName("Runner " + attempts.incrementAndGet());
+                rename(1L, "Concurrent " + attempts.get());
+                return null;
+            });
+            fail("Every attempt conflicts");
+        }
+        catch (JDOException e)
+        {
+            assertTrue(UnitOfWorkRunner.isConflict(e));
+        }
+        assertEquals(2, attempts.get());
+        assertEquals(2, runner.getNrOfConflicts());
+        assertEquals(1, runner.getNrOfRetries());
+        assertEquals(1, runner.getNrOfAborts());
+        assertEquals("Concurrent 2", getName(1L));
+    }
+
+    @Test
+    public void testOtherExceptionNotRetried()
+    {
+        UnitOfWorkRunner runner = new UnitOfWorkRunner(pmf, Mode.PESSIMISTIC, 3, 0, 0, TimeUnit.MILLISECONDS);
+        try
+        {
+            runner.run(pm ->
+            {
+                pm.getObjectById(Person.class, 1L).setName("Rolled back");
+                throw new IllegalArgumentException("No conflict");
+            });
+            fail("Exception of the unit of work expected");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // expected
+        }
+        assertEquals(0, runner.getNrOfRetries());
+        assertEquals(1, runner.getNrOfAborts());
+        assertEquals("Person 1", getName(1L));
+    }
+
+    /**
+     * Benchmark renaming a few Persons from many threads, with optimistic transactions and retries
+     * compared with pessimistic transactions locking the Person.
+     */
+    // Enable this if using this test
+//    @Test
+    public void testContention() throws Exception
+    {
+        for (Mode mode : Mode.values())
+        {
+            UnitOfWorkRunner runner = new UnitOfWorkRunner(pmf, mode, 20, 1, 50, TimeUnit.MILLISECONDS);
+            AtomicInteger failures = new AtomicInteger();
+            long start = System.nanoTime();
+            Thread[] threads = new Thread[NR_OF_BENCHMARK_THREADS];
+            for (int i = 0; i < threads.length; i++)
+            {
+                final int threadNo = i;
+                threads[i] = new Thread(() ->
+                {
+                    Random random = new Random(threadNo);
+                    for (int j = 0; j < NR_OF_BENCHMARK_UNITS; j++)
+                    {
+                        long id = random.nextInt(NR_OF_BENCHMARK_PERSONS);
+                        String name = "Thread " + threadNo + " unit " + j;
+                        try
+                        {
+                            runner.run(pm ->
+                            {
+                                pm.getObjectById(Person.class, id).setName(name);
+                                return null;
+                            });
+                        }
+                        catch (RuntimeException e)
+                        {
+                            failures.incrementAndGet();
+                        }
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads)
+            {
+                thread.join();
+            }
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            NucleusLogger.GENERAL.info(">> " + mode + ": " + runner.getNrOfCommits() + " commits in " + millis + " ms, "
+                    + runner.getNrOfConflicts() + " conflicts, " + runner.getNrOfRetries() + " retries, "
+                    + runner.getNrOfAborts() + " aborts, " + failures.get() + " failed units");
+        }
+    }
+
+    private void rename(long id, String name)
+    {
+        PersistenceManager pm = pmf.getPersistenceManager();
+        try
+        {
+            pm.currentTransaction().begin();
+            pm.getObjectById(Person.class, id).setName(name);
+            pm.currentTransaction().commit();
+        }
+        finally
+        {
+            if (pm.currentTransaction().isActive())
+            {
+                pm.currentTransaction().rollback();
+            }
+            pm.close();
+        }
+    }
+
+    private String getName(long id)
+    {
+        PersistenceManager pm = pmf.getPersistenceManager();
+        try
+        {
+            return pm.getObjectById(Person.class, id).getName();
+        }
+        finally
+        {
+            pm.close();
+        }
+    }
+}
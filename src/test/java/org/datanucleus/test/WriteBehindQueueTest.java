@@ -0,0 +1,139 @@
+package org.datanucleus.test;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+import org.junit.*;
+import javax.jdo.*;
+
+import static org.junit.Assert.*;
+import mydomain.model.*;
+import org.datanucleus.util.NucleusLogger;
+import tck.util.PersistenceUnits;
+import tck.util.WriteBehindQueue;
+
+public class WriteBehindQueueTest
+{
+    private static final BiConsumer<PersistenceManager, Person> UPSERT = WriteBehindQueue.upsert(
+            Person.class, Person::getId, (existing, p) -> existing.setName(p.getName()), p -> new Person(p.getId(), p.getName()));
+
+    private PersistenceManagerFactory pmf;
+
+    @Before
+    public void setUp()
+    {
+        pmf = PersistenceUnits.getPersistenceManagerFactory();
+    }
+
+    @After
+    public void tearDown()
+    {
+        PersistenceManager pm = pmf.getPersistenceManager();
+        try
+        {
+            pm.currentTransaction().begin();
+            pm.newQuery(Person.class).deletePersistentAll();
+            pm.currentTransaction().commit();
+        }
+        finally
+        {
+            if (pm.currentTransaction().isActive())
+            {
+                pm.currentTransaction().rollback();
+            }
+            pm.close();
+        }
+        pmf.close();
+    }
+
+    @Test
+    public void testCoalescingAndShutdownFlush()
+    {
+        WriteBehindQueue<Long, Person> queue = new WriteBehindQueue<>(pmf, Person::getId, UPSERT, 100, 60_000);
+        for (int i = 0; i < 100; i++)
+        {
+            queue.submit(new Person(i % 10, "Name " + i));
+        }
+        // No trigger has fired yet, repeated writes of the same id are merged
+        assertEquals(10, queue.getQueueDepth());
+        assertEquals(90, queue.getNrOfCoalescedSubmits());
+
+        queue.close();
+
+        assertEquals(0, queue.getQueueDepth());
+        assertEquals(10, queue.getNrOfWrites());
+        Map<Long, String> names = readNames();
+        assertEquals(10, names.size());
+        for (long id = 0; id < 10; id++)
+        {
+            assertEquals("Name " + (90 + id), names.get(id));
+        }
+
+        try
+        {
+            queue.submit(new Person(1, "too late"));
+            fail("Submit to a closed queue should fail");
+        }
+        catch (JDOUserException ue)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSizeTriggeredFlushUpdatesExisting() throws Exception
+    {
+        try (WriteBehindQueue<Long, Person> queue = new WriteBehindQueue<>(pmf, Person::getId, UPSERT, 5, 60_000))
+        {
+            for (int i = 0; i < 5; i++)
+            {
+                queue.submit(new Person(i, "First"));
+            }
+            waitForWrites(queue, 5);
+            for (int i = 0; i < 5; i++)
+            {
+                queue.submit(new Person(i, "Second"));
+            }
+            waitForWrites(queue, 10);
+
+            Map<Long, String> names = readNames();
+            assertEquals(5, names.size());
+            assertTrue(names.values().stream().allMatch("Second"::equals));
+            assertTrue(queue.getMaxFlushNanos() > 0);
+            NucleusLogger.GENERAL.info(">> Average flush latency " + queue.getAverageFlushNanos() / 1000 + " us");
+        }
+    }
+
+    private static void waitForWrites(WriteBehindQueue<?, ?> queue, long nrOfWrites) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (queue.getNrOfWrites() < nrOfWrites)
+        {
+            assertTrue("Size triggered flush did not happen", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private Map<Long, String> readNames()
+    {
+        Map<Long, String> names = new HashMap<>();
+        PersistenceManager pm = pmf.getPersistenceManager();
+        try
+        {
+            pm.currentTransaction().begin();
+            for (Person p : pm.newQuery(Person.class).executeList())
+            {
+                names.put(p.getId(), p.getName());
+            }
+            pm.currentTransaction().commit();
+        }
+        finally
+        {
+            if (pm.currentTransaction().isActive())
+            {
+                pm.currentTransaction().rollback();
+            }
+            pm.close();
+        }
+        return names;
+    }
+}